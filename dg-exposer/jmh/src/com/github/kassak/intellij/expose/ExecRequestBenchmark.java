@@ -0,0 +1,109 @@
+package com.github.kassak.intellij.expose;
+
+import com.google.gson.stream.JsonWriter;
+import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.util.containers.ContainerUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of execute request bodies with typed parameters, reported per parameter set.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecRequestBenchmark {
+  private static final String QUERY = "insert into t values (?, ?, ?, ?, ?, ?, ?, ?)";
+  private static final String[][] PARAMS = {
+    {"I", "42"},
+    {"1", "1"},
+    {"N", "12345.67"},
+    {"S", "name with \"quotes\""},
+    {"D", "2019-06-01"},
+    {"T", "12:30:00"},
+    {"d", "2019-06-01 12:30:00.123456"},
+    {"S", null},
+  };
+
+  @Param({"json", "msgpack"})
+  public String format;
+
+  @Param({"1", "100"})
+  public int sets;
+
+  private FullHttpRequest myRequest;
+
+  @Setup
+  public void setUp() throws IOException {
+    BufferExposingByteArrayOutputStream body = new BufferExposingByteArrayOutputStream();
+    if ("msgpack".equals(format)) writeMsgPack(body);
+    else writeJson(body);
+    myRequest = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/", Unpooled.wrappedBuffer(body.toByteArray()));
+    myRequest.headers().set(HttpHeaderNames.CONTENT_TYPE, "msgpack".equals(format) ? ResultFormat.MSGPACK.contentType : ResultFormat.JSON.contentType);
+  }
+
+  @TearDown
+  public void tearDown() {
+    myRequest.release();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(100)
+  public List<List<Object>> parse() throws IOException {
+    List<List<Object>> paramSets = ContainerUtil.newArrayList();
+    for (int i = 0; i < 100 / sets; i++) {
+      myRequest.content().readerIndex(0);
+      paramSets.clear();
+      CursorHandler.parseExecRequest(myRequest, Ref.create(), paramSets, isBatch());
+    }
+    return paramSets;
+  }
+
+  private boolean isBatch() {
+    return sets > 1;
+  }
+
+  private void writeJson(BufferExposingByteArrayOutputStream body) throws IOException {
+    try (JsonWriter json = new JsonWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8))) {
+      json.beginObject();
+      json.name("operation").value(QUERY);
+      json.name("parameters");
+      if (isBatch()) json.beginArray();
+      for (int s = 0; s < sets; s++) {
+        json.beginArray();
+        for (String[] param : PARAMS) {
+          json.beginObject().name("type").value(param[0]).name("value").value(param[1]).endObject();
+        }
+        json.endArray();
+      }
+      if (isBatch()) json.endArray();
+      json.endObject();
+    }
+  }
+
+  private void writeMsgPack(BufferExposingByteArrayOutputStream body) throws IOException {
+    MsgPackWriter out = new MsgPackWriter(body);
+    out.mapHeader(2);
+    out.name("operation").value(QUERY);
+    out.name("parameters");
+    if (isBatch()) out.arrayHeader(sets);
+    for (int s = 0; s < sets; s++) {
+      out.arrayHeader(PARAMS.length);
+      for (String[] param : PARAMS) {
+        out.mapHeader(2).name("type").value(param[0]).name("value").value(param[1]);
+      }
+    }
+    out.flush();
+  }
+}
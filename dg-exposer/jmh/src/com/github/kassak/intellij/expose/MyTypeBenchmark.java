@@ -0,0 +1,75 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.database.datagrid.DataConsumer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per cell conversions of {@link MyType}: formatting of fetched values and parsing of typed parameters, reported per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MyTypeBenchmark {
+  private static final int ROWS = 1000;
+
+  private List<DataConsumer.Column> myColumns;
+  private List<DataConsumer.Row> myRows;
+  private MyType[] myTypes;
+  private String[][] myFormatted;
+
+  @Setup
+  public void setUp() {
+    myColumns = SyntheticRows.columns();
+    myRows = SyntheticRows.rows(ROWS);
+    myTypes = new MyType[myColumns.size()];
+    for (int i = 0; i < myTypes.length; i++) {
+      myTypes[i] = MyType.getType(myColumns.get(i));
+    }
+    myFormatted = new String[ROWS][];
+    for (int r = 0; r < ROWS; r++) {
+      Object[] values = myRows.get(r).values;
+      myFormatted[r] = new String[values.length];
+      for (int i = 0; i < values.length; i++) {
+        myFormatted[r][i] = values[i] == null ? null : myTypes[i].format(values[i]);
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void getType(Blackhole blackhole) {
+    for (int r = 0; r < ROWS; r++) {
+      for (DataConsumer.Column column : myColumns) {
+        blackhole.consume(MyType.getType(column));
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void format(Blackhole blackhole) {
+    for (DataConsumer.Row row : myRows) {
+      Object[] values = row.values;
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] != null) blackhole.consume(myTypes[i].format(values[i]));
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public void parse(Blackhole blackhole) {
+    for (String[] values : myFormatted) {
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] != null) blackhole.consume(myTypes[i].parse(values[i]));
+      }
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.database.datagrid.DataConsumer;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of a fetched page in every {@link ResultFormat}, reported per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultWriterBenchmark {
+  private static final int ROWS = 1000;
+
+  @Param({"json", "msgpack", "arrow"})
+  public String format;
+
+  private final BufferExposingByteArrayOutputStream myOut = new BufferExposingByteArrayOutputStream(1024 * 1024);
+  private ResultFormat myFormat;
+  private List<DataConsumer.Column> myColumns;
+  private List<DataConsumer.Row> myRows;
+
+  @Setup
+  public void setUp() {
+    for (ResultFormat resultFormat : ResultFormat.values()) {
+      if (resultFormat.name.equals(format)) myFormat = resultFormat;
+    }
+    myColumns = SyntheticRows.columns();
+    myRows = SyntheticRows.rows(ROWS);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public int write() throws IOException {
+    myOut.reset();
+    ResultWriter writer = myFormat.createWriter(myOut);
+    writer.begin(myColumns);
+    writer.rows(myRows);
+    writer.end();
+    writer.flush();
+    return myOut.size();
+  }
+}
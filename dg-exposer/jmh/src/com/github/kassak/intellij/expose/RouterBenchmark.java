@@ -0,0 +1,45 @@
+package com.github.kassak.intellij.expose;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching of request paths against the route table of {@link DataGripExposerService}, reported per path.
+ * Resolution of ids needs data sources of a running IDE, so only the walk is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouterBenchmark {
+  private static final String DATA_SOURCE = DataGripExposerService.SERVICE_PREFIX + "dataSources/" + UUID.randomUUID() + "/";
+  private static final String CONNECTION = DATA_SOURCE + "connections/" + UUID.randomUUID() + "/";
+  private static final String CURSOR = CONNECTION + "cursors/" + UUID.randomUUID() + "/";
+  private static final String[] PATHS = {
+    CURSOR + "fetch",
+    CURSOR + "execute",
+    CURSOR,
+    CONNECTION + "pipeline",
+    CONNECTION + "cursors/",
+    DATA_SOURCE + "connections/",
+    DataGripExposerService.SERVICE_PREFIX + "dataSources/",
+    DataGripExposerService.SERVICE_PREFIX + "metrics",
+    CURSOR + "unknown",
+  };
+
+  private final Router myRouter = DataGripExposerService.ROUTES;
+  private final int myBase = DataGripExposerService.SERVICE_PREFIX.length();
+
+  @Benchmark
+  @OperationsPerInvocation(9)
+  public void lookup(Blackhole blackhole) {
+    for (String path : PATHS) {
+      blackhole.consume(myRouter.lookup(path, myBase, new Router.Match()));
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.database.datagrid.DataConsumer;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Rows of a result with a column of every {@link MyType}, every tenth value is null.
+ */
+class SyntheticRows {
+  private static final long EPOCH = Timestamp.valueOf("2019-06-01 12:00:00").getTime();
+
+  @NotNull
+  static List<DataConsumer.Column> columns() {
+    return ContainerUtil.newArrayList(
+      new DataConsumer.Column(0, "id", Types.INTEGER, "int4", Integer.class.getName()),
+      new DataConsumer.Column(1, "flag", Types.BOOLEAN, "bool", Boolean.class.getName()),
+      new DataConsumer.Column(2, "amount", Types.NUMERIC, "numeric", BigDecimal.class.getName()),
+      new DataConsumer.Column(3, "ratio", Types.DOUBLE, "float8", Double.class.getName()),
+      new DataConsumer.Column(4, "name", Types.VARCHAR, "varchar", String.class.getName()),
+      new DataConsumer.Column(5, "day", Types.DATE, "date", Date.class.getName()),
+      new DataConsumer.Column(6, "created", Types.TIMESTAMP, "timestamp", Timestamp.class.getName()),
+      new DataConsumer.Column(7, "payload", Types.VARBINARY, "bytea", byte[].class.getName()));
+  }
+
+  @NotNull
+  static List<DataConsumer.Row> rows(int count) {
+    Random random = new Random(42);
+    List<DataConsumer.Row> rows = ContainerUtil.newArrayListWithCapacity(count);
+    for (int i = 0; i < count; i++) {
+      byte[] payload = new byte[16 + random.nextInt(48)];
+      random.nextBytes(payload);
+      long time = EPOCH + random.nextInt(1_000_000_000);
+      Object[] values = {
+        i,
+        random.nextBoolean(),
+        BigDecimal.valueOf(random.nextInt(10_000_000), 2),
+        random.nextDouble(),
+        "name " + Integer.toHexString(random.nextInt()) + (i % 3 == 0 ? " with \"quotes\" and ünïcode" : ""),
+        new Date(time),
+        new Timestamp(time),
+        payload,
+      };
+      if (i % 10 == 9) values[i % values.length] = null;
+      rows.add(DataConsumer.Row.create(i, values));
+    }
+    return rows;
+  }
+}
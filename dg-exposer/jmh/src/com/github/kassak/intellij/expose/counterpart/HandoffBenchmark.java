@@ -0,0 +1,83 @@
+package com.github.kassak.intellij.expose.counterpart;
+
+import com.intellij.database.datagrid.DataConsumer;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.concurrency.Promise;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Types;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Rows passed from a producer thread to a fetching client through {@link DGCursor.QueryData} with different prefetch windows,
+ * reported per row. Producer sends rows in batches like a JDBC producer does, client fetches pages of {@link #PAGE} rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandoffBenchmark {
+  private static final int ROWS = 100_000;
+  private static final int BATCH = 100;
+  private static final int PAGE = 500;
+
+  @Param({"50", "500", "5000"})
+  public int window;
+
+  private final DataConsumer.Column[] myColumns = {
+    new DataConsumer.Column(0, "id", Types.INTEGER, "int4", Integer.class.getName()),
+    new DataConsumer.Column(1, "name", Types.VARCHAR, "varchar", String.class.getName()),
+  };
+  private final List<List<DataConsumer.Row>> myBatches = ContainerUtil.newArrayList();
+  private ExecutorService myProducer;
+
+  @Setup
+  public void setUp() {
+    for (int i = 0; i < ROWS; i += BATCH) {
+      List<DataConsumer.Row> batch = ContainerUtil.newArrayListWithCapacity(BATCH);
+      for (int j = i; j < i + BATCH; j++) {
+        batch.add(DataConsumer.Row.create(j, new Object[]{j, "row " + j}));
+      }
+      myBatches.add(batch);
+    }
+    myProducer = Executors.newSingleThreadExecutor();
+  }
+
+  @TearDown
+  public void tearDown() {
+    myProducer.shutdownNow();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public long handoff() throws Exception {
+    DGCursor.QueryData data = new DGCursor.QueryData(null, Prefetch.fixed(window, 0), false);
+    try {
+      Future<?> produced = myProducer.submit(() -> {
+        data.startSet(0, myColumns);
+        for (List<DataConsumer.Row> batch : myBatches) {
+          data.produce(batch);
+        }
+        data.endSet();
+      });
+      long fetched = 0;
+      while (fetched < ROWS) {
+        fetched += await(data.fetch(-1, PAGE, false)).size();
+      }
+      produced.get();
+      return fetched;
+    }
+    finally {
+      data.dispose();
+    }
+  }
+
+  private static <T> T await(Promise<T> promise) throws Exception {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    promise.onSuccess(future::complete).onError(future::completeExceptionally);
+    return future.get(1, TimeUnit.MINUTES);
+  }
+}
@@ -0,0 +1,409 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.database.datagrid.DataConsumer;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes result as Arrow IPC stream: schema message, one record batch per {@link #rows} call and end-of-stream marker.
+ * DECIMAL and NUMERIC columns are sent as utf8 to keep their precision, a value which does not fit the type of its column fails the stream.
+ */
+class ArrowResultWriter implements ResultWriter {
+  private static final short METADATA_V4 = 3;
+  private static final byte HEADER_SCHEMA = 1;
+  private static final byte HEADER_RECORD_BATCH = 3;
+  private static final byte[] PADDING = new byte[8];
+
+  private final OutputStream myOut;
+  private List<Vector> myVectors = Collections.emptyList();
+
+  ArrowResultWriter(@NotNull OutputStream out) {
+    myOut = out;
+  }
+
+  @Override
+  public void begin(@Nullable List<DataConsumer.Column> columns) throws IOException {
+    myVectors = columns == null ? Collections.emptyList() : ContainerUtil.map(columns, Vector::create);
+    FlatBufferBuilder fb = new FlatBufferBuilder();
+    int[] fields = new int[myVectors.size()];
+    for (int i = 0; i < fields.length; i++) {
+      String name = columns.get(i).name;
+      fields[i] = myVectors.get(i).field(fb, name == null ? "" : name);
+    }
+    int fieldsOffset = fb.createOffsetVector(fields);
+    fb.startTable(4);
+    fb.addOffset(1, fieldsOffset);
+    fb.addShort(0, (short)0);
+    int schema = fb.endTable();
+    writeMessage(fb, HEADER_SCHEMA, schema, 0);
+  }
+
+  @Override
+  public void rows(@NotNull List<DataConsumer.Row> rows) throws IOException {
+    if (rows.isEmpty() || myVectors.isEmpty()) return;
+    for (Vector vector : myVectors) {
+      vector.reset();
+    }
+    for (DataConsumer.Row row : rows) {
+      for (int i = 0; i < myVectors.size(); i++) {
+        myVectors.get(i).append(i < row.values.length ? row.values[i] : null);
+      }
+    }
+    List<Buf> buffers = ContainerUtil.newArrayList();
+    for (Vector vector : myVectors) {
+      vector.collectBuffers(buffers);
+    }
+    long bodyLength = 0;
+    for (Buf buffer : buffers) {
+      bodyLength += padded(buffer.size);
+    }
+
+    FlatBufferBuilder fb = new FlatBufferBuilder();
+    fb.startVector(16, myVectors.size(), 8);
+    for (int i = myVectors.size() - 1; i >= 0; i--) {
+      fb.addLong(myVectors.get(i).nullCount);
+      fb.addLong(rows.size());
+    }
+    int nodes = fb.endVector(myVectors.size());
+    fb.startVector(16, buffers.size(), 8);
+    long offset = bodyLength;
+    for (int i = buffers.size() - 1; i >= 0; i--) {
+      Buf buffer = buffers.get(i);
+      offset -= padded(buffer.size);
+      fb.addLong(buffer.size);
+      fb.addLong(offset);
+    }
+    int buffersOffset = fb.endVector(buffers.size());
+    fb.startTable(4);
+    fb.addLong(0, rows.size());
+    fb.addOffset(1, nodes);
+    fb.addOffset(2, buffersOffset);
+    int batch = fb.endTable();
+    writeMessage(fb, HEADER_RECORD_BATCH, batch, bodyLength);
+
+    for (Buf buffer : buffers) {
+      myOut.write(buffer.data, 0, buffer.size);
+      myOut.write(PADDING, 0, padded(buffer.size) - buffer.size);
+    }
+  }
+
+  @Override
+  public void end() throws IOException {
+    writeInt(-1);
+    writeInt(0);
+    myOut.flush();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    myOut.flush();
+  }
+
+  private void writeMessage(@NotNull FlatBufferBuilder fb, byte headerType, int header, long bodyLength) throws IOException {
+    fb.startTable(5);
+    fb.addLong(3, bodyLength);
+    fb.addOffset(2, header);
+    fb.addShort(0, METADATA_V4);
+    fb.addByte(1, headerType);
+    int message = fb.endTable();
+    byte[] metadata = fb.finish(message);
+    writeInt(-1);
+    writeInt(metadata.length);
+    myOut.write(metadata);
+  }
+
+  private void writeInt(int v) throws IOException {
+    myOut.write(v);
+    myOut.write(v >>> 8);
+    myOut.write(v >>> 16);
+    myOut.write(v >>> 24);
+  }
+
+  private static int padded(int size) {
+    return (size + 7) & ~7;
+  }
+
+  private static class Buf {
+    byte[] data = new byte[64];
+    int size;
+
+    void reset() {
+      size = 0;
+    }
+
+    private void ensure(int n) {
+      if (size + n <= data.length) return;
+      byte[] newData = new byte[Math.max(data.length * 2, size + n)];
+      System.arraycopy(data, 0, newData, 0, size);
+      data = newData;
+    }
+
+    void putLE(long v, int width) {
+      ensure(width);
+      for (int i = 0; i < width; i++) {
+        data[size++] = (byte)(v >>> (8 * i));
+      }
+    }
+
+    void put(byte[] bytes) {
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, data, size, bytes.length);
+      size += bytes.length;
+    }
+
+    void setBit(int idx, boolean value) {
+      int bytes = (idx >> 3) + 1;
+      if (size < bytes) {
+        ensure(bytes - size);
+        while (size < bytes) data[size++] = 0;
+      }
+      if (value) data[idx >> 3] |= 1 << (idx & 7);
+    }
+  }
+
+  private abstract static class Vector {
+    final byte typeType;
+    final Buf validity = new Buf();
+    int count;
+    int nullCount;
+
+    Vector(int typeType) {
+      this.typeType = (byte)typeType;
+    }
+
+    static Vector create(@NotNull DataConsumer.Column column) {
+      return column.type == Types.DECIMAL || column.type == Types.NUMERIC ? new VarVector(5) : create(MyType.getType(column));
+    }
+
+    static Vector create(@NotNull MyType type) {
+      switch (type) {
+        case INT: return new FixedVector(2, 8) {
+          @Override
+          int type(FlatBufferBuilder fb) {
+            fb.startTable(2);
+            fb.addInt(0, 64);
+            fb.addBoolean(1, true);
+            return fb.endTable();
+          }
+
+          @Override
+          long toBits(Object value) throws IOException {
+            return Values.toLong(value);
+          }
+        };
+        case NUM: return new FixedVector(3, 8) {
+          @Override
+          int type(FlatBufferBuilder fb) {
+            fb.startTable(1);
+            fb.addShort(0, (short)2);
+            return fb.endTable();
+          }
+
+          @Override
+          long toBits(Object value) throws IOException {
+            return Double.doubleToRawLongBits(Values.toDouble(value));
+          }
+        };
+        case BOOL: return new BoolVector();
+        case DATE: return new FixedVector(8, 4) {
+          @Override
+          int type(FlatBufferBuilder fb) {
+            fb.startTable(1);
+            fb.addShort(0, (short)0);
+            return fb.endTable();
+          }
+
+          @Override
+          long toBits(Object value) throws IOException {
+            return Values.toLocalDate(value).toEpochDay();
+          }
+        };
+        case TIME: return new FixedVector(9, 8) {
+          @Override
+          int type(FlatBufferBuilder fb) {
+            fb.startTable(2);
+            fb.addShort(0, (short)2);
+            fb.addInt(1, 64);
+            return fb.endTable();
+          }
+
+          @Override
+          long toBits(Object value) throws IOException {
+            return Values.toMicrosOfDay(value);
+          }
+        };
+        case DATETIME: return new FixedVector(10, 8) {
+          @Override
+          int type(FlatBufferBuilder fb) {
+            fb.startTable(2);
+            fb.addShort(0, (short)2);
+            return fb.endTable();
+          }
+
+          @Override
+          long toBits(Object value) throws IOException {
+            LocalDateTime dt = Values.toLocalDateTime(value);
+            return dt.toEpochSecond(ZoneOffset.UTC) * 1_000_000L + dt.getNano() / 1000;
+          }
+        };
+        case STR: return new VarVector(5);
+        default: return new VarVector(4);
+      }
+    }
+
+    void reset() {
+      validity.reset();
+      count = 0;
+      nullCount = 0;
+    }
+
+    void append(@Nullable Object value) throws IOException {
+      validity.setBit(count, value != null);
+      if (value == null) {
+        nullCount++;
+        appendNull();
+      }
+      else {
+        appendValue(value);
+      }
+      count++;
+    }
+
+    int field(@NotNull FlatBufferBuilder fb, @NotNull String name) {
+      int nameOffset = fb.createString(name);
+      int typeOffset = type(fb);
+      int children = fb.createOffsetVector(new int[0]);
+      fb.startTable(7);
+      fb.addOffset(0, nameOffset);
+      fb.addOffset(3, typeOffset);
+      fb.addOffset(5, children);
+      fb.addBoolean(1, true);
+      fb.addByte(2, typeType);
+      return fb.endTable();
+    }
+
+    int type(FlatBufferBuilder fb) {
+      fb.startTable(0);
+      return fb.endTable();
+    }
+
+    void collectBuffers(List<Buf> buffers) {
+      buffers.add(validity);
+    }
+
+    abstract void appendNull();
+
+    abstract void appendValue(@NotNull Object value) throws IOException;
+  }
+
+  private abstract static class FixedVector extends Vector {
+    final Buf values = new Buf();
+    final int width;
+
+    FixedVector(int typeType, int width) {
+      super(typeType);
+      this.width = width;
+    }
+
+    @Override
+    void reset() {
+      super.reset();
+      values.reset();
+    }
+
+    @Override
+    void appendNull() {
+      values.putLE(0, width);
+    }
+
+    @Override
+    void appendValue(@NotNull Object value) throws IOException {
+      values.putLE(toBits(value), width);
+    }
+
+    @Override
+    void collectBuffers(List<Buf> buffers) {
+      super.collectBuffers(buffers);
+      buffers.add(values);
+    }
+
+    abstract long toBits(Object value) throws IOException;
+  }
+
+  private static class BoolVector extends Vector {
+    final Buf values = new Buf();
+
+    BoolVector() {
+      super(6);
+    }
+
+    @Override
+    void reset() {
+      super.reset();
+      values.reset();
+    }
+
+    @Override
+    void appendNull() {
+      values.setBit(count, false);
+    }
+
+    @Override
+    void appendValue(@NotNull Object value) throws IOException {
+      values.setBit(count, Values.toBoolean(value));
+    }
+
+    @Override
+    void collectBuffers(List<Buf> buffers) {
+      super.collectBuffers(buffers);
+      buffers.add(values);
+    }
+  }
+
+  private static class VarVector extends Vector {
+    final Buf offsets = new Buf();
+    final Buf data = new Buf();
+
+    VarVector(int typeType) {
+      super(typeType);
+    }
+
+    @Override
+    void reset() {
+      super.reset();
+      offsets.reset();
+      data.reset();
+      offsets.putLE(0, 4);
+    }
+
+    @Override
+    void appendNull() {
+      offsets.putLE(data.size, 4);
+    }
+
+    @Override
+    void appendValue(@NotNull Object value) {
+      String text = value instanceof BigDecimal ? ((BigDecimal)value).toPlainString() : value.toString();
+      data.put(value instanceof byte[] ? (byte[])value : text.getBytes(StandardCharsets.UTF_8));
+      offsets.putLE(data.size, 4);
+    }
+
+    @Override
+    void collectBuffers(List<Buf> buffers) {
+      super.collectBuffers(buffers);
+      buffers.add(offsets);
+      buffers.add(data);
+    }
+  }
+}
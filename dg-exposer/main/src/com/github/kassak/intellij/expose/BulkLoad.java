@@ -0,0 +1,340 @@
+package com.github.kassak.intellij.expose;
+
+import com.github.kassak.intellij.expose.counterpart.DGCursor;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.intellij.database.dialects.DatabaseDialectEx;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.containers.ContainerUtil;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.kassak.intellij.expose.DataGripExposerService.badRequest;
+import static com.github.kassak.intellij.expose.DataGripExposerService.sendError;
+import static com.github.kassak.intellij.expose.DataGripExposerService.sendJson;
+
+/**
+ * Reads CSV or NDJSON request body batch by batch and inserts every batch with a single {@link DGCursor#executeBatch} request.
+ * Next batch is parsed only after the previous one is done, so at most one batch of rows is in memory.
+ */
+class BulkLoad {
+  private static final Logger LOG = Logger.getInstance(BulkLoad.class);
+  static final int BATCH_SIZE = 1000;
+
+  private final DGCursor myCursor;
+  private final FullHttpRequest myRequest;
+  private final ChannelHandlerContext myContext;
+  private final String myQuery;
+  private final RowSource mySource;
+  private final MyType[] myTypes;
+  private final int myBatchSize;
+  private final long myStart = System.nanoTime();
+  private long myRows;
+  private int myBatches;
+
+  private BulkLoad(@NotNull DGCursor cursor, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context,
+                   @NotNull String query, @NotNull RowSource source, @NotNull MyType[] types, int batchSize) {
+    myCursor = cursor;
+    myRequest = request;
+    myContext = context;
+    myQuery = query;
+    mySource = source;
+    myTypes = types;
+    myBatchSize = batchSize;
+  }
+
+  /**
+   * Parameters: {@code table}, {@code columns} as {@code target[:source],...}, {@code types} as {@link MyType} codes,
+   * {@code format} ({@code csv} or {@code ndjson}, otherwise guessed by content type), {@code header} for csv, {@code batch}.
+   * Table and target column names are quoted, so they are matched exactly, a table may be qualified as {@code schema.table}.
+   */
+  static String start(@NotNull DGCursor cursor, @NotNull DatabaseDialectEx dialect, @NotNull QueryStringDecoder urlDecoder,
+                      @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    Map<String, List<String>> parameters = urlDecoder.parameters();
+    try {
+      String table = ContainerUtil.getLastItem(parameters.get("table"));
+      if (StringUtil.isEmpty(table)) throw new IllegalArgumentException("table is not specified");
+      List<String> targets = ContainerUtil.newArrayList();
+      List<String> sources = ContainerUtil.newArrayList();
+      String columns = ContainerUtil.getLastItem(parameters.get("columns"));
+      for (String column : StringUtil.split(StringUtil.notNullize(columns), ",")) {
+        int idx = column.indexOf(':');
+        targets.add(column.substring(0, idx == -1 ? column.length() : idx).trim());
+        sources.add(column.substring(idx + 1).trim());
+      }
+      String format = ContainerUtil.getLastItem(parameters.get("format"));
+      if (format == null) {
+        String contentType = StringUtil.notNullize(request.headers().get(HttpHeaderNames.CONTENT_TYPE));
+        format = contentType.contains("json") ? "ndjson" : "csv";
+      }
+      Reader reader = new InputStreamReader(new ByteBufInputStream(request.content()), StandardCharsets.UTF_8);
+      RowSource source;
+      if ("csv".equals(format)) {
+        source = new CsvSource(reader, sources, Boolean.parseBoolean(ContainerUtil.getLastItem(parameters.get("header"))));
+      }
+      else if ("ndjson".equals(format)) {
+        if (sources.isEmpty()) throw new IllegalArgumentException("columns are required for ndjson");
+        source = new NdJsonSource(reader, sources);
+      }
+      else {
+        throw new IllegalArgumentException("Unsupported format: " + format);
+      }
+      if (targets.isEmpty()) targets.addAll(source.columns());
+      if (targets.isEmpty()) throw new IllegalArgumentException("columns are not specified");
+
+      String[] typeCodes = StringUtil.notNullize(ContainerUtil.getLastItem(parameters.get("types"))).split(",", -1);
+      MyType[] columnTypes = new MyType[targets.size()];
+      for (int i = 0; i < columnTypes.length && i < typeCodes.length; i++) {
+        String code = typeCodes[i].trim();
+        columnTypes[i] = code.isEmpty() ? null : MyType.getType(code);
+      }
+      String batch = ContainerUtil.getLastItem(parameters.get("batch"));
+      int batchSize = batch == null ? BATCH_SIZE : Integer.parseInt(batch);
+      if (batchSize <= 0) throw new IllegalArgumentException("Batch size should be positive");
+
+      List<String> quoted = ContainerUtil.newArrayList();
+      for (String target : targets) {
+        quoted.add(quoteIdentifier(dialect, target));
+      }
+      List<String> tableParts = ContainerUtil.newArrayList();
+      for (String part : table.split("\\.", -1)) {
+        tableParts.add(quoteIdentifier(dialect, part));
+      }
+      String query = "insert into " + StringUtil.join(tableParts, ".") + " (" + StringUtil.join(quoted, ", ") + ") values (" +
+                     StringUtil.join(Collections.nCopies(targets.size(), "?"), ", ") + ")";
+      request.retain();
+      new BulkLoad(cursor, request, context, query, source, columnTypes, batchSize).next();
+    }
+    catch (IllegalArgumentException e) {
+      Disposer.dispose(cursor);
+      return badRequest(e, request, context);
+    }
+    catch (Exception e) {
+      Disposer.dispose(cursor);
+      return sendError(e, request, context);
+    }
+    return null;
+  }
+
+  @NotNull
+  private static String quoteIdentifier(@NotNull DatabaseDialectEx dialect, @NotNull String name) {
+    if (name.trim().isEmpty()) throw new IllegalArgumentException("Empty identifier");
+    return dialect.quoteIdentifier(name);
+  }
+
+  private void next() {
+    List<List<Object>> batch;
+    try {
+      batch = readBatch();
+    }
+    catch (Exception e) {
+      fail(e);
+      return;
+    }
+    if (batch.isEmpty()) {
+      done();
+      return;
+    }
+    myCursor.executeBatch(myQuery, batch)
+      .onSuccess(counts -> {
+        myRows += batch.size();
+        myBatches++;
+        next();
+      })
+      .onError(this::fail);
+  }
+
+  @NotNull
+  private List<List<Object>> readBatch() throws IOException {
+    List<List<Object>> batch = ContainerUtil.newArrayListWithCapacity(myBatchSize);
+    while (batch.size() < myBatchSize) {
+      List<Object> row = mySource.next();
+      if (row == null) break;
+      for (int i = 0; i < row.size() && i < myTypes.length; i++) {
+        Object value = row.get(i);
+        if (myTypes[i] != null && value instanceof String) row.set(i, myTypes[i].parse((String)value));
+      }
+      batch.add(row);
+    }
+    return batch;
+  }
+
+  private void done() {
+    long nanos = Math.max(System.nanoTime() - myStart, 1);
+    sendJson(json -> {
+      json.beginObject();
+      json.name("rows").value(myRows);
+      json.name("batches").value(myBatches);
+      json.name("millis").value(nanos / 1_000_000);
+      json.name("rowsPerSecond").value(myRows * 1_000_000_000L / nanos);
+      json.endObject();
+    }, myRequest, myContext);
+    dispose();
+  }
+
+  private void fail(@NotNull Throwable e) {
+    LOG.warn(e);
+    sendError("Loaded " + myRows + " rows before failure: " + e.getMessage(), e, myRequest, myContext, null);
+    dispose();
+  }
+
+  private void dispose() {
+    Disposer.dispose(myCursor);
+    myRequest.release();
+  }
+
+  private interface RowSource {
+    @NotNull
+    List<String> columns() throws IOException;
+
+    @Nullable
+    List<Object> next() throws IOException;
+  }
+
+  private static class CsvSource implements RowSource {
+    private final PushbackReader myReader;
+    private final int[] myIndices;
+    private final List<String> myHeader;
+
+    CsvSource(@NotNull Reader reader, @NotNull List<String> sources, boolean header) throws IOException {
+      myReader = new PushbackReader(new BufferedReader(reader));
+      List<Object> first = header ? readRecord() : null;
+      myHeader = first == null ? Collections.emptyList() : ContainerUtil.map(first, String::valueOf);
+      myIndices = new int[header ? sources.size() : 0];
+      for (int i = 0; i < myIndices.length; i++) {
+        myIndices[i] = myHeader.indexOf(sources.get(i));
+        if (myIndices[i] == -1) throw new IllegalArgumentException("No column in header: " + sources.get(i));
+      }
+    }
+
+    @NotNull
+    @Override
+    public List<String> columns() {
+      return myHeader;
+    }
+
+    @Nullable
+    @Override
+    public List<Object> next() throws IOException {
+      List<Object> record = readRecord();
+      if (record == null || myIndices.length == 0) return record;
+      List<Object> row = ContainerUtil.newArrayListWithCapacity(myIndices.length);
+      for (int idx : myIndices) {
+        row.add(idx < record.size() ? record.get(idx) : null);
+      }
+      return row;
+    }
+
+    /**
+     * RFC 4180 record, unquoted empty field is null.
+     */
+    @Nullable
+    private List<Object> readRecord() throws IOException {
+      int c = myReader.read();
+      if (c == -1) return null;
+      List<Object> record = ContainerUtil.newArrayList();
+      StringBuilder sb = new StringBuilder();
+      boolean quoted = false;
+      while (true) {
+        if (c == '"') {
+          quoted = true;
+          while (true) {
+            c = myReader.read();
+            if (c == -1) throw new EOFException("Unterminated quoted field");
+            if (c == '"') {
+              c = myReader.read();
+              if (c != '"') break;
+            }
+            sb.append((char)c);
+          }
+        }
+        else {
+          while (c != -1 && c != ',' && c != '\n' && c != '\r' && c != '"') {
+            sb.append((char)c);
+            c = myReader.read();
+          }
+          if (c == '"') continue;
+        }
+        record.add(!quoted && sb.length() == 0 ? null : sb.toString());
+        sb.setLength(0);
+        quoted = false;
+        if (c != ',') break;
+        c = myReader.read();
+      }
+      if (c == '\r') {
+        c = myReader.read();
+        if (c != '\n' && c != -1) myReader.unread(c);
+      }
+      return record;
+    }
+  }
+
+  private static class NdJsonSource implements RowSource {
+    private final JsonReader myReader;
+    private final List<String> myKeys;
+
+    NdJsonSource(@NotNull Reader reader, @NotNull List<String> keys) {
+      myReader = new JsonReader(new BufferedReader(reader));
+      myReader.setLenient(true);
+      myKeys = keys;
+    }
+
+    @NotNull
+    @Override
+    public List<String> columns() {
+      return myKeys;
+    }
+
+    @Nullable
+    @Override
+    public List<Object> next() throws IOException {
+      if (myReader.peek() == JsonToken.END_DOCUMENT) return null;
+      Object[] row = new Object[myKeys.size()];
+      myReader.beginObject();
+      while (myReader.hasNext()) {
+        int idx = myKeys.indexOf(myReader.nextName());
+        if (idx == -1) myReader.skipValue();
+        else row[idx] = readValue();
+      }
+      myReader.endObject();
+      return ContainerUtil.newArrayList(row);
+    }
+
+    @Nullable
+    private Object readValue() throws IOException {
+      switch (myReader.peek()) {
+        case NULL:
+          myReader.nextNull();
+          return null;
+        case BOOLEAN:
+          return myReader.nextBoolean();
+        case NUMBER: {
+          String number = myReader.nextString();
+          try {
+            return Long.parseLong(number);
+          }
+          catch (NumberFormatException e) {
+            return Double.parseDouble(number);
+          }
+        }
+        case STRING:
+          return myReader.nextString();
+        default:
+          throw new IOException("Unexpected value: " + myReader.peek());
+      }
+    }
+  }
+}
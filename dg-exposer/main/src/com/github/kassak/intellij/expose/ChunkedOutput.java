@@ -0,0 +1,144 @@
+package com.github.kassak.intellij.expose;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.OutputStream;
+
+class ChunkedOutput extends OutputStream {
+  static final int CHUNK_SIZE = 16 * 1024;
+
+  private final Channel myChannel;
+  private final boolean myKeepAlive;
+  // status and headers, null once sent with the first chunk
+  private HttpResponse myHead;
+  private ByteBuf myBuffer;
+  private ChannelFuture myLastWrite;
+  private boolean myFinished;
+  private long myWritten;
+
+  ChunkedOutput(@NotNull HttpRequest request, @NotNull ChannelHandlerContext context, @NotNull String contentType,
+                @Nullable Compression compression) {
+    myChannel = context.channel();
+    myKeepAlive = HttpUtil.isKeepAlive(request);
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+    response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+    if (compression != null) response.headers().set(HttpHeaderNames.CONTENT_ENCODING, compression.name);
+    HttpUtil.setTransferEncodingChunked(response, true);
+    HttpUtil.setKeepAlive(response, myKeepAlive);
+    myHead = response;
+  }
+
+  @Override
+  public void write(int b) {
+    if (myFinished) return;
+    ensureBuffer().writeByte(b);
+    if (myBuffer.writableBytes() == 0) writeChunk();
+  }
+
+  @Override
+  public void write(@NotNull byte[] b, int off, int len) {
+    if (myFinished) return;
+    while (len > 0) {
+      ByteBuf buffer = ensureBuffer();
+      int n = Math.min(len, buffer.writableBytes());
+      buffer.writeBytes(b, off, n);
+      off += n;
+      len -= n;
+      if (buffer.writableBytes() == 0) writeChunk();
+    }
+  }
+
+  @Override
+  public void flush() {
+    if (myFinished) return;
+    writeChunk();
+    myChannel.flush();
+  }
+
+  boolean isActive() {
+    return myChannel.isActive();
+  }
+
+  boolean isWritable() {
+    return myChannel.isWritable();
+  }
+
+  /**
+   * @return whether the status is sent, so that a failure can't be reported with another response
+   */
+  boolean isCommitted() {
+    return myHead == null;
+  }
+
+  /**
+   * @return bytes of the body passed to the channel so far
+   */
+  long getWritten() {
+    return myWritten;
+  }
+
+  void execute(@NotNull Runnable action) {
+    myChannel.eventLoop().execute(action);
+  }
+
+  void whenWritable(@NotNull Runnable action) {
+    if (myLastWrite == null) action.run();
+    else myLastWrite.addListener(f -> action.run());
+  }
+
+  void finish() {
+    if (myFinished) return;
+    myFinished = true;
+    writeChunk();
+    ChannelFuture future = myChannel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+    if (!myKeepAlive) future.addListener(ChannelFutureListener.CLOSE);
+  }
+
+  /**
+   * Drops the output. Once the status is sent, the only way to report failure is to break the connection,
+   * before that the channel is left for another response.
+   */
+  void abort() {
+    if (myFinished) return;
+    myFinished = true;
+    if (myBuffer != null) {
+      myBuffer.release();
+      myBuffer = null;
+    }
+    if (isCommitted()) myChannel.close();
+  }
+
+  @Override
+  public void close() {
+    finish();
+  }
+
+  private ByteBuf ensureBuffer() {
+    if (myBuffer == null) myBuffer = myChannel.alloc().buffer(CHUNK_SIZE, CHUNK_SIZE);
+    return myBuffer;
+  }
+
+  private void writeChunk() {
+    if (myHead != null) {
+      myLastWrite = myChannel.write(myHead);
+      myHead = null;
+    }
+    if (myBuffer == null) return;
+    if (myBuffer.isReadable()) {
+      myWritten += myBuffer.readableBytes();
+      myLastWrite = myChannel.write(new DefaultHttpContent(myBuffer));
+    }
+    else {
+      myBuffer.release();
+    }
+    myBuffer = null;
+  }
+}
@@ -0,0 +1,117 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.openapi.util.registry.Registry;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Response content codings understood by the service, chosen from {@code Accept-Encoding}.
+ * Responses shorter than {@code dg.exposer.compression.threshold} bytes are sent as is.
+ * Compressed streams are flushed with {@link Deflater#SYNC_FLUSH}, so every chunk of a streamed fetch can be decoded on arrival.
+ */
+enum Compression {
+  GZIP("gzip") {
+    @NotNull
+    @Override
+    OutputStream wrap(@NotNull OutputStream out) throws IOException {
+      return new GZIPOutputStream(out, BUFFER_SIZE, true) {
+        {
+          def.setLevel(level());
+        }
+      };
+    }
+  },
+  DEFLATE("deflate") {
+    @NotNull
+    @Override
+    OutputStream wrap(@NotNull OutputStream out) {
+      Deflater deflater = new Deflater(level());
+      return new DeflaterOutputStream(out, deflater, BUFFER_SIZE, true) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          }
+          finally {
+            deflater.end();
+          }
+        }
+      };
+    }
+  };
+
+  private static final String LEVEL_PROP = "dg.exposer.compression.level";
+  private static final String THRESHOLD_PROP = "dg.exposer.compression.threshold";
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  final String name;
+
+  Compression(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Closing the returned stream closes {@code out} as well.
+   */
+  @NotNull
+  abstract OutputStream wrap(@NotNull OutputStream out) throws IOException;
+
+  static int level() {
+    return Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, Registry.intValue(LEVEL_PROP, Deflater.BEST_SPEED)));
+  }
+
+  static int threshold() {
+    return Registry.intValue(THRESHOLD_PROP, 1024);
+  }
+
+  /**
+   * @return the most preferred coding accepted by the client, {@code null} for identity
+   */
+  @Nullable
+  static Compression negotiate(@NotNull HttpRequest request) {
+    String accept = request.headers().get(HttpHeaderNames.ACCEPT_ENCODING);
+    if (accept == null || level() == Deflater.NO_COMPRESSION) return null;
+    Compression best = null;
+    double bestQ = 0;
+    for (String part : accept.split(",")) {
+      String[] coding = part.split(";");
+      double q = quality(coding);
+      Compression compression = byName(coding[0].trim());
+      if (compression != null && q > bestQ) {
+        best = compression;
+        bestQ = q;
+      }
+    }
+    return best;
+  }
+
+  @Nullable
+  private static Compression byName(@NotNull String name) {
+    for (Compression compression : values()) {
+      if (compression.name.equalsIgnoreCase(name)) return compression;
+    }
+    return null;
+  }
+
+  private static double quality(@NotNull String[] coding) {
+    for (int i = 1; i < coding.length; i++) {
+      String param = coding[i].trim();
+      if (!param.startsWith("q=")) continue;
+      try {
+        return Double.parseDouble(param.substring(2));
+      }
+      catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+    return 1;
+  }
+}
@@ -1,40 +1,57 @@
 package com.github.kassak.intellij.expose;
 
 import com.github.kassak.intellij.expose.counterpart.DGCursor;
+import com.github.kassak.intellij.expose.counterpart.Prefetch;
+import com.github.kassak.intellij.expose.counterpart.ResultCache;
 import com.google.gson.stream.JsonWriter;
 import com.intellij.database.DataBus;
 import com.intellij.database.SimpleRequestBroker;
 import com.intellij.database.console.JdbcEngine;
 import com.intellij.database.dataSource.LocalDataSource;
 import com.intellij.database.datagrid.DataRequest;
+import com.intellij.database.dialects.DatabaseDialectEx;
 import com.intellij.database.run.TxMarkerAuditor;
+import com.intellij.database.util.DbImplUtil;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.util.containers.ContainerUtil;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.concurrency.Promise;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.github.kassak.intellij.expose.DataGripExposerService.*;
 
 class ConnectionHandler implements DataRequest.OwnerEx, TxMarkerAuditor.TxMarkerHolder {
-  private final UUID myUuid;
+  private volatile UUID myUuid;
+  private final String myDataSourceId;
+  private final DatabaseDialectEx myDialect;
   private final JdbcEngine myEngine;
-  private final Map<String, CursorHandler> myCursors = ContainerUtil.newHashMap();
+  private final Map<UUID, CursorHandler> myCursors = new ConcurrentHashMap<>();
   private final SimpleRequestBroker myBroker;
-  private DataRequest.TxMarker myTxMarker = DataRequest.NONE;
+  private volatile DataRequest.TxMarker myTxMarker = DataRequest.NONE;
+  // statements which may change data, and how many of them were ended by the last commit or rollback
+  private final AtomicLong myWrites = new AtomicLong();
+  private final AtomicLong myWritesEnded = new AtomicLong();
+  private volatile long myLastAccess = System.currentTimeMillis();
+  private final AtomicInteger myRunning = new AtomicInteger();
 
   ConnectionHandler(@NotNull Project project, @NotNull LocalDataSource dataSource) {
     myUuid = UUID.randomUUID();
+    myDataSourceId = dataSource.getUniqueId();
+    myDialect = DbImplUtil.getDatabaseDialect(dataSource);
     myBroker = SimpleRequestBroker.newInstance(project, getDisplayName());
     myBroker.addAuditor(new TxMarkerAuditor(this));
     myEngine = createConnectionImpl(project, dataSource);
@@ -80,65 +97,109 @@ class ConnectionHandler implements DataRequest.OwnerEx, TxMarkerAuditor.TxMarker
     json.endObject();
   }
 
+  /**
+   * Called before a statement which may change data is submitted.
+   */
+  void written() {
+    myWrites.incrementAndGet();
+  }
+
+  /**
+   * Reads within an open transaction may see its uncommitted changes, so they are neither taken from the result cache
+   * nor shared through it.
+   * @return scope of the result cache, {@code null} while a transaction is open
+   */
+  @Nullable
+  String getCacheScope() {
+    if (myTxMarker != DataRequest.NONE || myWritesEnded.get() != myWrites.get()) return null;
+    return myDataSourceId;
+  }
+
+  private void endWrites(long writes) {
+    myWritesEnded.accumulateAndGet(writes, Math::max);
+  }
+
   @NotNull
   UUID getUuid() {
     return myUuid;
   }
 
-  JdbcEngine getConnection() {
-    return myEngine;
+  /**
+   * Gives the connection a new identity, so that previous user of a pooled connection can't reach it.
+   */
+  void renew() {
+    myUuid = UUID.randomUUID();
+  }
+
+  /**
+   * Closes all cursors and rolls back current transaction.
+   */
+  @NotNull
+  Promise<Void> reset() {
+    myLastAccess = System.currentTimeMillis();
+    for (UUID id : myCursors.keySet()) {
+      CursorHandler cursor = myCursors.remove(id);
+      if (cursor != null) Disposer.dispose(cursor);
+    }
+    DataRequest request = DataRequest.newTxRollback(this);
+    long writes = myWrites.get();
+    request.getPromise().onProcessed(e -> endWrites(writes));
+    myBroker.getDataProducer().processRequest(request);
+    return request.getPromise();
   }
 
-  String processConnection(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, int base) throws IOException {
-    if (equal(urlDecoder, base, "commit")) return request.method() == HttpMethod.POST ? processCommit(request, context) : badRequest(request, context);
-    if (equal(urlDecoder, base, "rollback")) return request.method() == HttpMethod.POST ? processRollback(request, context) : badRequest(request, context);
-    int next = proceedIfStartsWith(urlDecoder, base, "cursors/");
-    if (next != -1) return processCursors(urlDecoder, request, context, next);
-    return badRequest(request, context);
+  long getLastAccess() {
+    return myLastAccess;
   }
 
-  private String processCursors(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, int base) throws IOException {
-    if (isEnd(urlDecoder, base)) {
-      if (request.method() == HttpMethod.GET) return processDescCursors(request, context);
-      else if (request.method() == HttpMethod.POST) return processCreateCursor(request, context);
-      else return badRequest(request, context);
+  boolean isBusy() {
+    if (myRunning.get() > 0) return true;
+    for (CursorHandler cursor : getCursors()) {
+      if (cursor.isBusy()) return true;
     }
-    String cursorId = extractItem(urlDecoder, base);
-    if (cursorId != null) return processCursor(urlDecoder, request, context, base + cursorId.length() + 1, cursorId);
-    return badRequest(request, context);
+    return false;
   }
 
-  private String processCursor(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, int base, String cursorId) throws IOException {
-    if (isEnd(urlDecoder, base)) {
-      return request.method() == HttpMethod.DELETE ? processCloseCursor(request, context, cursorId) : badRequest(request, context);
-    }
-    CursorHandler handler;
-    synchronized (myCursors){
-      handler = myCursors.get(cursorId);
-    }
-    if (handler == null) return notFound(request, context);
-    return handler.processCursor(urlDecoder, request, context, base);
+  @NotNull
+  List<CursorHandler> getCursors() {
+    return ContainerUtil.newArrayList(myCursors.values());
   }
 
-  private String processCloseCursor(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, @NotNull String cursorId) throws IOException {
-    CursorHandler handler;
-    synchronized (myCursors) {
-      handler = myCursors.remove(cursorId);
-    }
-    if (handler == null) return notFound(request, context);
+  boolean closeCursor(@NotNull CursorHandler handler) {
+    if (!myCursors.remove(handler.getUuid(), handler)) return false;
     Disposer.dispose(handler);
+    return true;
+  }
+
+  @Nullable
+  CursorHandler findCursor(@NotNull String cursorId) {
+    UUID id = parseId(cursorId);
+    return id == null ? null : findCursor(id);
+  }
+
+  @Nullable
+  CursorHandler findCursor(@NotNull UUID cursorId) {
+    return myCursors.get(cursorId);
+  }
+
+  JdbcEngine getConnection() {
+    return myEngine;
+  }
+
+  void touch() {
+    myLastAccess = System.currentTimeMillis();
+  }
+
+  String processCloseCursor(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, @NotNull CursorHandler handler) {
+    if (!closeCursor(handler)) return notFound(request, context);
     return reportOk(request, context);
   }
 
-  private String processDescCursors(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
-    List<CursorHandler> cursors;
-    synchronized (myCursors) {
-      cursors = ContainerUtil.newArrayList(myCursors.values());
-    }
-    return sendJson(json -> descCursors(json, cursors), request, context);
+  String processDescCursors(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
+    return sendJson(json -> descCursors(json, myCursors.values()), request, context);
   }
 
-  private void descCursors(JsonWriter json, List<CursorHandler> cursors) throws IOException {
+  private void descCursors(JsonWriter json, Collection<CursorHandler> cursors) throws IOException {
     json.beginArray();
     for (CursorHandler cursor: cursors) {
       cursor.descCursor(json);
@@ -146,42 +207,72 @@ class ConnectionHandler implements DataRequest.OwnerEx, TxMarkerAuditor.TxMarker
     json.endArray();
   }
 
-  private String processCreateCursor(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
+  String processCreateCursor(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
+    Prefetch prefetch;
     try {
-      CursorHandler handler = createCursor();
+      prefetch = CursorHandler.parsePrefetch(urlDecoder);
+    }
+    catch (IllegalArgumentException e) {
+      return badRequest(e, request, context);
+    }
+    try {
+      CursorHandler handler = createCursor(prefetch == null ? Prefetch.getDefault() : prefetch);
       if (handler == null) return badRequest(request, context);
       sendJson(handler::descCursor, request, context);
       return null;
     }
-    catch (SQLException e) {
+    catch (SQLException | IllegalArgumentException e) {
       return sendError(e, request, context);
     }
   }
 
-  private CursorHandler createCursor() throws SQLException {
-    CursorHandler handler = new CursorHandler(new DGCursor(this, myEngine));
+  @NotNull
+  CursorHandler createCursor(@NotNull Prefetch prefetch) throws SQLException {
+    CursorHandler handler = new CursorHandler(new DGCursor(this, myEngine, prefetch), this);
     Disposer.register(this, handler);
-    synchronized (myCursors) {
-      myCursors.put(handler.getUuid().toString(), handler);
-    }
+    myCursors.put(handler.getUuid(), handler);
     return handler;
   }
 
 
-  private String processCommit(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
-    return processSimpleRequest(request, context, DataRequest.newTxCommit(this));
+  String processLoad(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    DGCursor cursor = new DGCursor(this, myEngine, Prefetch.fixed(1, 0));
+    Disposer.register(this, cursor);
+    written();
+    myRunning.incrementAndGet();
+    Disposer.register(cursor, myRunning::decrementAndGet);
+    return BulkLoad.start(cursor, myDialect, urlDecoder, request, context);
+  }
+
+  String processCommit(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    return processTxRequest(request, context, DataRequest.newTxCommit(this));
+  }
+
+  /**
+   * Cached results may have been read within the finished transaction or before its changes became visible.
+   */
+  @Nullable
+  private String processTxRequest(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, DataRequest req) {
+    long writes = myWrites.get();
+    req.getPromise().onProcessed(e -> {
+      endWrites(writes);
+      ResultCache.getInstance().invalidate(myDataSourceId);
+    });
+    return processSimpleRequest(request, context, req);
   }
 
   @Nullable
   private String processSimpleRequest(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, DataRequest req) {
+    myRunning.incrementAndGet();
+    req.getPromise().onProcessed(e -> myRunning.decrementAndGet());
     req.getPromise().onSuccess(e -> reportOk(request, context));
     req.getPromise().onError(e -> sendError(e, request, context, "O"));
     myBroker.getDataProducer().processRequest(req);
     return null;
   }
 
-  private String processRollback(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
-    return processSimpleRequest(request, context, DataRequest.newTxRollback(this));
+  String processRollback(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    return processTxRequest(request, context, DataRequest.newTxRollback(this));
   }
 
   @Override
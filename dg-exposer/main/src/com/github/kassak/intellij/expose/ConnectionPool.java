@@ -0,0 +1,191 @@
+package com.github.kassak.intellij.expose;
+
+import com.google.gson.stream.JsonWriter;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.concurrency.AsyncPromise;
+import org.jetbrains.concurrency.Promise;
+import org.jetbrains.concurrency.Promises;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Keeps physically connected {@link ConnectionHandler}s of a data source for reuse.
+ * Connections are reset when returned and validated when taken, new ones included, both with a rollback round trip.
+ */
+class ConnectionPool implements Disposable {
+  private static final Logger LOG = Logger.getInstance(ConnectionPool.class);
+
+  private final Supplier<ConnectionHandler> myFactory;
+  final int min;
+  final int max;
+  private final ArrayDeque<ConnectionHandler> myIdle = new ArrayDeque<>();
+  private int myTotal;
+  private int myCreated;
+  private int myReused;
+  private boolean myDisposed;
+
+  ConnectionPool(@NotNull Supplier<ConnectionHandler> factory, int min, int max) {
+    if (min < 0 || max <= 0 || min > max) throw new IllegalArgumentException("Invalid pool size: " + min + ".." + max);
+    myFactory = factory;
+    this.min = min;
+    this.max = max;
+  }
+
+  void warmUp() {
+    int count;
+    synchronized (this) {
+      count = Math.max(0, min - myTotal);
+      myTotal += count;
+    }
+    for (int i = 0; i < count; i++) {
+      ConnectionHandler handler;
+      try {
+        handler = create();
+      }
+      catch (RuntimeException e) {
+        LOG.warn("Cannot create pooled connection", e);
+        continue;
+      }
+      handler.reset()
+        .onSuccess(ignore -> release(handler))
+        .onError(e -> discard(handler, e));
+    }
+  }
+
+  @NotNull
+  Promise<ConnectionHandler> acquire() {
+    ConnectionHandler idle;
+    synchronized (this) {
+      if (myDisposed) return Promises.rejectedPromise("Connection pool is closed");
+      idle = myIdle.pollFirst();
+      if (idle == null) {
+        if (myTotal >= max) return Promises.rejectedPromise("Connection pool is exhausted: " + max + " connections in use");
+        myTotal++;
+      }
+      else {
+        myReused++;
+      }
+    }
+    ConnectionHandler handler;
+    try {
+      handler = idle == null ? create() : idle;
+    }
+    catch (RuntimeException e) {
+      return Promises.rejectedPromise(e);
+    }
+    AsyncPromise<ConnectionHandler> result = new AsyncPromise<>();
+    handler.reset()
+      .onSuccess(ignore -> result.setResult(handler))
+      .onError(e -> {
+        discard(handler, e);
+        // a stale idle connection is replaced, a new one which can't even roll back means the database is unavailable
+        if (idle != null) acquire().processed(result);
+        else result.setError(e);
+      });
+    return result;
+  }
+
+  private void release(@NotNull ConnectionHandler handler) {
+    synchronized (this) {
+      if (!myDisposed) {
+        myIdle.addLast(handler);
+        return;
+      }
+      myTotal--;
+    }
+    Disposer.dispose(handler);
+  }
+
+  /**
+   * Resets transaction and cursors of the connection and makes it available again.
+   */
+  void checkIn(@NotNull ConnectionHandler handler) {
+    handler.reset()
+      .onSuccess(ignore -> release(handler))
+      .onError(e -> discard(handler, e));
+  }
+
+  private void discard(@NotNull ConnectionHandler handler, @NotNull Throwable e) {
+    LOG.info("Discarding pooled connection: " + e.getMessage());
+    synchronized (this) {
+      myTotal--;
+    }
+    Disposer.dispose(handler);
+  }
+
+  /**
+   * Takes a slot counted in {@link #myTotal} by the caller, gives it back if the connection can't be created.
+   */
+  @NotNull
+  private ConnectionHandler create() {
+    ConnectionHandler handler;
+    try {
+      handler = myFactory.get();
+    }
+    catch (RuntimeException | Error e) {
+      synchronized (this) {
+        myTotal--;
+      }
+      throw e;
+    }
+    synchronized (this) {
+      myCreated++;
+    }
+    return handler;
+  }
+
+  /**
+   * Closes connections over {@link #min} which are idle since before the given time.
+   * @return number of closed connections
+   */
+  int trim(long idleSince) {
+    List<ConnectionHandler> closed = ContainerUtil.newArrayList();
+    synchronized (this) {
+      Iterator<ConnectionHandler> it = myIdle.iterator();
+      while (it.hasNext() && myTotal > min) {
+        ConnectionHandler handler = it.next();
+        if (handler.getLastAccess() >= idleSince) continue;
+        it.remove();
+        myTotal--;
+        closed.add(handler);
+      }
+    }
+    for (ConnectionHandler handler : closed) {
+      Disposer.dispose(handler);
+    }
+    return closed.size();
+  }
+
+  synchronized void describe(@NotNull JsonWriter json) throws IOException {
+    json.beginObject();
+    json.name("min").value(min);
+    json.name("max").value(max);
+    json.name("idle").value(myIdle.size());
+    json.name("active").value(myTotal - myIdle.size());
+    json.name("created").value(myCreated);
+    json.name("reused").value(myReused);
+    json.endObject();
+  }
+
+  @Override
+  public void dispose() {
+    List<ConnectionHandler> idle;
+    synchronized (this) {
+      myDisposed = true;
+      idle = ContainerUtil.newArrayList(myIdle);
+      myTotal -= myIdle.size();
+      myIdle.clear();
+    }
+    for (ConnectionHandler handler : idle) {
+      Disposer.dispose(handler);
+    }
+  }
+}
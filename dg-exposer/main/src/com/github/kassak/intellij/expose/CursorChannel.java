@@ -0,0 +1,302 @@
+package com.github.kassak.intellij.expose;
+
+import com.github.kassak.intellij.expose.counterpart.DGCursor;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.intellij.database.datagrid.DataConsumer;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.util.ExceptionUtil;
+import com.intellij.util.ThrowableConsumer;
+import com.intellij.util.containers.ContainerUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.websocketx.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * WebSocket bound to a cursor, rows are pushed to the client as soon as they are produced instead of being polled with {@code /fetch}.
+ * Client sends json commands:
+ * {@code {"op": "execute", "operation": ..., "parameters": [...], "cache": false}}, {@code {"op": "credit", "rows": N}}
+ * and {@code {"op": "nextSet"}}. Server answers with {@code {"type": "executed", "rowcount": ..., "rowcounts": [...], "columns": [...]}},
+ * {@code {"type": "nextSet", "more": ...}} or {@code {"type": "error", ...}} and pushes {@code {"type": "rows", "rows": [...]}},
+ * never more rows than were granted by credits. {@code {"type": "end"}} marks the end of the result set.
+ * All state is modified from the event loop of the channel. An open socket keeps the cursor from being reaped
+ * only while rows are being pushed, an idle one is closed together with the cursor.
+ */
+class CursorChannel extends SimpleChannelInboundHandler<WebSocketFrame> implements Disposable {
+  private static final Logger LOG = Logger.getInstance(CursorChannel.class);
+  private static final int MAX_MESSAGE = 16 * 1024 * 1024;
+  private static final byte[] ROWS_PREFIX = "{\"type\":\"rows\",\"rows\":".getBytes(StandardCharsets.UTF_8);
+
+  private final CursorHandler myHandler;
+  private final DGCursor myCursor;
+  private final WebSocketServerHandshaker myHandshaker;
+  private final Channel myChannel;
+  private volatile long myCredit;
+  private volatile boolean myFetching;
+  private volatile boolean myExhausted = true;
+  // incremented whenever rows being fetched belong to a replaced result
+  private int myGeneration;
+
+  private CursorChannel(@NotNull CursorHandler handler, @NotNull DGCursor cursor, @NotNull WebSocketServerHandshaker handshaker,
+                        @NotNull Channel channel) {
+    myHandler = handler;
+    myCursor = cursor;
+    myHandshaker = handshaker;
+    myChannel = channel;
+  }
+
+  /**
+   * Upgrades the connection of {@code request} to a WebSocket served by the cursor.
+   * @return {@code null} if the handshake is rejected
+   */
+  @Nullable
+  static CursorChannel open(@NotNull CursorHandler handler, @NotNull DGCursor cursor, @NotNull FullHttpRequest request,
+                            @NotNull ChannelHandlerContext context) {
+    String location = "ws://" + request.headers().get(HttpHeaderNames.HOST) + request.uri();
+    WebSocketServerHandshaker handshaker = new WebSocketServerHandshakerFactory(location, null, false, MAX_MESSAGE).newHandshaker(request);
+    Channel channel = context.channel();
+    if (handshaker == null) {
+      WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(channel);
+      return null;
+    }
+    CursorChannel socket = new CursorChannel(handler, cursor, handshaker, channel);
+    Disposer.register(handler, socket);
+    channel.pipeline().addLast(new WebSocketFrameAggregator(MAX_MESSAGE), socket);
+    handshaker.handshake(channel, request).addListener((ChannelFutureListener)f -> {
+      if (f.isSuccess()) return;
+      LOG.warn(f.cause());
+      f.channel().close();
+    });
+    return socket;
+  }
+
+  /**
+   * @return whether rows are being fetched or there are rows left to push and the client granted credits for them
+   */
+  boolean isBusy() {
+    return myFetching || !myExhausted && myCredit > 0;
+  }
+
+  @Override
+  protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) {
+    if (frame instanceof TextWebSocketFrame) command(((TextWebSocketFrame)frame).text());
+    else if (frame instanceof PingWebSocketFrame) myChannel.writeAndFlush(new PongWebSocketFrame(frame.content().retain()));
+    else if (frame instanceof CloseWebSocketFrame) myHandshaker.close(myChannel, (CloseWebSocketFrame)frame.retain());
+    else if (!(frame instanceof PongWebSocketFrame)) sendError("Only text frames are supported", null);
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    Disposer.dispose(this);
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+    LOG.warn(cause);
+    ctx.close();
+  }
+
+  private void command(@NotNull String text) {
+    myHandler.touch();
+    String op = null;
+    String query = null;
+    List<Object> params = ContainerUtil.newArrayList();
+    boolean cache = false;
+    long rows = 0;
+    try (JsonReader json = new JsonReader(new StringReader(text))) {
+      json.beginObject();
+      while (json.hasNext()) {
+        String name = json.nextName();
+        if ("op".equals(name)) op = json.nextString();
+        else if ("operation".equals(name)) query = json.nextString();
+        else if ("parameters".equals(name)) params = CursorHandler.parseParams(json);
+        else if ("cache".equals(name)) cache = json.nextBoolean();
+        else if ("rows".equals(name)) rows = json.nextLong();
+        else json.skipValue();
+      }
+      json.endObject();
+    }
+    catch (Exception e) {
+      sendError(e.getMessage(), e);
+      return;
+    }
+    if ("execute".equals(op)) execute(query, params, cache);
+    else if ("credit".equals(op)) credit(rows);
+    else if ("nextSet".equals(op)) nextSet();
+    else sendError("Unknown op: " + op, null);
+  }
+
+  private void execute(@Nullable String query, @NotNull List<Object> params, boolean cache) {
+    int generation = ++myGeneration;
+    myExhausted = true;
+    myHandler.execute(query, params, cache, null)
+      .onSuccess(counts -> inLoop(() -> {
+        if (generation != myGeneration) return;
+        long rowCount = counts.length == 0 ? myCursor.getRowCount() : CursorHandler.sum(counts);
+        send(json -> {
+          json.beginObject();
+          json.name("type").value("executed");
+          json.name("rowcount").value(rowCount);
+          json.name("rowcounts").beginArray();
+          for (int count : counts) {
+            json.value(count);
+          }
+          json.endArray();
+          json.name("columns");
+          myHandler.describe(json);
+          json.endObject();
+        });
+        myExhausted = false;
+        pump();
+      }))
+      .onError(e -> inLoop(() -> sendError(e)));
+  }
+
+  private void credit(long rows) {
+    if (rows < 0) {
+      sendError("Credit should not be negative", null);
+      return;
+    }
+    myCredit += rows;
+    pump();
+  }
+
+  private void nextSet() {
+    if (myFetching) {
+      sendError("Fetch is already in progress", null);
+      return;
+    }
+    int generation = ++myGeneration;
+    myExhausted = true;
+    myCursor.nextSet()
+      .onSuccess(more -> inLoop(() -> {
+        if (generation != myGeneration) return;
+        send(json -> {
+          json.beginObject();
+          json.name("type").value("nextSet");
+          json.name("more").value(more);
+          json.endObject();
+        });
+        myExhausted = !more;
+        pump();
+      }))
+      .onError(e -> inLoop(() -> sendError(e)));
+  }
+
+  private void pump() {
+    if (myFetching || myExhausted || myCredit <= 0 || !myChannel.isActive()) return;
+    myFetching = true;
+    int generation = myGeneration;
+    myCursor.fetchAvailable((int)Math.min(myCredit, FetchStream.WINDOW))
+      .onSuccess(rows -> inLoop(() -> fetched(rows, generation)))
+      .onError(e -> inLoop(() -> {
+        myFetching = false;
+        if (generation != myGeneration) return;
+        myExhausted = true;
+        sendError(e);
+      }));
+  }
+
+  private void fetched(@NotNull List<DataConsumer.Row> rows, int generation) {
+    myFetching = false;
+    myHandler.touch();
+    if (generation != myGeneration) {
+      pump();
+      return;
+    }
+    Throwable error = myCursor.fetchError();
+    if (error != null || rows.isEmpty()) {
+      myExhausted = true;
+      if (error != null) sendError(error);
+      else send(json -> json.beginObject().name("type").value("end").endObject());
+      return;
+    }
+    myCredit -= rows.size();
+    ChannelFuture write;
+    try {
+      write = sendRows(rows);
+    }
+    catch (IOException e) {
+      myExhausted = true;
+      sendError(e);
+      return;
+    }
+    if (myChannel.isWritable()) pump();
+    else write.addListener(f -> pump());
+  }
+
+  @NotNull
+  private ChannelFuture sendRows(@NotNull List<DataConsumer.Row> rows) throws IOException {
+    ByteBuf buffer = myChannel.alloc().buffer();
+    try (OutputStream out = new ByteBufOutputStream(buffer)) {
+      out.write(ROWS_PREFIX);
+      ResultWriter writer = new JsonResultWriter(out);
+      writer.begin(myCursor.getColumns());
+      writer.rows(rows);
+      writer.end();
+      out.write('}');
+    }
+    catch (IOException e) {
+      buffer.release();
+      throw e;
+    }
+    return myChannel.writeAndFlush(new TextWebSocketFrame(buffer));
+  }
+
+  private void sendError(@NotNull Throwable e) {
+    Throwable error = myCursor.fetchError();
+    if (error == null) error = e;
+    sendError(error.getMessage(), error);
+  }
+
+  private void sendError(@Nullable String msg, @Nullable Throwable e) {
+    send(json -> {
+      json.beginObject();
+      json.name("type").value("error");
+      json.name("error").value(msg);
+      if (e != null) json.name("trace").value(ExceptionUtil.getThrowableText(e));
+      json.endObject();
+    });
+  }
+
+  private void send(@NotNull ThrowableConsumer<JsonWriter, IOException> writer) {
+    StringWriter text = new StringWriter();
+    try (JsonWriter json = new JsonWriter(text)) {
+      writer.consume(json);
+    }
+    catch (IOException e) {
+      LOG.error(e);
+      return;
+    }
+    myChannel.writeAndFlush(new TextWebSocketFrame(text.toString()));
+  }
+
+  private void inLoop(@NotNull Runnable action) {
+    myChannel.eventLoop().execute(action);
+  }
+
+  @Override
+  public void dispose() {
+    myHandler.channelClosed(this);
+    if (myChannel.isActive()) myHandshaker.close(myChannel, new CloseWebSocketFrame());
+  }
+}
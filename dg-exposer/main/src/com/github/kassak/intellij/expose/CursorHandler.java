@@ -1,58 +1,56 @@
 package com.github.kassak.intellij.expose;
 
 import com.github.kassak.intellij.expose.counterpart.DGCursor;
+import com.github.kassak.intellij.expose.counterpart.Prefetch;
+import com.github.kassak.intellij.expose.counterpart.ResultCache;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 import com.intellij.database.datagrid.DataConsumer;
-import com.intellij.database.extractors.ObjectFormatter;
-import com.intellij.database.extractors.tz.TimeZonedTime;
-import com.intellij.database.run.ui.grid.editors.DataGridFormattersUtil;
-import com.intellij.database.util.JdbcUtil;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.util.Ref;
-import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.util.containers.ContainerUtil;
+import io.netty.buffer.ByteBufInputStream;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.concurrency.Promise;
 
 import java.io.IOException;
-import java.math.BigInteger;
-import java.sql.Time;
-import java.sql.Timestamp;
-import java.sql.Types;
-import java.time.LocalDateTime;
-import java.time.OffsetDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeFormatterBuilder;
-import java.time.format.DateTimeParseException;
-import java.time.temporal.ChronoField;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.github.kassak.intellij.expose.DataGripExposerService.*;
-import static java.time.temporal.ChronoField.*;
 
 class CursorHandler implements Disposable {
   private final UUID myUuid;
   private final DGCursor myCursor;
+  private final ConnectionHandler myConnection;
   private boolean myHasData;
+  private volatile long myLastAccess = System.currentTimeMillis();
+  private volatile boolean myExecuting;
+  // fetch streams in progress, the cursor is consumed between their windows too
+  private final AtomicInteger myStreams = new AtomicInteger();
+  private volatile CursorChannel myChannel;
 
-  CursorHandler(DGCursor cursor) {
+  CursorHandler(DGCursor cursor, ConnectionHandler connection) {
     myUuid = UUID.randomUUID();
     myCursor = cursor;
+    myConnection = connection;
     Disposer.register(this, myCursor);
   }
 
   void descCursor(JsonWriter json) throws IOException {
     json.beginObject();
     json.name("uuid").value(myUuid.toString());
+    json.name("rowcount").value(myCursor.getRowCount());
     json.endObject();
   }
 
@@ -61,71 +59,185 @@ class CursorHandler implements Disposable {
     return myUuid;
   }
 
-  String processCursor(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, int base) throws IOException {
-    if (equal(urlDecoder, base, "execute")) return request.method() == HttpMethod.POST ? processExecute(request, context) : badRequest(request, context);
-    if (equal(urlDecoder, base, "fetch")) return request.method() == HttpMethod.GET ? processFetch(urlDecoder, request, context) : badRequest(request, context);
-    if (equal(urlDecoder, base, "nextSet")) return request.method() == HttpMethod.POST ? processNextSet(request, context) : badRequest(request, context);
-    if (equal(urlDecoder, base, "describe")) return request.method() == HttpMethod.GET ? processDescribe(request, context) : badRequest(request, context);
-    return badRequest(request, context);
+  @NotNull
+  DGCursor getCursor() {
+    return myCursor;
+  }
+
+  long getLastAccess() {
+    return myLastAccess;
+  }
+
+  boolean isBusy() {
+    CursorChannel channel = myChannel;
+    return myExecuting || myStreams.get() > 0 || myCursor.isBusy() || channel != null && channel.isBusy();
   }
 
-  private String processExecute(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
+  void touch() {
+    myLastAccess = System.currentTimeMillis();
+  }
+
+  synchronized void channelClosed(@NotNull CursorChannel channel) {
+    if (myChannel == channel) myChannel = null;
+    touch();
+  }
+
+  long getBufferedBytes() {
+    return myCursor.getBufferedBytes();
+  }
+
+  String processExecute(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
+    ResultFormat format = ResultFormat.negotiate(urlDecoder, request);
+    if (format == null) return badRequest(request, context);
+    Prefetch prefetch;
+    try {
+      prefetch = parsePrefetch(urlDecoder);
+    }
+    catch (IllegalArgumentException e) {
+      return badRequest(e, request, context);
+    }
     Ref<String> query = Ref.create();
-    List<Object> params = ContainerUtil.newArrayList();
+    List<List<Object>> paramSets = ContainerUtil.newArrayList();
     try {
-      parseExecRequest(request, query, params);
+      parseExecRequest(request, query, paramSets, false);
     }
     catch (Exception e) {
       return sendError(e, request, context);
     }
-    Promise<Void> promise = myCursor.execute(query.get(), params);
+    boolean cache = Boolean.parseBoolean(ContainerUtil.getLastItem(urlDecoder.parameters().get("cache")));
+    Promise<int[]> promise = execute(query.get(), paramSets.get(0), cache, prefetch);
     promise.onError(e -> {
       if (!reportError(request, context)) {
         sendError(e, request, context);
       }
     });
-    promise.onSuccess(ignore -> sendJson(json -> {
-      json.beginObject();
-      json.name("rowcount").value(-1);//todo
-      json.endObject();
-    }, request, context));
+    promise.onSuccess(counts -> {
+      long rowCount = counts.length == 0 ? myCursor.getRowCount() : sum(counts);
+      if (format == ResultFormat.MSGPACK) {
+        sendMsgPack(out -> {
+          out.mapHeader(2).name("rowcount").value(rowCount);
+          out.name("rowcounts").arrayHeader(counts.length);
+          for (int count : counts) {
+            out.value(count);
+          }
+        }, request, context);
+      }
+      else {
+        sendJson(json -> {
+          json.beginObject();
+          json.name("rowcount").value(rowCount);
+          json.name("rowcounts").beginArray();
+          for (int count : counts) {
+            json.value(count);
+          }
+          json.endArray();
+          json.endObject();
+        }, request, context);
+      }
+    });
     return null;
   }
 
-//  private void storeResultSet() throws SQLException {
-//    myResultSet = myStatement.getResultSet();
-//    myHasData = true;
-//  }
+  /**
+   * @param prefetch window for this query only, {@code null} to keep the one of the cursor
+   */
+  @NotNull
+  Promise<int[]> execute(@Nullable String query, @NotNull List<Object> params, boolean cache, @Nullable Prefetch prefetch) {
+    if (query == null || !ResultCache.isCacheable(query)) myConnection.written();
+    Promise<int[]> promise = myCursor.execute(query, params, cache ? myConnection.getCacheScope() : null, prefetch);
+    myExecuting = true;
+    promise.onProcessed(ignore -> myExecuting = false);
+    return promise;
+  }
+
+  static long sum(int[] counts) {
+    long res = 0;
+    for (int count : counts) {
+      if (count < 0) return -1;
+      res += count;
+    }
+    return res;
+  }
+
+  String processExecuteBatch(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
+    ResultFormat format = ResultFormat.negotiate(urlDecoder, request);
+    if (format == null) return badRequest(request, context);
+    Ref<String> query = Ref.create();
+    List<List<Object>> paramSets = ContainerUtil.newArrayList();
+    try {
+      parseExecRequest(request, query, paramSets, true);
+    }
+    catch (Exception e) {
+      return sendError(e, request, context);
+    }
+    myConnection.written();
+    Promise<int[]> promise = myCursor.executeBatch(query.get(), paramSets);
+    myExecuting = true;
+    promise.onProcessed(ignore -> myExecuting = false);
+    promise.onError(e -> {
+      if (!reportError(request, context)) {
+        sendError(e, request, context);
+      }
+    });
+    promise.onSuccess(counts -> {
+      if (format == ResultFormat.MSGPACK) {
+        sendMsgPack(out -> {
+          out.mapHeader(1).name("rowcounts").arrayHeader(counts.length);
+          for (int count : counts) {
+            out.value(count);
+          }
+        }, request, context);
+      }
+      else {
+        sendJson(json -> {
+          json.beginObject();
+          json.name("rowcounts").beginArray();
+          for (int count : counts) {
+            json.value(count);
+          }
+          json.endArray();
+          json.endObject();
+        }, request, context);
+      }
+    });
+    return null;
+  }
 
-  private String processNextSet(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
+  String processNextSet(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
     if (reportError(request, context)) return null;
-//    if (!myCursor.haveQuery()) return badRequest(request, context);
-//    cleanupResultSet();
-//    try {
-//      boolean more = myStatement.getMoreResults();
-//      if (more) storeResultSet();
-//      return sendJson(json -> {
-//        json.beginObject();
-//        json.name("more").value(more);
-//        json.endObject();
-//      }, request, context);
-//    }
-//    catch (SQLException e) {
-//      return sendError(e, request, context);
-//    }
-    return sendJson(json -> {
-      json.beginObject();
-      json.name("more").value(false);
-      json.endObject();
-    }, request, context);
+    if (!myCursor.haveQuery()) return badRequest(request, context);
+    myCursor.nextSet()
+      .onSuccess(more -> sendJson(json -> {
+        json.beginObject();
+        json.name("more").value(more);
+        json.endObject();
+      }, request, context))
+      .onError(e -> sendError(e, request, context));
+    return null;
   }
 
-  private String processDescribe(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
+  String processDescribe(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
+    ResultFormat format = ResultFormat.negotiate(urlDecoder, request);
+    if (format == null) return badRequest(request, context);
     if (reportError(request, context)) return null;
+    if (format == ResultFormat.MSGPACK) return sendMsgPack(this::describe, request, context);
     return sendJson(this::describe, request, context);
   }
 
-  private void describe(JsonWriter json) throws IOException {
+  private void describe(MsgPackWriter out) throws IOException {
+    List<DataConsumer.Column> columns = myCursor.getColumns();
+    out.arrayHeader(columns == null ? 0 : columns.size());
+    if (columns == null) return;
+    for (DataConsumer.Column column : columns) {
+      out.mapHeader(4);
+      out.name("name").value(column.name);
+      out.name("type").value(MyType.getType(column).code);
+      out.name("precision").value(column.precision);
+      out.name("scale").value(column.scale);
+    }
+  }
+
+  void describe(JsonWriter json) throws IOException {
     List<DataConsumer.Column> columns = myCursor.getColumns();
     json.beginArray();
     if (columns != null) {
@@ -145,38 +257,108 @@ class CursorHandler implements Disposable {
     json.endObject();
   }
 
-  private String processFetch(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
+  String processFetch(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
     String limitStr = ContainerUtil.getLastItem(urlDecoder.parameters().get("limit"));
+    String offsetStr = ContainerUtil.getLastItem(urlDecoder.parameters().get("offset"));
     int limit = -1;
-    if (limitStr != null) {
-      try {
-        limit = Integer.parseInt(limitStr);
-      }
-      catch (NumberFormatException e) {
-        return sendError(e, request, context);
-      }
+    int offset = -1;
+    FetchFilter filter;
+    try {
+      if (limitStr != null) limit = Integer.parseInt(limitStr);
+      if (offsetStr != null) offset = Integer.parseInt(offsetStr);
+      if (offsetStr != null && offset < 0) throw new IllegalArgumentException("Offset should not be negative");
+      filter = FetchFilter.parse(urlDecoder);
     }
-    return processFetch(request, context, limit);
+    catch (IllegalArgumentException e) {
+      return sendError(e, request, context);
+    }
+    ResultFormat format = ResultFormat.negotiate(urlDecoder, request);
+    if (format == null) return badRequest(request, context);
+    if (filter == null || !filter.hasColumns()) return processFetch(request, context, offset, limit, format, filter);
+    List<DataConsumer.Column> columns = myCursor.getColumns();
+    if (columns != null) return processFiltered(request, context, offset, limit, format, filter, columns);
+    // a pending query: requested columns are checked against the first result set before any rows are taken
+    int fetchOffset = offset;
+    int fetchLimit = limit;
+    myCursor.columnsReady()
+      .onSuccess(ready -> processFiltered(request, context, fetchOffset, fetchLimit, format, filter, ready))
+      .onError(e -> sendError(e, request, context));
+    return null;
   }
 
-  private String processFetch(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, int limit) throws IOException {
+  private String processFiltered(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, int offset, int limit,
+                                 @NotNull ResultFormat format, @NotNull FetchFilter filter, @Nullable List<DataConsumer.Column> columns) {
     if (reportError(request, context)) return null;
-    if (!myCursor.haveQuery()) return badRequest(request, context);
     try {
-      return sendJson(json -> {
-        try {
-          serializeResultSet(json, myCursor.getColumns(), limit);
-        }
-        catch (InterruptedException e) {
-          throw new RuntimeException(e);
-        }
-      }, request, context);
+      filter.check(columns);
+      return processFetch(request, context, offset, limit, format, filter);
+    }
+    catch (IllegalArgumentException e) {
+      return badRequest(e, request, context);
     }
-    catch (RuntimeException e) {
+    catch (IOException e) {
       return sendError(e, request, context);
     }
   }
 
+  private String processFetch(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, int offset, int limit,
+                              @NotNull ResultFormat format, @Nullable FetchFilter filter) throws IOException {
+    if (reportError(request, context)) return null;
+    if (!myCursor.haveQuery()) return badRequest(request, context);
+    if (limit == -1 || limit > FetchStream.WINDOW) {
+      FetchStream stream = new FetchStream(myCursor, format, filter, request, context, myStreams::decrementAndGet);
+      myStreams.incrementAndGet();
+      stream.start(offset, limit);
+      return null;
+    }
+    long start = System.nanoTime();
+    myCursor.fetch(offset, limit)
+      .onSuccess(rows -> {
+        if (rows.size() < limit) {
+          myHasData = false;
+          if (reportError(request, context)) return;
+        }
+        sendResult(format, filter, rows, request, context, start);
+      })
+      .onError(e -> sendError(e, request, context));
+    return null;
+  }
+
+  private void sendResult(@NotNull ResultFormat format, @Nullable FetchFilter filter, @NotNull List<DataConsumer.Row> rows,
+                          @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, long start) {
+    try {
+      BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+      ResultWriter writer = format.createWriter(out);
+      if (filter != null) writer = filter.wrap(writer);
+      writer.begin(myCursor.getColumns());
+      writer.rows(rows);
+      writer.end();
+      long sent = sendBytes(out, format.contentType, request, context);
+      Metrics.getInstance().fetched(rows.size(), sent, System.nanoTime() - start);
+    }
+    catch (Exception e) {
+      sendError(e, request, context);
+    }
+  }
+
+  @Nullable
+  static Prefetch parsePrefetch(@NotNull QueryStringDecoder urlDecoder) {
+    return Prefetch.parse(ContainerUtil.getLastItem(urlDecoder.parameters().get("prefetch")),
+                          ContainerUtil.getLastItem(urlDecoder.parameters().get("prefetchBytes")));
+  }
+
+  String processChannel(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    if (!"websocket".equalsIgnoreCase(request.headers().get(HttpHeaderNames.UPGRADE))) return badRequest(request, context);
+    CursorChannel previous = myChannel;
+    // the cursor serves one channel at a time, the latest client wins
+    if (previous != null) Disposer.dispose(previous);
+    CursorChannel channel = CursorChannel.open(this, myCursor, request, context);
+    synchronized (this) {
+      myChannel = channel;
+    }
+    return null;
+  }
+
   private boolean reportError(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
     Throwable err = myCursor.fetchError();
     if (err == null) return false;
@@ -184,43 +366,30 @@ class CursorHandler implements Disposable {
     return true;
   }
 
-  private void serializeResultSet(JsonWriter json, List<DataConsumer.Column> columns, int limit) throws IOException, InterruptedException {
-    json.beginArray();
-    List<DataConsumer.Row> rows = myCursor.fetch(limit);
-    if (limit == -1 || rows.size() < limit) myHasData = false;
-    for (DataConsumer.Row row : rows) {
-      json.beginArray();
-      Object[] values = row.values;
-      for (int i = 0; i < values.length; i++) {
-        Object value = values[i];
-        DataConsumer.Column column = columns != null && i < columns.size() ? columns.get(i) : null;
-        serializeValue(json, column, value);
-      }
-      json.endArray();
-    }
-    json.endArray();
-  }
-
-  private void serializeValue(JsonWriter json, DataConsumer.Column column, Object value) throws IOException {
-    MyType type = value == null ? null : MyType.getType(column);
-    if (type == null) {
-      json.value(value == null ? null : value.toString());
+  static void parseExecRequest(@NotNull FullHttpRequest request, Ref<String> query, List<List<Object>> paramSets, boolean batch) throws IOException {
+    if (ResultFormat.byContentType(request.headers().get(HttpHeaderNames.CONTENT_TYPE)) == ResultFormat.MSGPACK) {
+      parseMsgPackExecRequest(request, query, paramSets, batch);
     }
     else {
-       type.serialize(json, value);
+      parseJsonExecRequest(request, query, paramSets, batch);
     }
+    if (!batch && paramSets.isEmpty()) paramSets.add(ContainerUtil.newArrayList());
   }
 
-  private void parseExecRequest(@NotNull FullHttpRequest request, Ref<String> query, List<Object> params) throws IOException {
+  private static void parseJsonExecRequest(@NotNull FullHttpRequest request, Ref<String> query, List<List<Object>> paramSets, boolean batch) throws IOException {
     readJson(json -> {
       json.beginObject();
       while (json.hasNext()) {
         String name = json.nextName();
         if ("operation".equals(name)) query.set(json.nextString());
         else if ("parameters".equals(name)) {
+          if (!batch) {
+            paramSets.add(parseParams(json));
+            continue;
+          }
           json.beginArray();
           while (json.hasNext()) {
-            params.add(parseParam(json));
+            paramSets.add(parseParams(json));
           }
           json.endArray();
         }
@@ -229,7 +398,48 @@ class CursorHandler implements Disposable {
     }, request);
   }
 
-  private Object parseParam(JsonReader json) throws IOException {
+  static List<Object> parseParams(JsonReader json) throws IOException {
+    List<Object> params = ContainerUtil.newArrayList();
+    json.beginArray();
+    while (json.hasNext()) {
+      params.add(parseParam(json));
+    }
+    json.endArray();
+    return params;
+  }
+
+  private static void parseMsgPackExecRequest(@NotNull FullHttpRequest request, Ref<String> query, List<List<Object>> paramSets, boolean batch) throws IOException {
+    Object body = new MsgPackReader(new ByteBufInputStream(request.content())).read();
+    if (!(body instanceof Map)) throw new IOException("Map expected");
+    for (Map.Entry<?, ?> entry : ((Map<?, ?>)body).entrySet()) {
+      if ("operation".equals(entry.getKey())) query.set((String)entry.getValue());
+      else if ("parameters".equals(entry.getKey())) {
+        if (!batch) {
+          paramSets.add(parseParams((List<?>)entry.getValue()));
+          continue;
+        }
+        for (Object params : (List<?>)entry.getValue()) {
+          paramSets.add(parseParams((List<?>)params));
+        }
+      }
+    }
+  }
+
+  private static List<Object> parseParams(List<?> list) {
+    return ContainerUtil.map(list, CursorHandler::parseParam);
+  }
+
+  private static Object parseParam(Object param) {
+    if (param instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>)param;
+      Object value = map.get("value");
+      return parseParam(value == null ? null : value.toString(), MyType.getType((String)map.get("type")));
+    }
+    if (param instanceof Long && (Long)param == ((Long)param).intValue()) return ((Long)param).intValue();
+    return param;
+  }
+
+  private static Object parseParam(JsonReader json) throws IOException {
     String type = null;
     String val = null;
     json.beginObject();
@@ -244,13 +454,13 @@ class CursorHandler implements Disposable {
     return parseParam(val, MyType.getType(type));
   }
 
-  private String getOptString(JsonReader json) throws IOException {
+  private static String getOptString(JsonReader json) throws IOException {
     if (json.peek() != JsonToken.NULL) return json.nextString();
     json.nextNull();
     return null;
   }
 
-  private Object parseParam(String val, MyType type) {
+  private static Object parseParam(String val, MyType type) {
     if (type == null || val == null) return val;
     return type.parse(val);
   }
@@ -258,163 +468,4 @@ class CursorHandler implements Disposable {
   @Override
   public void dispose() {
   }
-
-  private enum MyType {
-    INT("I") {
-      @Override
-      Object parse(String val) {
-        try {
-          return Integer.parseInt(val);
-        }
-        catch (NumberFormatException e) {
-          try {
-            return new BigInteger(val);
-          }
-          catch (NumberFormatException e2) {
-            return val;
-          }
-        }
-      }
-    },
-    BOOL("1") {
-      @Override
-      Object parse(String val) {
-        try {
-          return Integer.parseInt(val) == 1;
-        }
-        catch (NumberFormatException e) {
-          return val;
-        }
-      }
-
-      @Override
-      public void serialize(JsonWriter json, Object val) throws IOException {
-        if (val instanceof Boolean) {
-          json.value((Boolean)val ? "1" : "0");
-          return;
-        }
-        super.serialize(json, val);
-      }
-    },
-    NUM("N") {
-      @Override
-      Object parse(String val) {
-        boolean fl = StringUtil.containsAnyChar(val, ".,ef");
-        try {
-          return fl ? Double.parseDouble(val) : Integer.parseInt(val);
-        }
-        catch (NumberFormatException e) {
-          return val;
-        }
-      }
-    },
-    STR("S"),
-    DATE("D") {
-      @Override
-      Object parse(String val) {
-        return parseDate(DATE_FORMATTER, val);
-      }
-    },
-    TIME("T") {
-      @Override
-      Object parse(String val) {
-        return parseDate(TIME_FORMATTER, val);
-      }
-
-      @Override
-      public void serialize(JsonWriter json, Object val) throws IOException {
-//        if (val instanceof TimeZonedTime) {
-//          OffsetDateTime odt = DataGridFormattersUtil.fromTimestamp((TimeZonedTime) val);
-//          json.value(DATE_TIME_FORMATTER.format(odt));
-//          return;
-//        }
-        super.serialize(json, val);
-      }
-    },
-    DATETIME("d") {
-      @Override
-      Object parse(String val) {
-        return parseDate(DATE_TIME_FORMATTER, val);
-      }
-
-      @Override
-      public void serialize(JsonWriter json, Object val) throws IOException {
-        if (val instanceof Timestamp) {
-          OffsetDateTime odt = DataGridFormattersUtil.fromTimestamp((Timestamp) val);
-          json.value(DATE_TIME_FORMATTER.format(odt));
-          return;
-        }
-        super.serialize(json, val);
-      }
-    },
-    BIN("b");
-
-    final String code;
-
-    MyType(String code) {
-      this.code = code;
-    }
-
-    static MyType getType(DataConsumer.Column column) {
-      int type = column.type;
-      if (type == Types.BIGINT || type == Types.INTEGER || type == Types.SMALLINT) return INT;
-      if (ObjectFormatter.isBooleanColumn(column)) return BOOL;
-      if (JdbcUtil.isNumberType(type) || type == Types.REAL) return NUM;
-      if (JdbcUtil.isStringType(type)) return STR;
-      if (type == Types.DATE) return DATE;
-      if (type == Types.TIME) return TIME;
-      if (JdbcUtil.isDateTimeType(type)) return DATETIME;
-      return BIN;
-    }
-
-    static MyType getType(@Nullable String code) {
-      for (MyType type : MyType.values()) {
-        if (type.code.equals(code)) return type;
-      }
-      throw new AssertionError("unknown " + code);
-    }
-
-    Object parse(String val) {
-      return val;
-    }
-
-    private static final DateTimeFormatter FRAC_FORMATTER = new DateTimeFormatterBuilder()
-//      .appendLiteral('.')
-      .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9,true)
-      .parseStrict()
-      .toFormatter();
-    private static final DateTimeFormatter TIME_FORMATTER = new DateTimeFormatterBuilder()
-      .appendValue(HOUR_OF_DAY, 2)
-      .appendLiteral(':')
-      .appendValue(MINUTE_OF_HOUR, 2)
-      .optionalStart()
-      .appendLiteral(':')
-      .appendValue(SECOND_OF_MINUTE, 2)
-      .appendOptional(FRAC_FORMATTER)
-      .toFormatter();
-    private static final DateTimeFormatter DATE_FORMATTER = new DateTimeFormatterBuilder()
-      .append(DateTimeFormatter.ISO_LOCAL_DATE)
-      .parseStrict()
-      .toFormatter();
-    private static final DateTimeFormatter DATE_TIME_FORMATTER = new DateTimeFormatterBuilder()
-      .append(DATE_FORMATTER)
-      .appendLiteral(' ')
-      .append(TIME_FORMATTER)
-      .toFormatter();
-
-
-    @Nullable
-    protected Object parseDate(DateTimeFormatter fmt, String val) {
-      try {
-        return LocalDateTime.parse(val, fmt);
-      }
-      catch (DateTimeParseException e) {
-        return val;
-      }
-    }
-
-    public void serialize(JsonWriter json, Object val) throws IOException {
-      json.value(val.toString());
-    }
-  }
 }
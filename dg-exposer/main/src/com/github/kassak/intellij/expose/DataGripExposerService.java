@@ -1,5 +1,6 @@
 package com.github.kassak.intellij.expose;
 
+import com.github.kassak.intellij.expose.counterpart.ResultCache;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 import com.intellij.database.dataSource.DataSourceStorage;
@@ -19,12 +20,14 @@ import com.intellij.openapi.project.ProjectManager;
 import com.intellij.openapi.project.ProjectManagerListener;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.registry.Registry;
-import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.util.ExceptionUtil;
 import com.intellij.util.ThrowableConsumer;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.JBIterable;
 import com.intellij.util.messages.MessageBusConnection;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import org.jetbrains.annotations.NotNull;
@@ -33,16 +36,19 @@ import org.jetbrains.ide.RestService;
 
 import javax.swing.event.HyperlinkEvent;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
 
 public class DataGripExposerService extends RestService {
   private static final Logger LOG = Logger.getInstance(DataGripExposerService.class);
   private static final String SERVICE_NAME = "database";
-  private static final String SERVICE_PREFIX = "/" + PREFIX + "/" + SERVICE_NAME + "/";
+  static final String SERVICE_PREFIX = "/" + PREFIX + "/" + SERVICE_NAME + "/";
   private static final NotificationGroup NOTIFICATION_GROUP = NotificationGroup.balloonGroup("DataGrip Exposer");
   private static final String REQUESTS_PROP = "ide.rest.api.requests.per.minute";
 
   public DataGripExposerService() {
     checkRequests();
+    Reaper.getInstance();
   }
 
   @NotNull
@@ -59,30 +65,42 @@ public class DataGripExposerService extends RestService {
   @Nullable
   @Override
   public String execute(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
-    assert startsWith(urlDecoder, 0, SERVICE_PREFIX);
-    int base = SERVICE_PREFIX.length();
-    int next = proceedIfStartsWith(urlDecoder, base, "dataSources/");
-    if (next != -1) return processDataSources(urlDecoder, request, context, next);
-    return badRequest(request, context);
+    assert urlDecoder.path().startsWith(SERVICE_PREFIX);
+    return ROUTES.dispatch(urlDecoder, request, context, SERVICE_PREFIX.length());
   }
 
-  private String processDataSources(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, int base) throws IOException {
-    if (isEnd(urlDecoder, base)) {
-      if (request.method() == HttpMethod.GET) {
-        return ProjectHandler.processDescAllDataSources(request, context);
-      }
-      else if (request.method() == HttpMethod.POST) {
-        Project project = getAllProjects().first(); //todo:
-        return ProjectHandler.getInstance(project).processCreateDataSource(request, context);
-      }
-      else return badRequest(request, context);
-    }
-    String dataSourceId = extractItem(urlDecoder, base);
-    if (dataSourceId != null) {
-      return ProjectHandler.processDataSource(urlDecoder, request, context, base + dataSourceId.length() + 1, dataSourceId);
-    }
-    return badRequest(request, context);
-  }
+  private static final String CONNECTION = "dataSources/{dataSource}/connections/{connection}/";
+  private static final String CURSOR = CONNECTION + "cursors/{cursor}/";
+
+  static final Router ROUTES = new Router()
+    .get("resultCache", (m, u, r, c) -> sendJson(ResultCache.getInstance()::describe, r, c))
+    .get("reaper", (m, u, r, c) -> sendJson(Reaper.getInstance()::describe, r, c))
+    .get("metrics", (m, u, r, c) -> Metrics.getInstance().process(u, r, c))
+    .get("dataSources/", (m, u, r, c) -> ProjectHandler.processDescAllDataSources(r, c))
+    .post("dataSources/", (m, u, r, c) -> ProjectHandler.getInstance(getAllProjects().first()).processCreateDataSource(r, c)) //todo: project
+    .get("dataSources/{dataSource}/", (m, u, r, c) -> DataSourceHandler.descDataSource(r, c, m.dataSource))
+    .delete("dataSources/{dataSource}/", (m, u, r, c) -> m.project.deleteDataSource(r, c, m.dataSource))
+    .get("dataSources/{dataSource}/pool", (m, u, r, c) -> m.dataSourceHandler().processDescPool(r, c))
+    .post("dataSources/{dataSource}/pool", (m, u, r, c) -> m.dataSourceHandler().processCreatePool(u, r, c))
+    .delete("dataSources/{dataSource}/pool", (m, u, r, c) -> m.dataSourceHandler().processDeletePool(r, c))
+    .get("dataSources/{dataSource}/connections/", (m, u, r, c) -> m.dataSourceHandler().processDescConnections(r, c))
+    .post("dataSources/{dataSource}/connections/", (m, u, r, c) -> m.dataSourceHandler().processCreateConnection(r, c))
+    .get(CONNECTION, (m, u, r, c) -> sendJson(m.connection::descConnection, r, c))
+    .delete(CONNECTION, (m, u, r, c) -> m.dataSourceHandler().processCloseConnection(r, c, m.connection))
+    .post(CONNECTION + "commit", (m, u, r, c) -> m.connection.processCommit(r, c))
+    .post(CONNECTION + "rollback", (m, u, r, c) -> m.connection.processRollback(r, c))
+    .post(CONNECTION + "load", (m, u, r, c) -> m.connection.processLoad(u, r, c))
+    .post(CONNECTION + "pipeline", (m, u, r, c) -> Pipeline.start(m.connection, r, c))
+    .get(CONNECTION + "cursors/", (m, u, r, c) -> m.connection.processDescCursors(r, c))
+    .post(CONNECTION + "cursors/", (m, u, r, c) -> m.connection.processCreateCursor(u, r, c))
+    .get(CURSOR, (m, u, r, c) -> sendJson(m.cursor::descCursor, r, c))
+    .delete(CURSOR, (m, u, r, c) -> m.connection.processCloseCursor(r, c, m.cursor))
+    .post(CURSOR + "execute", (m, u, r, c) -> m.cursor.processExecute(u, r, c))
+    .post(CURSOR + "executeBatch", (m, u, r, c) -> m.cursor.processExecuteBatch(u, r, c))
+    .get(CURSOR + "fetch", (m, u, r, c) -> m.cursor.processFetch(u, r, c))
+    .post(CURSOR + "nextSet", (m, u, r, c) -> m.cursor.processNextSet(r, c))
+    .get(CURSOR + "describe", (m, u, r, c) -> m.cursor.processDescribe(u, r, c))
+    .get(CURSOR + "channel", (m, u, r, c) -> m.cursor.processChannel(r, c));
 
   @NotNull
   static JBIterable<LocalDataSource> getAllDataSources() {
@@ -116,7 +134,8 @@ public class DataGripExposerService extends RestService {
       try (JsonWriter json = createJsonWriter(byteOut)) {
         writer.consume(json);
       }
-      send(byteOut, request, context);
+      if (compressionFor(byteOut, request) != null) sendBytes(byteOut, "application/json", request, context);
+      else send(byteOut, request, context);
     }
     catch (Exception e) {
       LOG.error(e);
@@ -125,6 +144,66 @@ public class DataGripExposerService extends RestService {
     return null;
   }
 
+  static String sendMsgPack(@NotNull ThrowableConsumer<MsgPackWriter, IOException> writer, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    try {
+      BufferExposingByteArrayOutputStream byteOut = new BufferExposingByteArrayOutputStream();
+      writer.consume(new MsgPackWriter(byteOut));
+      sendBytes(byteOut, ResultFormat.MSGPACK.contentType, request, context);
+    }
+    catch (Exception e) {
+      LOG.error(e);
+      sendStatus(HttpResponseStatus.INTERNAL_SERVER_ERROR, HttpUtil.isKeepAlive(request), context.channel());
+    }
+    return null;
+  }
+
+  /**
+   * @return size of the response body as sent
+   */
+  static long sendBytes(@NotNull BufferExposingByteArrayOutputStream byteOut, @NotNull String contentType, @NotNull HttpRequest request, @NotNull ChannelHandlerContext context) {
+    return sendBytes(byteOut, contentType, HttpResponseStatus.OK, request, context);
+  }
+
+  static long sendBytes(@NotNull BufferExposingByteArrayOutputStream byteOut, @NotNull String contentType, @NotNull HttpResponseStatus status,
+                        @NotNull HttpRequest request, @NotNull ChannelHandlerContext context) {
+    Compression compression = compressionFor(byteOut, request);
+    if (compression != null) {
+      try {
+        byteOut = compress(byteOut, compression);
+      }
+      catch (IOException e) {
+        LOG.warn(e);
+        compression = null;
+      }
+    }
+    FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+                                                            Unpooled.wrappedBuffer(byteOut.getInternalBuffer(), 0, byteOut.size()));
+    response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+    response.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+    if (compression != null) response.headers().set(HttpHeaderNames.CONTENT_ENCODING, compression.name);
+    HttpUtil.setContentLength(response, byteOut.size());
+    boolean keepAlive = HttpUtil.isKeepAlive(request);
+    HttpUtil.setKeepAlive(response, keepAlive);
+    ChannelFuture future = context.channel().writeAndFlush(response);
+    if (!keepAlive) future.addListener(ChannelFutureListener.CLOSE);
+    return byteOut.size();
+  }
+
+  @Nullable
+  private static Compression compressionFor(@NotNull BufferExposingByteArrayOutputStream byteOut, @NotNull HttpRequest request) {
+    return byteOut.size() < Compression.threshold() ? null : Compression.negotiate(request);
+  }
+
+  @NotNull
+  private static BufferExposingByteArrayOutputStream compress(@NotNull BufferExposingByteArrayOutputStream byteOut,
+                                                              @NotNull Compression compression) throws IOException {
+    BufferExposingByteArrayOutputStream compressed = new BufferExposingByteArrayOutputStream(byteOut.size() / 4 + 64);
+    try (OutputStream out = compression.wrap(compressed)) {
+      out.write(byteOut.getInternalBuffer(), 0, byteOut.size());
+    }
+    return compressed;
+  }
+
   static String reportOk(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
     return sendJson(jsonWriter -> {
       jsonWriter.beginObject();
@@ -142,6 +221,26 @@ public class DataGripExposerService extends RestService {
     return null;
   }
 
+  /**
+   * Bad request with the reason as {@code {"error": ...}}.
+   */
+  static String badRequest(@NotNull Throwable e, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    try {
+      BufferExposingByteArrayOutputStream byteOut = new BufferExposingByteArrayOutputStream();
+      try (JsonWriter json = createJsonWriter(byteOut)) {
+        json.beginObject();
+        json.name("error").value(e.getMessage());
+        json.endObject();
+      }
+      sendBytes(byteOut, "application/json", HttpResponseStatus.BAD_REQUEST, request, context);
+      return null;
+    }
+    catch (IOException ex) {
+      LOG.error(ex);
+      return badRequest(request, context);
+    }
+  }
+
   static String sendError(@NotNull Throwable e, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, @Nullable String kind) {
     return sendError(e.getMessage(), e, request, context, kind);
   }
@@ -160,26 +259,17 @@ public class DataGripExposerService extends RestService {
     }, request, context);
   }
 
-  static boolean isEnd(@NotNull QueryStringDecoder urlDecoder, int base) {
-    return urlDecoder.path().length() == base;
-  }
-
-  static int proceedIfStartsWith(@NotNull QueryStringDecoder urlDecoder, int offs, String frag) {
-    return startsWith(urlDecoder, offs, frag) ? offs + frag.length() : -1;
-  }
-
-  private static boolean startsWith(@NotNull QueryStringDecoder urlDecoder, int offs, String frag) {
-    return StringUtil.startsWith(urlDecoder.path(), offs, frag);
-  }
-
-  static boolean equal(@NotNull QueryStringDecoder urlDecoder, int offs, String frag) {
-    return urlDecoder.path().length() == offs + frag.length() && startsWith(urlDecoder, offs, frag);
-  }
-
+  /**
+   * Registry key of a connection or cursor id, {@code null} if the id can't belong to any.
+   */
   @Nullable
-  static String extractItem(@NotNull QueryStringDecoder urlDecoder, int offs) {
-    int i = urlDecoder.path().indexOf('/', offs);
-    return i != -1 ? urlDecoder.path().substring(offs, i) : null;
+  static UUID parseId(@NotNull String id) {
+    try {
+      return UUID.fromString(id);
+    }
+    catch (IllegalArgumentException e) {
+      return null;
+    }
   }
 
 
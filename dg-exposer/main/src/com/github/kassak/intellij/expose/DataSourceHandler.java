@@ -16,23 +16,28 @@ import com.intellij.openapi.util.Disposer;
 import com.intellij.util.containers.ContainerUtil;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.github.kassak.intellij.expose.DataGripExposerService.*;
 
 class DataSourceHandler implements Disposable {
   private final Project myProject;
   private final LocalDataSource myDataSource;
-  private final Map<String, ConnectionHandler> myConnections = ContainerUtil.newHashMap();
+  private final Map<UUID, ConnectionHandler> myConnections = new ConcurrentHashMap<>();
+  // filled before the connection is registered, so whoever unregisters it finds its pool
+  private final Map<ConnectionHandler, ConnectionPool> myPooled = new ConcurrentHashMap<>();
+  private ConnectionPool myPool;
 
   public DataSourceHandler(@NotNull Project project, @NotNull LocalDataSource dataSource) {
     myProject = project;
@@ -72,34 +77,69 @@ class DataSourceHandler implements Disposable {
     json.endObject();
   }
 
-  String processConnections(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, int base) throws IOException {
-    if (isEnd(urlDecoder, base)) {
-      if (request.method() == HttpMethod.GET) return processDescConnections(request, context);
-      else if (request.method() == HttpMethod.POST) return processCreateConnection(request, context);
-      else return badRequest(request, context);
-    }
-    String connectionId = extractItem(urlDecoder, base);
-    if (connectionId != null) return processConnection(urlDecoder, request, context, base + connectionId.length() + 1, connectionId);
-    return badRequest(request, context);
+  String processDescPool(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    ConnectionPool pool = getPool();
+    if (pool == null) return notFound(request, context);
+    return sendJson(pool::describe, request, context);
+  }
+
+  String processDeletePool(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    setPool(null);
+    return reportOk(request, context);
   }
 
-  private String processConnection(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, int base, @NotNull String connectionId) throws IOException {
-    if (isEnd(urlDecoder, base)) {
-      return request.method() == HttpMethod.DELETE ? processCloseConnection(request, context, connectionId) : badRequest(request, context);
+  String processCreatePool(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    ConnectionPool pool;
+    try {
+      String min = ContainerUtil.getLastItem(urlDecoder.parameters().get("min"));
+      String max = ContainerUtil.getLastItem(urlDecoder.parameters().get("max"));
+      int minSize = min == null ? 0 : Integer.parseInt(min);
+      int maxSize = max == null ? Math.max(minSize, 8) : Integer.parseInt(max);
+      pool = getPool();
+      if (pool == null || pool.min != minSize || pool.max != maxSize) {
+        pool = new ConnectionPool(this::createConnectionHandler, minSize, maxSize);
+        setPool(pool);
+      }
     }
-    ConnectionHandler handler;
-    synchronized (myConnections) {
-      handler = myConnections.get(connectionId);
+    catch (Exception e) {
+      return sendError(e, request, context);
     }
-    if (handler == null) return notFound(request, context);
-    return handler.processConnection(urlDecoder, request, context, base);
+    pool.warmUp();
+    return sendJson(pool::describe, request, context);
+  }
+
+  @Nullable
+  private synchronized ConnectionPool getPool() {
+    return myPool;
+  }
+
+  private void setPool(@Nullable ConnectionPool pool) {
+    ConnectionPool prev;
+    synchronized (this) {
+      prev = myPool;
+      myPool = pool;
+    }
+    if (pool != null) Disposer.register(this, pool);
+    if (prev != null) Disposer.dispose(prev);
   }
 
   static String descDataSource(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, @NotNull LocalDataSource dataSource) {
     return sendJson(json -> descDataSource(json, dataSource), request, context);
   }
 
-  private String processCreateConnection(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+  String processCreateConnection(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    ConnectionPool pool = getPool();
+    if (pool != null) {
+      pool.acquire()
+        .onSuccess(handler -> {
+          handler.renew();
+          myPooled.put(handler, pool);
+          myConnections.put(handler.getUuid(), handler);
+          sendJson(handler::descConnection, request, context);
+        })
+        .onError(e -> sendError(e, request, context, "O"));
+      return null;
+    }
     try {
       ConnectionHandler handler = createConnection();
       if (handler == null) return badRequest(request, context);
@@ -112,33 +152,51 @@ class DataSourceHandler implements Disposable {
   }
 
   private ConnectionHandler createConnection() {
+    ConnectionHandler handler = createConnectionHandler();
+    myConnections.put(handler.getUuid(), handler);
+    return handler;
+  }
+
+  @NotNull
+  private ConnectionHandler createConnectionHandler() {
     ConnectionHandler handler = new ConnectionHandler(getAnyProjects(), myDataSource);
     Disposer.register(this, handler);
-    synchronized (myConnections) {
-      myConnections.put(handler.getUuid().toString(), handler);
-    }
     return handler;
   }
 
-  private String processCloseConnection(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, @NotNull String connectionId) {
-    ConnectionHandler handler;
-    synchronized (myConnections) {
-      handler = myConnections.remove(connectionId);
-    }
-    if (handler == null) return notFound(request, context);
-    Disposer.dispose(handler);
+  String processCloseConnection(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, @NotNull ConnectionHandler handler) {
+    if (!closeConnection(handler)) return notFound(request, context);
     return reportOk(request, context);
   }
 
-  private String processDescConnections(FullHttpRequest request, ChannelHandlerContext context) {
-    List<ConnectionHandler> connections;
-    synchronized (myConnections) {
-      connections = ContainerUtil.newArrayList(myConnections.values());
-    }
-    return sendJson(json -> descConnections(json, connections), request, context);
+  boolean closeConnection(@NotNull ConnectionHandler handler) {
+    if (!myConnections.remove(handler.getUuid(), handler)) return false;
+    ConnectionPool pool = myPooled.remove(handler);
+    if (pool != null) pool.checkIn(handler);
+    else Disposer.dispose(handler);
+    return true;
+  }
+
+  @Nullable
+  ConnectionHandler findConnection(@NotNull UUID connectionId) {
+    return myConnections.get(connectionId);
+  }
+
+  @NotNull
+  List<ConnectionHandler> getConnections() {
+    return ContainerUtil.newArrayList(myConnections.values());
+  }
+
+  int trimPool(long idleSince) {
+    ConnectionPool pool = getPool();
+    return pool == null ? 0 : pool.trim(idleSince);
+  }
+
+  String processDescConnections(FullHttpRequest request, ChannelHandlerContext context) {
+    return sendJson(json -> descConnections(json, myConnections.values()), request, context);
   }
 
-  private void descConnections(JsonWriter json, List<ConnectionHandler> connections) throws IOException {
+  private void descConnections(JsonWriter json, Collection<ConnectionHandler> connections) throws IOException {
     json.beginArray();
     for (ConnectionHandler connection: connections) {
       connection.descConnection(json);
@@ -0,0 +1,110 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.database.dataSource.DataSourceStorage;
+import com.intellij.database.dataSource.LocalDataSource;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.project.ProjectManagerListener;
+import com.intellij.util.messages.MessageBusConnection;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.github.kassak.intellij.expose.DataGripExposerService.getAllProjects;
+
+/**
+ * Data sources of the application and of open projects by id, so that a request resolves its data source with a single lookup.
+ * Kept up to date by {@link DataSourceStorage#TOPIC} of every storage and by projects being opened and closed,
+ * so an id missing from the index is unknown and costs no walk over the storages.
+ */
+public class DataSourceIndex implements Disposable {
+  private final Map<String, Entry> myEntries = new ConcurrentHashMap<>();
+  private final Set<Project> myProjects = ConcurrentHashMap.newKeySet();
+
+  public static DataSourceIndex getInstance() {
+    return ServiceManager.getService(DataSourceIndex.class);
+  }
+
+  public DataSourceIndex() {
+    MessageBusConnection connection = ApplicationManager.getApplication().getMessageBus().connect(this);
+    connection.subscribe(DataSourceStorage.TOPIC, new Listener(null));
+    connection.subscribe(ProjectManager.TOPIC, new ProjectManagerListener() {
+      @Override
+      public void projectOpened(@NotNull Project project) {
+        watch(project);
+      }
+
+      @Override
+      public void projectClosed(@NotNull Project project) {
+        myProjects.remove(project);
+        myEntries.values().removeIf(e -> e.project == project);
+      }
+    });
+    for (LocalDataSource dataSource : DataSourceStorage.getStorage().getDataSources()) {
+      add(null, dataSource);
+    }
+    for (Project project : getAllProjects()) {
+      watch(project);
+    }
+  }
+
+  private void watch(@NotNull Project project) {
+    if (!myProjects.add(project)) return;
+    project.getMessageBus().connect(project).subscribe(DataSourceStorage.TOPIC, new Listener(project));
+    for (LocalDataSource dataSource : DataSourceStorage.getProjectStorage(project).getDataSources()) {
+      add(project, dataSource);
+    }
+  }
+
+  private void add(@Nullable Project project, @NotNull LocalDataSource dataSource) {
+    // application storage events reach project subscribers as well
+    Project owner = dataSource.isGlobal() ? null : project;
+    myEntries.put(dataSource.getUniqueId(), new Entry(owner, dataSource));
+  }
+
+  @Nullable
+  Entry find(@NotNull String id) {
+    return myEntries.get(id);
+  }
+
+  @Override
+  public void dispose() {
+    myEntries.clear();
+    myProjects.clear();
+  }
+
+  static class Entry {
+    @Nullable
+    final Project project;
+    final LocalDataSource dataSource;
+
+    Entry(@Nullable Project project, @NotNull LocalDataSource dataSource) {
+      this.project = project;
+      this.dataSource = dataSource;
+    }
+  }
+
+  private class Listener implements DataSourceStorage.Listener {
+    private final Project myProject;
+
+    Listener(@Nullable Project project) {
+      myProject = project;
+    }
+
+    @Override
+    public void dataSourceAdded(@NotNull LocalDataSource dataSource) {
+      add(myProject, dataSource);
+    }
+
+    @Override
+    public void dataSourceRemoved(@NotNull LocalDataSource dataSource) {
+      myEntries.remove(dataSource.getUniqueId());
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.database.datagrid.DataConsumer;
+import com.intellij.util.containers.ContainerUtil;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Column subset and row sampling requested by {@code /fetch}: {@code columns} as names or indices,
+ * {@code every} to keep every Nth fetched row, {@code sample} to keep K rows chosen uniformly from all fetched ones.
+ * Other values never reach the {@link ResultWriter}.
+ */
+class FetchFilter {
+  @Nullable
+  private final List<String> myColumns;
+  private final int myEvery;
+  private final int mySample;
+
+  private FetchFilter(@Nullable List<String> columns, int every, int sample) {
+    myColumns = columns;
+    myEvery = every;
+    mySample = sample;
+  }
+
+  /**
+   * @return {@code null} if neither projection nor sampling is requested
+   */
+  @Nullable
+  static FetchFilter parse(@NotNull QueryStringDecoder urlDecoder) {
+    Map<String, List<String>> parameters = urlDecoder.parameters();
+    String columns = ContainerUtil.getLastItem(parameters.get("columns"));
+    String every = ContainerUtil.getLastItem(parameters.get("every"));
+    String sample = ContainerUtil.getLastItem(parameters.get("sample"));
+    if (columns == null && every == null && sample == null) return null;
+    int n = every == null ? 1 : Integer.parseInt(every);
+    int k = sample == null ? -1 : Integer.parseInt(sample);
+    if (n <= 0) throw new IllegalArgumentException("every should be positive");
+    if (sample != null && k < 0) throw new IllegalArgumentException("sample should not be negative");
+    List<String> names = columns == null ? null : ContainerUtil.map(Arrays.asList(columns.split(",", -1)), String::trim);
+    return new FetchFilter(names, n, k);
+  }
+
+  boolean hasColumns() {
+    return myColumns != null;
+  }
+
+  /**
+   * Fails early if requested columns are not in the result, before any rows are taken from the cursor.
+   */
+  void check(@Nullable List<DataConsumer.Column> columns) {
+    resolve(columns);
+  }
+
+  @NotNull
+  ResultWriter wrap(@NotNull ResultWriter writer) {
+    return new Writer(writer);
+  }
+
+  @Nullable
+  private int[] resolve(@Nullable List<DataConsumer.Column> columns) {
+    if (myColumns == null) return null;
+    if (columns == null) throw new IllegalArgumentException("No result set");
+    int[] indices = new int[myColumns.size()];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = find(columns, myColumns.get(i));
+    }
+    return indices;
+  }
+
+  private static int find(@NotNull List<DataConsumer.Column> columns, @NotNull String name) {
+    for (int i = 0; i < columns.size(); i++) {
+      if (name.equals(columns.get(i).name)) return i;
+    }
+    for (int i = 0; i < columns.size(); i++) {
+      if (name.equalsIgnoreCase(columns.get(i).name)) return i;
+    }
+    if (!name.isEmpty() && name.chars().allMatch(Character::isDigit)) {
+      int idx = Integer.parseInt(name);
+      if (idx < columns.size()) return idx;
+    }
+    throw new IllegalArgumentException("No such column: " + name);
+  }
+
+  private class Writer implements ResultWriter {
+    private final ResultWriter myDelegate;
+    private int[] myIndices;
+    private long mySeen;
+    // reservoir of sampled rows with their positions in the stream
+    private final DataConsumer.Row[] myReservoir = mySample > 0 ? new DataConsumer.Row[mySample] : null;
+    private final long[] myPositions = mySample > 0 ? new long[mySample] : null;
+
+    Writer(@NotNull ResultWriter delegate) {
+      myDelegate = delegate;
+    }
+
+    @Override
+    public void begin(@Nullable List<DataConsumer.Column> columns) throws IOException {
+      myIndices = resolve(columns);
+      if (myIndices == null || columns == null) {
+        myDelegate.begin(columns);
+        return;
+      }
+      List<DataConsumer.Column> projected = ContainerUtil.newArrayListWithCapacity(myIndices.length);
+      for (int idx : myIndices) {
+        projected.add(columns.get(idx));
+      }
+      myDelegate.begin(projected);
+    }
+
+    @Override
+    public void rows(@NotNull List<DataConsumer.Row> rows) throws IOException {
+      List<DataConsumer.Row> res = ContainerUtil.newArrayList();
+      for (DataConsumer.Row row : rows) {
+        long position = mySeen++;
+        if (position % myEvery != 0) continue;
+        if (mySample == -1) res.add(project(row));
+        else if (mySample > 0) offer(row, position / myEvery);
+      }
+      if (!res.isEmpty()) myDelegate.rows(res);
+    }
+
+    /**
+     * Algorithm R: {@code n}-th row replaces a random sampled one with probability K/(n+1).
+     */
+    private void offer(@NotNull DataConsumer.Row row, long n) {
+      int slot = n < mySample ? (int)n : (int)ThreadLocalRandom.current().nextLong(n + 1);
+      if (slot >= mySample) return;
+      myReservoir[slot] = project(row);
+      myPositions[slot] = n;
+    }
+
+    @NotNull
+    private DataConsumer.Row project(@NotNull DataConsumer.Row row) {
+      if (myIndices == null) return row;
+      Object[] values = new Object[myIndices.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = myIndices[i] < row.values.length ? row.values[myIndices[i]] : null;
+      }
+      return DataConsumer.Row.create(row.rowNum, values);
+    }
+
+    @Override
+    public void end() throws IOException {
+      if (myReservoir != null) {
+        int count = (int)Math.min(mySample, (mySeen + myEvery - 1) / myEvery);
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+          order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(myPositions[a], myPositions[b]));
+        myDelegate.rows(ContainerUtil.map(Arrays.asList(order), i -> myReservoir[i]));
+      }
+      myDelegate.end();
+    }
+
+    @Override
+    public void flush() throws IOException {
+      myDelegate.flush();
+    }
+  }
+}
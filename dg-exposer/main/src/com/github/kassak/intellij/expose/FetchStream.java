@@ -0,0 +1,127 @@
+package com.github.kassak.intellij.expose;
+
+import com.github.kassak.intellij.expose.counterpart.DGCursor;
+import com.intellij.database.datagrid.DataConsumer;
+import com.intellij.openapi.diagnostic.Logger;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import static com.github.kassak.intellij.expose.DataGripExposerService.sendError;
+
+class FetchStream {
+  private static final Logger LOG = Logger.getInstance(FetchStream.class);
+  static final int WINDOW = 500;
+
+  private final DGCursor myCursor;
+  private final FullHttpRequest myRequest;
+  private final ChannelHandlerContext myContext;
+  private final ChunkedOutput myOut;
+  // compressing stream over myOut, or myOut itself
+  private final OutputStream mySink;
+  private final ResultWriter myWriter;
+  private final Runnable myOnDone;
+  private boolean myStarted;
+  private boolean myDone;
+  private int myOffset;
+  private int myRemaining;
+  private long myStart;
+  private long myRows;
+
+  /**
+   * @param onDone called once the stream is finished or aborted
+   */
+  FetchStream(@NotNull DGCursor cursor, @NotNull ResultFormat format, @Nullable FetchFilter filter,
+              @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, @NotNull Runnable onDone) throws IOException {
+    myCursor = cursor;
+    myRequest = request;
+    myContext = context;
+    myOnDone = onDone;
+    Compression compression = Compression.negotiate(request);
+    myOut = new ChunkedOutput(request, context, format.contentType, compression);
+    mySink = compression == null ? myOut : compression.wrap(myOut);
+    ResultWriter writer = format.createWriter(mySink);
+    myWriter = filter == null ? writer : filter.wrap(writer);
+  }
+
+  void start(int offset, int limit) {
+    myOffset = offset;
+    myRemaining = limit;
+    myStart = System.nanoTime();
+    proceed();
+  }
+
+  private void proceed() {
+    if (!myOut.isActive()) {
+      abort();
+      return;
+    }
+    int window = myRemaining == -1 ? WINDOW : Math.min(WINDOW, myRemaining);
+    int offset = myOffset;
+    myOffset = -1;
+    myCursor.fetch(offset, window)
+      .onSuccess(rows -> myOut.execute(() -> write(rows, window)))
+      .onError(e -> myOut.execute(() -> fail(e)));
+  }
+
+  private void write(@NotNull List<DataConsumer.Row> rows, int window) {
+    try {
+      if (!myStarted) {
+        myStarted = true;
+        myWriter.begin(myCursor.getColumns());
+      }
+      myWriter.rows(rows);
+      myRows += rows.size();
+      if (myRemaining != -1) myRemaining -= rows.size();
+      if (rows.size() < window || myRemaining == 0) {
+        // a failed query may end with a short window, it must not look like the end of the result
+        Throwable error = myCursor.fetchError();
+        if (error != null) {
+          fail(error);
+          return;
+        }
+        myWriter.end();
+        mySink.close();
+        Metrics.getInstance().fetched(myRows, myOut.getWritten(), System.nanoTime() - myStart);
+        done();
+        return;
+      }
+      myWriter.flush();
+      if (myOut.isWritable()) proceed();
+      else myOut.whenWritable(this::proceed);
+    }
+    catch (Exception e) {
+      fail(e);
+    }
+  }
+
+  private void fail(@NotNull Throwable e) {
+    boolean committed = myOut.isCommitted();
+    abort();
+    // until the first chunk the client can get the error like from a buffered fetch
+    if (committed) LOG.warn(e);
+    else sendError(e, myRequest, myContext);
+  }
+
+  private void abort() {
+    myOut.abort();
+    try {
+      // releases the compressor, its output is dropped by the aborted stream
+      mySink.close();
+    }
+    catch (IOException ignored) {
+    }
+    done();
+  }
+
+  private void done() {
+    if (myDone) return;
+    myDone = true;
+    myOnDone.run();
+  }
+}
@@ -0,0 +1,163 @@
+package com.github.kassak.intellij.expose;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal flatbuffers builder, just enough to encode Arrow IPC metadata.
+ * Like the reference implementation, it fills the buffer from the end, so offsets are counted from the end too.
+ */
+class FlatBufferBuilder {
+  private byte[] myBuf = new byte[256];
+  private int mySpace = myBuf.length;
+  private int myMinAlign = 1;
+  private int[] myVTable;
+  private int myObjectStart;
+
+  int offset() {
+    return myBuf.length - mySpace;
+  }
+
+  void addByte(byte v) {
+    prep(1, 0);
+    myBuf[--mySpace] = v;
+  }
+
+  void addShort(short v) {
+    prep(2, 0);
+    putLE(v, 2);
+  }
+
+  void addInt(int v) {
+    prep(4, 0);
+    putLE(v, 4);
+  }
+
+  void addLong(long v) {
+    prep(8, 0);
+    putLE(v, 8);
+  }
+
+  void addOffset(int off) {
+    prep(4, 0);
+    putLE(offset() - off + 4, 4);
+  }
+
+  int createString(@NotNull String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    prep(4, bytes.length + 1);
+    myBuf[--mySpace] = 0;
+    mySpace -= bytes.length;
+    System.arraycopy(bytes, 0, myBuf, mySpace, bytes.length);
+    putLE(bytes.length, 4);
+    return offset();
+  }
+
+  void startVector(int elemSize, int count, int alignment) {
+    prep(4, elemSize * count);
+    prep(alignment, elemSize * count);
+  }
+
+  int endVector(int count) {
+    ensureSpace(4);
+    putLE(count, 4);
+    return offset();
+  }
+
+  int createOffsetVector(@NotNull int[] offsets) {
+    startVector(4, offsets.length, 4);
+    for (int i = offsets.length - 1; i >= 0; i--) {
+      addOffset(offsets[i]);
+    }
+    return endVector(offsets.length);
+  }
+
+  void startTable(int fields) {
+    myVTable = new int[fields];
+    myObjectStart = offset();
+  }
+
+  void addByte(int slot, byte v) {
+    addByte(v);
+    myVTable[slot] = offset();
+  }
+
+  void addBoolean(int slot, boolean v) {
+    addByte(slot, (byte)(v ? 1 : 0));
+  }
+
+  void addShort(int slot, short v) {
+    addShort(v);
+    myVTable[slot] = offset();
+  }
+
+  void addInt(int slot, int v) {
+    addInt(v);
+    myVTable[slot] = offset();
+  }
+
+  void addLong(int slot, long v) {
+    addLong(v);
+    myVTable[slot] = offset();
+  }
+
+  void addOffset(int slot, int off) {
+    addOffset(off);
+    myVTable[slot] = offset();
+  }
+
+  int endTable() {
+    addInt(0);
+    int object = offset();
+    for (int i = myVTable.length - 1; i >= 0; i--) {
+      addShort((short)(myVTable[i] != 0 ? object - myVTable[i] : 0));
+    }
+    addShort((short)(object - myObjectStart));
+    addShort((short)((myVTable.length + 2) * 2));
+    int vtable = offset();
+    int pos = myBuf.length - object;
+    int soffset = vtable - object;
+    for (int i = 0; i < 4; i++) {
+      myBuf[pos + i] = (byte)(soffset >>> (8 * i));
+    }
+    myVTable = null;
+    return object;
+  }
+
+  @NotNull
+  byte[] finish(int root) {
+    prep(Math.max(myMinAlign, 8), 4);
+    addOffset(root);
+    int size = offset();
+    byte[] res = new byte[(size + 7) & ~7];
+    System.arraycopy(myBuf, mySpace, res, 0, size);
+    return res;
+  }
+
+  private void prep(int size, int additional) {
+    if (size > myMinAlign) myMinAlign = size;
+    int pad = (-(offset() + additional)) & (size - 1);
+    ensureSpace(pad + size + additional);
+    for (int i = 0; i < pad; i++) {
+      myBuf[--mySpace] = 0;
+    }
+  }
+
+  private void ensureSpace(int n) {
+    if (mySpace >= n) return;
+    int used = offset();
+    int capacity = Math.max(myBuf.length * 2, used + n);
+    byte[] buf = new byte[capacity];
+    System.arraycopy(myBuf, mySpace, buf, capacity - used, used);
+    myBuf = buf;
+    mySpace = capacity - used;
+  }
+
+  private void putLE(long v, int size) {
+    mySpace -= size;
+    for (int i = 0; i < size; i++) {
+      myBuf[mySpace + i] = (byte)(v >>> (8 * i));
+    }
+  }
+}
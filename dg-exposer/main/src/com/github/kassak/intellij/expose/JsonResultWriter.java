@@ -0,0 +1,183 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.database.datagrid.DataConsumer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes rows as json arrays of strings, the same way {@link com.google.gson.stream.JsonWriter} would.
+ * Column encoders are chosen once per result, so rows are written without resolving types of cells,
+ * integers and strings are copied to the output buffer without intermediate objects.
+ */
+class JsonResultWriter implements ResultWriter {
+  private static final ColumnEncoder GENERIC = (out, value) -> out.string(value.toString());
+
+  private final Output myOut;
+  private ColumnEncoder[] myEncoders = new ColumnEncoder[0];
+  private boolean myFirstRow = true;
+
+  JsonResultWriter(@NotNull OutputStream out) {
+    myOut = new Output(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public void begin(@Nullable List<DataConsumer.Column> columns) throws IOException {
+    myEncoders = new ColumnEncoder[columns == null ? 0 : columns.size()];
+    for (int i = 0; i < myEncoders.length; i++) {
+      myEncoders[i] = encoder(MyType.getType(columns.get(i)));
+    }
+    myOut.raw('[');
+  }
+
+  @NotNull
+  private static ColumnEncoder encoder(@NotNull MyType type) {
+    switch (type) {
+      case INT:
+      case NUM:
+        return (out, value) -> {
+          if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            out.integer(((Number)value).longValue());
+          }
+          else {
+            out.string(type.format(value));
+          }
+        };
+      case STR:
+        return (out, value) -> out.string(value instanceof String ? (String)value : type.format(value));
+      case BOOL:
+      case DATETIME:
+        return (out, value) -> out.string(type.format(value));
+      default:
+        return GENERIC;
+    }
+  }
+
+  @Override
+  public void rows(@NotNull List<DataConsumer.Row> rows) throws IOException {
+    Output out = myOut;
+    ColumnEncoder[] encoders = myEncoders;
+    for (DataConsumer.Row row : rows) {
+      if (!myFirstRow) out.raw(',');
+      myFirstRow = false;
+      out.raw('[');
+      Object[] values = row.values;
+      for (int i = 0; i < values.length; i++) {
+        if (i > 0) out.raw(',');
+        Object value = values[i];
+        if (value == null) out.raw("null");
+        else (i < encoders.length ? encoders[i] : GENERIC).write(out, value);
+      }
+      out.raw(']');
+    }
+  }
+
+  @Override
+  public void end() throws IOException {
+    myOut.raw(']');
+    myOut.flush();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    myOut.flush();
+  }
+
+  private interface ColumnEncoder {
+    void write(@NotNull Output out, @NotNull Object value) throws IOException;
+  }
+
+  /**
+   * Buffered character output with json string escaping.
+   */
+  private static class Output {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private final Writer myWriter;
+    private final char[] myBuffer = new char[8192];
+    private int mySize;
+
+    Output(@NotNull Writer writer) {
+      myWriter = writer;
+    }
+
+    void raw(char c) throws IOException {
+      if (mySize == myBuffer.length) drain();
+      myBuffer[mySize++] = c;
+    }
+
+    void raw(@NotNull String s) throws IOException {
+      for (int i = 0; i < s.length(); i++) {
+        raw(s.charAt(i));
+      }
+    }
+
+    /**
+     * Quoted decimal representation, same as {@link Long#toString(long)}.
+     */
+    void integer(long value) throws IOException {
+      if (value == Long.MIN_VALUE) {
+        string(Long.toString(value));
+        return;
+      }
+      if (myBuffer.length - mySize < 22) drain();
+      myBuffer[mySize++] = '"';
+      if (value < 0) {
+        myBuffer[mySize++] = '-';
+        value = -value;
+      }
+      int digits = 1;
+      for (long v = value; v >= 10; v /= 10) digits++;
+      int end = mySize + digits;
+      for (int i = end - 1; i >= mySize; i--) {
+        myBuffer[i] = (char)('0' + value % 10);
+        value /= 10;
+      }
+      mySize = end;
+      myBuffer[mySize++] = '"';
+    }
+
+    void string(@NotNull String s) throws IOException {
+      raw('"');
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+          raw(c);
+          continue;
+        }
+        raw('\\');
+        switch (c) {
+          case '"': raw('"'); break;
+          case '\\': raw('\\'); break;
+          case '\t': raw('t'); break;
+          case '\b': raw('b'); break;
+          case '\n': raw('n'); break;
+          case '\r': raw('r'); break;
+          case '\f': raw('f'); break;
+          default:
+            raw('u');
+            raw(HEX[c >> 12 & 0xf]);
+            raw(HEX[c >> 8 & 0xf]);
+            raw(HEX[c >> 4 & 0xf]);
+            raw(HEX[c & 0xf]);
+        }
+      }
+      raw('"');
+    }
+
+    private void drain() throws IOException {
+      myWriter.write(myBuffer, 0, mySize);
+      mySize = 0;
+    }
+
+    void flush() throws IOException {
+      drain();
+      myWriter.flush();
+    }
+  }
+}
@@ -0,0 +1,288 @@
+package com.github.kassak.intellij.expose;
+
+import com.github.kassak.intellij.expose.counterpart.DGCursor;
+import com.github.kassak.intellij.expose.counterpart.Histogram;
+import com.google.gson.stream.JsonWriter;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.util.containers.ContainerUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.*;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.github.kassak.intellij.expose.DataGripExposerService.sendBytes;
+import static com.github.kassak.intellij.expose.DataGripExposerService.sendJson;
+
+/**
+ * Request latencies per route and status, fetch throughput, cursor timings and live handlers per data source.
+ * {@code /database/metrics} gives them as json, or in Prometheus text format for {@code format=prometheus} or a {@code text/plain} client.
+ * Recording takes a few atomic increments, so it is always on.
+ */
+public class Metrics {
+  private static final String PROMETHEUS_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final int MAX_STATUS = 600;
+
+  private final Map<String, RouteStats> myRoutes = new ConcurrentHashMap<>();
+  private final Histogram myRowsPerSecond = new Histogram();
+  private final Histogram myBytesPerSecond = new Histogram();
+  private final LongAdder myRows = new LongAdder();
+  private final LongAdder myBytes = new LongAdder();
+
+  public static Metrics getInstance() {
+    return ServiceManager.getService(Metrics.class);
+  }
+
+  /**
+   * Starts timing a request, it is recorded with its status once the whole response is written to the channel.
+   * @param route method and route pattern separated by a space
+   */
+  void requestStarted(@NotNull String route, @NotNull ChannelHandlerContext context) {
+    RouteStats stats = myRoutes.computeIfAbsent(route, RouteStats::new);
+    ResponseRecorder recorder = context.pipeline().get(ResponseRecorder.class);
+    if (recorder == null) {
+      recorder = new ResponseRecorder();
+      context.pipeline().addBefore(context.name(), null, recorder);
+    }
+    recorder.myExchanges.add(new Exchange(stats, System.nanoTime()));
+  }
+
+  void fetched(long rows, long bytes, long nanos) {
+    myRows.add(rows);
+    myBytes.add(bytes);
+    if (rows == 0) return;
+    double seconds = Math.max(nanos, 1) / 1e9;
+    myRowsPerSecond.record((long)(rows / seconds));
+    myBytesPerSecond.record((long)(bytes / seconds));
+  }
+
+  String process(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    String format = ContainerUtil.getLastItem(urlDecoder.parameters().get("format"));
+    String accept = request.headers().get(HttpHeaderNames.ACCEPT);
+    if (format == null && accept != null && accept.contains("text/plain") || "prometheus".equals(format)) {
+      StringBuilder text = new StringBuilder();
+      prometheus(text);
+      BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+      byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+      out.write(bytes, 0, bytes.length);
+      sendBytes(out, PROMETHEUS_TYPE, request, context);
+      return null;
+    }
+    return sendJson(this::describe, request, context);
+  }
+
+  void describe(@NotNull JsonWriter json) throws IOException {
+    json.beginObject();
+    json.name("requests").beginArray();
+    for (RouteStats route : myRoutes.values()) {
+      for (int status = 0; status < MAX_STATUS; status++) {
+        Histogram latency = route.myStatuses.get(status);
+        if (latency == null) continue;
+        json.beginObject();
+        json.name("method").value(route.myMethod);
+        json.name("route").value(route.myRoute);
+        json.name("status").value(status);
+        json.name("latencyMicros");
+        latency.describe(json);
+        json.endObject();
+      }
+    }
+    json.endArray();
+    json.name("fetch").beginObject();
+    json.name("rows").value(myRows.sum());
+    json.name("bytes").value(myBytes.sum());
+    json.name("rowsPerSecond");
+    myRowsPerSecond.describe(json);
+    json.name("bytesPerSecond");
+    myBytesPerSecond.describe(json);
+    json.name("firstRowMicros");
+    DGCursor.FIRST_ROW.describe(json);
+    json.name("producerBlockedMicros");
+    DGCursor.PRODUCER_BLOCKED.describe(json);
+    json.endObject();
+    json.name("dataSources").beginArray();
+    for (DataSourceHandler dataSource : Reaper.getDataSourceHandlers()) {
+      Gauges gauges = new Gauges(dataSource);
+      json.beginObject();
+      json.name("uuid").value(dataSource.getDataSource().getUniqueId());
+      json.name("name").value(dataSource.getDataSource().getName());
+      json.name("connections").value(gauges.connections);
+      json.name("cursors").value(gauges.cursors);
+      json.name("bufferedRows").value(gauges.bufferedRows);
+      json.name("bufferedBytes").value(gauges.bufferedBytes);
+      json.name("bufferFill").value(gauges.bufferFill);
+      json.endObject();
+    }
+    json.endArray();
+    json.endObject();
+  }
+
+  void prometheus(@NotNull StringBuilder out) {
+    type(out, "dg_exposer_request_seconds", "summary");
+    for (RouteStats route : myRoutes.values()) {
+      for (int status = 0; status < MAX_STATUS; status++) {
+        Histogram latency = route.myStatuses.get(status);
+        if (latency == null) continue;
+        String labels = "method=\"" + escape(route.myMethod) + "\",route=\"" + escape(route.myRoute) + "\",status=\"" + status + "\"";
+        summary(out, "dg_exposer_request_seconds", labels, latency, 1e-6);
+      }
+    }
+    type(out, "dg_exposer_fetched_rows_total", "counter");
+    sample(out, "dg_exposer_fetched_rows_total", "", myRows.sum());
+    type(out, "dg_exposer_fetched_bytes_total", "counter");
+    sample(out, "dg_exposer_fetched_bytes_total", "", myBytes.sum());
+    type(out, "dg_exposer_fetch_rows_per_second", "summary");
+    summary(out, "dg_exposer_fetch_rows_per_second", "", myRowsPerSecond, 1);
+    type(out, "dg_exposer_fetch_bytes_per_second", "summary");
+    summary(out, "dg_exposer_fetch_bytes_per_second", "", myBytesPerSecond, 1);
+    type(out, "dg_exposer_first_row_seconds", "summary");
+    summary(out, "dg_exposer_first_row_seconds", "", DGCursor.FIRST_ROW, 1e-6);
+    type(out, "dg_exposer_producer_blocked_seconds", "summary");
+    summary(out, "dg_exposer_producer_blocked_seconds", "", DGCursor.PRODUCER_BLOCKED, 1e-6);
+    Map<String, Gauges> gauges = new LinkedHashMap<>();
+    for (DataSourceHandler dataSource : Reaper.getDataSourceHandlers()) {
+      gauges.put("data_source=\"" + escape(dataSource.getDataSource().getUniqueId()) + "\"", new Gauges(dataSource));
+    }
+    type(out, "dg_exposer_connections", "gauge");
+    gauges.forEach((labels, g) -> sample(out, "dg_exposer_connections", labels, g.connections));
+    type(out, "dg_exposer_cursors", "gauge");
+    gauges.forEach((labels, g) -> sample(out, "dg_exposer_cursors", labels, g.cursors));
+    type(out, "dg_exposer_buffered_rows", "gauge");
+    gauges.forEach((labels, g) -> sample(out, "dg_exposer_buffered_rows", labels, g.bufferedRows));
+    type(out, "dg_exposer_buffered_bytes", "gauge");
+    gauges.forEach((labels, g) -> sample(out, "dg_exposer_buffered_bytes", labels, g.bufferedBytes));
+    type(out, "dg_exposer_buffer_fill_ratio", "gauge");
+    gauges.forEach((labels, g) -> sample(out, "dg_exposer_buffer_fill_ratio", labels, g.bufferFill));
+  }
+
+  private static void type(@NotNull StringBuilder out, @NotNull String name, @NotNull String type) {
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void summary(@NotNull StringBuilder out, @NotNull String name, @NotNull String labels, @NotNull Histogram histogram,
+                              double scale) {
+    String prefix = labels.isEmpty() ? "" : labels + ",";
+    for (double q : QUANTILES) {
+      sample(out, name, prefix + "quantile=\"" + q + "\"", histogram.quantile(q) * scale);
+    }
+    sample(out, name + "_sum", labels, histogram.sum() * scale);
+    sample(out, name + "_count", labels, histogram.count());
+  }
+
+  private static void sample(@NotNull StringBuilder out, @NotNull String name, @NotNull String labels, double value) {
+    out.append(name);
+    if (!labels.isEmpty()) out.append('{').append(labels).append('}');
+    out.append(' ');
+    if (value == (long)value) out.append((long)value);
+    else out.append(value);
+    out.append('\n');
+  }
+
+  @NotNull
+  private static String escape(@NotNull String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static class RouteStats {
+    final String myMethod;
+    final String myRoute;
+    // latency histogram of every response status, created on first use
+    final AtomicReferenceArray<Histogram> myStatuses = new AtomicReferenceArray<>(MAX_STATUS);
+
+    RouteStats(@NotNull String route) {
+      int space = route.indexOf(' ');
+      myMethod = space == -1 ? "" : route.substring(0, space);
+      myRoute = route.substring(space + 1);
+    }
+
+    void record(int status, long micros) {
+      if (status < 0 || status >= MAX_STATUS) status = 0;
+      Histogram histogram = myStatuses.get(status);
+      if (histogram == null) {
+        myStatuses.compareAndSet(status, null, new Histogram());
+        histogram = myStatuses.get(status);
+      }
+      histogram.record(micros);
+    }
+  }
+
+  private static class Exchange {
+    final RouteStats stats;
+    final long started;
+
+    Exchange(@NotNull RouteStats stats, long started) {
+      this.stats = stats;
+      this.started = started;
+    }
+
+    void finish(int status) {
+      stats.record(status, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started));
+    }
+  }
+
+  /**
+   * Sits in the channel pipeline and matches responses to the requests in order, HTTP/1.1 answers them one by one.
+   * Responses not started through {@link #requestStarted} are not recorded.
+   */
+  private static class ResponseRecorder extends ChannelOutboundHandlerAdapter {
+    final Queue<Exchange> myExchanges = new ConcurrentLinkedQueue<>();
+    // accessed from the event loop only
+    private Exchange myCurrent;
+    private int myStatus;
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+      if (msg instanceof HttpResponse) {
+        myCurrent = myExchanges.poll();
+        myStatus = ((HttpResponse)msg).status().code();
+      }
+      if (msg instanceof LastHttpContent && myCurrent != null) {
+        myCurrent.finish(myStatus);
+        myCurrent = null;
+      }
+      super.write(ctx, msg, promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+      // streamed response broken off after its status was sent
+      if (myCurrent != null) myCurrent.finish(myStatus);
+      myCurrent = null;
+      super.close(ctx, promise);
+    }
+  }
+
+  private static class Gauges {
+    int connections;
+    int cursors;
+    long bufferedRows;
+    long bufferedBytes;
+    double bufferFill;
+
+    Gauges(@NotNull DataSourceHandler dataSource) {
+      for (ConnectionHandler connection : dataSource.getConnections()) {
+        connections++;
+        for (CursorHandler cursor : connection.getCursors()) {
+          DGCursor c = cursor.getCursor();
+          cursors++;
+          bufferedRows += c.getBufferedRows();
+          bufferedBytes += c.getBufferedBytes();
+          bufferFill = Math.max(bufferFill, c.getBufferFill());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+class MsgPackReader {
+  private final DataInputStream myIn;
+
+  MsgPackReader(@NotNull InputStream in) {
+    myIn = new DataInputStream(in);
+  }
+
+  @Nullable
+  Object read() throws IOException {
+    int b = myIn.readUnsignedByte();
+    if (b <= 0x7f) return (long)b;
+    if (b >= 0xe0) return (long)(byte)b;
+    if ((b & 0xf0) == 0x80) return readMap(b & 0x0f);
+    if ((b & 0xf0) == 0x90) return readArray(b & 0x0f);
+    if ((b & 0xe0) == 0xa0) return readString(b & 0x1f);
+    switch (b) {
+      case 0xc0: return null;
+      case 0xc2: return false;
+      case 0xc3: return true;
+      case 0xc4: return readBytes(myIn.readUnsignedByte());
+      case 0xc5: return readBytes(myIn.readUnsignedShort());
+      case 0xc6: return readBytes(myIn.readInt());
+      case 0xc7: return readExt(myIn.readUnsignedByte());
+      case 0xc8: return readExt(myIn.readUnsignedShort());
+      case 0xc9: return readExt(myIn.readInt());
+      case 0xca: return (double)myIn.readFloat();
+      case 0xcb: return myIn.readDouble();
+      case 0xcc: return (long)myIn.readUnsignedByte();
+      case 0xcd: return (long)myIn.readUnsignedShort();
+      case 0xce: return myIn.readInt() & 0xffffffffL;
+      case 0xcf: {
+        long v = myIn.readLong();
+        return v >= 0 ? (Object)v : new BigInteger(Long.toUnsignedString(v));
+      }
+      case 0xd0: return (long)myIn.readByte();
+      case 0xd1: return (long)myIn.readShort();
+      case 0xd2: return (long)myIn.readInt();
+      case 0xd3: return myIn.readLong();
+      case 0xd4: return readExt(1);
+      case 0xd5: return readExt(2);
+      case 0xd6: return readExt(4);
+      case 0xd7: return readExt(8);
+      case 0xd8: return readExt(16);
+      case 0xd9: return readString(myIn.readUnsignedByte());
+      case 0xda: return readString(myIn.readUnsignedShort());
+      case 0xdb: return readString(myIn.readInt());
+      case 0xdc: return readArray(myIn.readUnsignedShort());
+      case 0xdd: return readArray(myIn.readInt());
+      case 0xde: return readMap(myIn.readUnsignedShort());
+      case 0xdf: return readMap(myIn.readInt());
+      default: throw new IOException("Unexpected msgpack tag: " + b);
+    }
+  }
+
+  private List<Object> readArray(int size) throws IOException {
+    List<Object> res = ContainerUtil.newArrayListWithCapacity(size);
+    for (int i = 0; i < size; i++) {
+      res.add(read());
+    }
+    return res;
+  }
+
+  private Map<String, Object> readMap(int size) throws IOException {
+    Map<String, Object> res = new LinkedHashMap<>();
+    for (int i = 0; i < size; i++) {
+      Object key = read();
+      res.put(String.valueOf(key), read());
+    }
+    return res;
+  }
+
+  private String readString(int size) throws IOException {
+    return new String(readBytes(size), StandardCharsets.UTF_8);
+  }
+
+  private byte[] readBytes(int size) throws IOException {
+    if (size < 0) throw new IOException("Too large msgpack value");
+    byte[] res = new byte[size];
+    myIn.readFully(res);
+    return res;
+  }
+
+  private Object readExt(int size) throws IOException {
+    byte type = myIn.readByte();
+    byte[] data = readBytes(size);
+    if (type != MsgPackWriter.TIMESTAMP_EXT) throw new IOException("Unsupported msgpack extension: " + type);
+    long seconds;
+    int nanos;
+    if (size == 4) {
+      seconds = readBE(data, 0, 4);
+      nanos = 0;
+    }
+    else if (size == 8) {
+      long v = readBE(data, 0, 8);
+      seconds = v & 0x3ffffffffL;
+      nanos = (int)(v >>> 34);
+    }
+    else if (size == 12) {
+      nanos = (int)readBE(data, 0, 4);
+      seconds = readBE(data, 4, 8);
+    }
+    else {
+      throw new IOException("Malformed msgpack timestamp");
+    }
+    return Timestamp.valueOf(LocalDateTime.ofInstant(Instant.ofEpochSecond(seconds, nanos), ZoneOffset.UTC));
+  }
+
+  private static long readBE(byte[] data, int offset, int size) {
+    long res = 0;
+    for (int i = 0; i < size; i++) {
+      res = (res << 8) | (data[offset + i] & 0xff);
+    }
+    return res;
+  }
+}
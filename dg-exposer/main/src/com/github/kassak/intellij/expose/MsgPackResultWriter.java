@@ -0,0 +1,92 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.database.datagrid.DataConsumer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+class MsgPackResultWriter implements ResultWriter {
+  private final MsgPackWriter myOut;
+  private MyType[] myTypes;
+
+  MsgPackResultWriter(@NotNull OutputStream out) {
+    myOut = new MsgPackWriter(out);
+  }
+
+  @Override
+  public void begin(@Nullable List<DataConsumer.Column> columns) {
+    myTypes = new MyType[columns == null ? 0 : columns.size()];
+    for (int i = 0; i < myTypes.length; i++) {
+      myTypes[i] = MyType.getType(columns.get(i));
+    }
+  }
+
+  @Override
+  public void rows(@NotNull List<DataConsumer.Row> rows) throws IOException {
+    for (DataConsumer.Row row : rows) {
+      Object[] values = row.values;
+      myOut.arrayHeader(values.length);
+      for (int i = 0; i < values.length; i++) {
+        writeValue(myOut, i < myTypes.length ? myTypes[i] : null, values[i]);
+      }
+    }
+  }
+
+  @Override
+  public void end() throws IOException {
+    myOut.flush();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    myOut.flush();
+  }
+
+  static void writeValue(@NotNull MsgPackWriter out, @Nullable MyType type, @Nullable Object value) throws IOException {
+    if (value == null) {
+      out.nil();
+      return;
+    }
+    if (type == null) {
+      out.value(value.toString());
+      return;
+    }
+    switch (type) {
+      case INT:
+        if (value instanceof BigInteger) out.value((BigInteger)value);
+        else out.value(Values.toLong(value));
+        break;
+      case NUM:
+        out.value(Values.toDouble(value));
+        break;
+      case BOOL:
+        out.value(Values.toBoolean(value));
+        break;
+      case DATE:
+        out.timestamp(Values.toLocalDate(value).toEpochDay() * 86400, 0);
+        break;
+      case TIME: {
+        long micros = Values.toMicrosOfDay(value);
+        out.timestamp(micros / 1_000_000, (int)(micros % 1_000_000) * 1000);
+        break;
+      }
+      case DATETIME: {
+        LocalDateTime dt = Values.toLocalDateTime(value);
+        out.timestamp(dt.toEpochSecond(ZoneOffset.UTC), dt.getNano());
+        break;
+      }
+      case BIN:
+        out.value(value instanceof byte[] ? (byte[])value : value.toString().getBytes(StandardCharsets.UTF_8));
+        break;
+      default:
+        out.value(value.toString());
+    }
+  }
+}
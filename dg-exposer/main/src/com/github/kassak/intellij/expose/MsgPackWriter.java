@@ -0,0 +1,143 @@
+package com.github.kassak.intellij.expose;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+class MsgPackWriter {
+  static final byte TIMESTAMP_EXT = -1;
+
+  private final OutputStream myOut;
+  private final byte[] myScratch = new byte[9];
+
+  MsgPackWriter(@NotNull OutputStream out) {
+    myOut = out;
+  }
+
+  MsgPackWriter nil() throws IOException {
+    myOut.write(0xc0);
+    return this;
+  }
+
+  MsgPackWriter value(boolean v) throws IOException {
+    myOut.write(v ? 0xc3 : 0xc2);
+    return this;
+  }
+
+  MsgPackWriter value(long v) throws IOException {
+    if (v >= 0) {
+      if (v < 128) myOut.write((int)v);
+      else if (v < 1L << 8) writeTagged(0xcc, v, 1);
+      else if (v < 1L << 16) writeTagged(0xcd, v, 2);
+      else if (v < 1L << 32) writeTagged(0xce, v, 4);
+      else writeTagged(0xcf, v, 8);
+    }
+    else {
+      if (v >= -32) myOut.write((int)v & 0xff);
+      else if (v >= Byte.MIN_VALUE) writeTagged(0xd0, v, 1);
+      else if (v >= Short.MIN_VALUE) writeTagged(0xd1, v, 2);
+      else if (v >= Integer.MIN_VALUE) writeTagged(0xd2, v, 4);
+      else writeTagged(0xd3, v, 8);
+    }
+    return this;
+  }
+
+  MsgPackWriter value(@NotNull BigInteger v) throws IOException {
+    if (v.bitLength() <= 63) return value(v.longValue());
+    if (v.signum() > 0 && v.bitLength() == 64) {
+      writeTagged(0xcf, v.longValue(), 8);
+      return this;
+    }
+    return value(v.toString());
+  }
+
+  MsgPackWriter value(double v) throws IOException {
+    writeTagged(0xcb, Double.doubleToRawLongBits(v), 8);
+    return this;
+  }
+
+  MsgPackWriter value(@Nullable String v) throws IOException {
+    if (v == null) return nil();
+    byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+    int len = bytes.length;
+    if (len < 32) myOut.write(0xa0 | len);
+    else if (len < 1 << 8) writeTagged(0xd9, len, 1);
+    else if (len < 1 << 16) writeTagged(0xda, len, 2);
+    else writeTagged(0xdb, len, 4);
+    myOut.write(bytes);
+    return this;
+  }
+
+  MsgPackWriter value(@NotNull byte[] v) throws IOException {
+    int len = v.length;
+    if (len < 1 << 8) writeTagged(0xc4, len, 1);
+    else if (len < 1 << 16) writeTagged(0xc5, len, 2);
+    else writeTagged(0xc6, len, 4);
+    myOut.write(v);
+    return this;
+  }
+
+  MsgPackWriter timestamp(long seconds, int nanos) throws IOException {
+    if (seconds >>> 34 == 0) {
+      long data = ((long)nanos << 34) | seconds;
+      if ((data & 0xffffffff00000000L) == 0) {
+        myOut.write(0xd6);
+        myOut.write(TIMESTAMP_EXT);
+        writeBE(data, 4);
+      }
+      else {
+        myOut.write(0xd7);
+        myOut.write(TIMESTAMP_EXT);
+        writeBE(data, 8);
+      }
+    }
+    else {
+      myOut.write(0xc7);
+      myOut.write(12);
+      myOut.write(TIMESTAMP_EXT);
+      writeBE(nanos, 4);
+      writeBE(seconds, 8);
+    }
+    return this;
+  }
+
+  MsgPackWriter arrayHeader(int size) throws IOException {
+    if (size < 16) myOut.write(0x90 | size);
+    else if (size < 1 << 16) writeTagged(0xdc, size, 2);
+    else writeTagged(0xdd, size, 4);
+    return this;
+  }
+
+  MsgPackWriter mapHeader(int size) throws IOException {
+    if (size < 16) myOut.write(0x80 | size);
+    else if (size < 1 << 16) writeTagged(0xde, size, 2);
+    else writeTagged(0xdf, size, 4);
+    return this;
+  }
+
+  MsgPackWriter name(@NotNull String key) throws IOException {
+    return value(key);
+  }
+
+  void flush() throws IOException {
+    myOut.flush();
+  }
+
+  private void writeTagged(int tag, long v, int size) throws IOException {
+    myScratch[0] = (byte)tag;
+    for (int i = 0; i < size; i++) {
+      myScratch[size - i] = (byte)(v >>> (8 * i));
+    }
+    myOut.write(myScratch, 0, size + 1);
+  }
+
+  private void writeBE(long v, int size) throws IOException {
+    for (int i = size - 1; i >= 0; i--) {
+      myOut.write((int)(v >>> (8 * i)));
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.database.datagrid.DataConsumer;
+import com.intellij.database.extractors.ObjectFormatter;
+import com.intellij.database.run.ui.grid.editors.DataGridFormattersUtil;
+import com.intellij.database.util.JdbcUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+
+import static java.time.temporal.ChronoField.*;
+
+enum MyType {
+  INT("I") {
+    @Override
+    Object parse(String val) {
+      try {
+        return Integer.parseInt(val);
+      }
+      catch (NumberFormatException e) {
+        try {
+          return new BigInteger(val);
+        }
+        catch (NumberFormatException e2) {
+          return val;
+        }
+      }
+    }
+  },
+  BOOL("1") {
+    @Override
+    Object parse(String val) {
+      try {
+        return Integer.parseInt(val) == 1;
+      }
+      catch (NumberFormatException e) {
+        return val;
+      }
+    }
+
+    @Override
+    String format(Object val) {
+      if (val instanceof Boolean) return (Boolean)val ? "1" : "0";
+      return super.format(val);
+    }
+  },
+  NUM("N") {
+    @Override
+    Object parse(String val) {
+      boolean fl = StringUtil.containsAnyChar(val, ".,ef");
+      try {
+        return fl ? Double.parseDouble(val) : Integer.parseInt(val);
+      }
+      catch (NumberFormatException e) {
+        return val;
+      }
+    }
+  },
+  STR("S"),
+  DATE("D") {
+    @Override
+    Object parse(String val) {
+      return parseDate(DATE_FORMATTER, val);
+    }
+  },
+  TIME("T") {
+    @Override
+    Object parse(String val) {
+      return parseDate(TIME_FORMATTER, val);
+    }
+
+    @Override
+    String format(Object val) {
+//        if (val instanceof TimeZonedTime) {
+//          OffsetDateTime odt = DataGridFormattersUtil.fromTimestamp((TimeZonedTime) val);
+//          return DATE_TIME_FORMATTER.format(odt);
+//        }
+      return super.format(val);
+    }
+  },
+  DATETIME("d") {
+    @Override
+    Object parse(String val) {
+      return parseDate(DATE_TIME_FORMATTER, val);
+    }
+
+    @Override
+    String format(Object val) {
+      if (val instanceof Timestamp) {
+        OffsetDateTime odt = DataGridFormattersUtil.fromTimestamp((Timestamp) val);
+        return DATE_TIME_FORMATTER.format(odt);
+      }
+      return super.format(val);
+    }
+  },
+  BIN("b");
+
+  final String code;
+
+  MyType(String code) {
+    this.code = code;
+  }
+
+  static MyType getType(DataConsumer.Column column) {
+    int type = column.type;
+    if (type == Types.BIGINT || type == Types.INTEGER || type == Types.SMALLINT) return INT;
+    if (ObjectFormatter.isBooleanColumn(column)) return BOOL;
+    if (JdbcUtil.isNumberType(type) || type == Types.REAL) return NUM;
+    if (JdbcUtil.isStringType(type)) return STR;
+    if (type == Types.DATE) return DATE;
+    if (type == Types.TIME) return TIME;
+    if (JdbcUtil.isDateTimeType(type)) return DATETIME;
+    return BIN;
+  }
+
+  static MyType getType(@Nullable String code) {
+    for (MyType type : MyType.values()) {
+      if (type.code.equals(code)) return type;
+    }
+    throw new IllegalArgumentException("Unknown type: " + code);
+  }
+
+  Object parse(String val) {
+    return val;
+  }
+
+  private static final DateTimeFormatter FRAC_FORMATTER = new DateTimeFormatterBuilder()
+//      .appendLiteral('.')
+    .appendFraction(ChronoField.NANO_OF_SECOND, 0, 9,true)
+    .parseStrict()
+    .toFormatter();
+  private static final DateTimeFormatter TIME_FORMATTER = new DateTimeFormatterBuilder()
+    .appendValue(HOUR_OF_DAY, 2)
+    .appendLiteral(':')
+    .appendValue(MINUTE_OF_HOUR, 2)
+    .optionalStart()
+    .appendLiteral(':')
+    .appendValue(SECOND_OF_MINUTE, 2)
+    .appendOptional(FRAC_FORMATTER)
+    .toFormatter();
+  private static final DateTimeFormatter DATE_FORMATTER = new DateTimeFormatterBuilder()
+    .append(DateTimeFormatter.ISO_LOCAL_DATE)
+    .parseStrict()
+    .toFormatter();
+  private static final DateTimeFormatter DATE_TIME_FORMATTER = new DateTimeFormatterBuilder()
+    .append(DATE_FORMATTER)
+    .appendLiteral(' ')
+    .append(TIME_FORMATTER)
+    .toFormatter();
+
+
+  @Nullable
+  protected Object parseDate(DateTimeFormatter fmt, String val) {
+    try {
+      return LocalDateTime.parse(val, fmt);
+    }
+    catch (DateTimeParseException e) {
+      return val;
+    }
+  }
+
+  /**
+   * @return string representation of the non-null value sent to json clients
+   */
+  String format(Object val) {
+    return val.toString();
+  }
+}
@@ -0,0 +1,235 @@
+package com.github.kassak.intellij.expose;
+
+import com.github.kassak.intellij.expose.counterpart.Prefetch;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.intellij.database.datagrid.DataConsumer;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.util.ExceptionUtil;
+import com.intellij.util.ThrowableConsumer;
+import com.intellij.util.containers.ContainerUtil;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpRequest;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static com.github.kassak.intellij.expose.DataGripExposerService.*;
+
+/**
+ * Runs cursor operations of a connection one after another and answers with all their results at once.
+ * Request: {@code {"cursor": uuid, "operations": [{"op": "cursor", "prefetch": ...}, {"op": "execute", "operation": ..., "parameters": [...]},
+ * {"op": "describe"}, {"op": "fetch", "limit": N}, {"op": "close"}]}}, operations apply to the cursor given or created by the previous {@code cursor}.
+ * Response: {@code {"results": [...]}} with the same results the separate requests would give. The first failed operation
+ * gets an error object as its result and the rest are skipped, but the cursor is still closed if the pipeline was going to close it.
+ */
+class Pipeline {
+  private final ConnectionHandler myConnection;
+  private final FullHttpRequest myRequest;
+  private final ChannelHandlerContext myContext;
+  private final List<Operation> myOperations;
+  // json of every result, rendered as soon as the operation is done
+  private final List<String> myResults = ContainerUtil.newArrayList();
+  private CursorHandler myCursor;
+  private int myNext;
+
+  private Pipeline(@NotNull ConnectionHandler connection, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context,
+                   @Nullable CursorHandler cursor, @NotNull List<Operation> operations) {
+    myConnection = connection;
+    myRequest = request;
+    myContext = context;
+    myCursor = cursor;
+    myOperations = operations;
+  }
+
+  static String start(@NotNull ConnectionHandler connection, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    List<Operation> operations = ContainerUtil.newArrayList();
+    String[] cursorId = {null};
+    try {
+      readJson(json -> {
+        json.beginObject();
+        while (json.hasNext()) {
+          String name = json.nextName();
+          if ("cursor".equals(name)) cursorId[0] = json.nextString();
+          else if ("operations".equals(name)) {
+            json.beginArray();
+            while (json.hasNext()) {
+              operations.add(Operation.read(json));
+            }
+            json.endArray();
+          }
+          else json.skipValue();
+        }
+        json.endObject();
+      }, request);
+    }
+    catch (Exception e) {
+      return sendError(e, request, context);
+    }
+    CursorHandler cursor = cursorId[0] == null ? null : connection.findCursor(cursorId[0]);
+    if (cursorId[0] != null && cursor == null) return notFound(request, context);
+    new Pipeline(connection, request, context, cursor, operations).proceed();
+    return null;
+  }
+
+  private void proceed() {
+    while (myNext < myOperations.size()) {
+      Operation op = myOperations.get(myNext++);
+      try {
+        if (!"cursor".equals(op.op) && myCursor == null) throw new IllegalStateException("No cursor");
+        if (myCursor != null) myCursor.touch();
+        switch (op.op) {
+          case "cursor":
+            myCursor = myConnection.createCursor(op.prefetch == null ? Prefetch.getDefault() : op.prefetch);
+            addResult(myCursor::descCursor);
+            break;
+          case "execute":
+            myCursor.execute(op.query, op.params, op.cache, null)
+              .onSuccess(counts -> {
+                long rowCount = counts.length == 0 ? myCursor.getCursor().getRowCount() : CursorHandler.sum(counts);
+                try {
+                  addResult(json -> {
+                    json.beginObject();
+                    json.name("rowcount").value(rowCount);
+                    json.name("rowcounts").beginArray();
+                    for (int count : counts) {
+                      json.value(count);
+                    }
+                    json.endArray();
+                    json.endObject();
+                  });
+                }
+                catch (IOException e) {
+                  fail(e);
+                  return;
+                }
+                proceed();
+              })
+              .onError(this::fail);
+            return;
+          case "describe":
+            addResult(myCursor::describe);
+            break;
+          case "fetch":
+            if (!myCursor.getCursor().haveQuery()) throw new IllegalStateException("No query");
+            myCursor.getCursor().fetch(op.offset, op.limit)
+              .onSuccess(rows -> {
+                try {
+                  myResults.add(writeRows(rows));
+                }
+                catch (IOException e) {
+                  fail(e);
+                  return;
+                }
+                proceed();
+              })
+              .onError(this::fail);
+            return;
+          case "close":
+            myConnection.closeCursor(myCursor);
+            myResults.add("{}");
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown op: " + op.op);
+        }
+      }
+      catch (Exception e) {
+        fail(e);
+        return;
+      }
+    }
+    respond();
+  }
+
+  @NotNull
+  private String writeRows(@NotNull List<DataConsumer.Row> rows) throws IOException {
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    ResultWriter writer = new JsonResultWriter(out);
+    writer.begin(myCursor.getCursor().getColumns());
+    writer.rows(rows);
+    writer.end();
+    return new String(out.getInternalBuffer(), 0, out.size(), StandardCharsets.UTF_8);
+  }
+
+  private void addResult(@NotNull ThrowableConsumer<JsonWriter, IOException> writer) throws IOException {
+    StringWriter text = new StringWriter();
+    try (JsonWriter json = new JsonWriter(text)) {
+      writer.consume(json);
+    }
+    myResults.add(text.toString());
+  }
+
+  private void fail(@NotNull Throwable e) {
+    Throwable error = myCursor == null ? null : myCursor.getCursor().fetchError();
+    Throwable cause = error == null ? e : error;
+    try {
+      addResult(json -> {
+        json.beginObject();
+        json.name("error").value(cause.getMessage());
+        json.name("trace").value(ExceptionUtil.getThrowableText(cause));
+        json.endObject();
+      });
+    }
+    catch (IOException ex) {
+      sendError(ex, myRequest, myContext);
+      return;
+    }
+    for (int i = myNext; i < myOperations.size() && myCursor != null; i++) {
+      if ("close".equals(myOperations.get(i).op)) myConnection.closeCursor(myCursor);
+      if ("cursor".equals(myOperations.get(i).op)) break;
+    }
+    respond();
+  }
+
+  private void respond() {
+    sendJson(json -> {
+      json.beginObject();
+      json.name("results").beginArray();
+      for (String result : myResults) {
+        json.jsonValue(result);
+      }
+      json.endArray();
+      json.endObject();
+    }, myRequest, myContext);
+  }
+
+  private static class Operation {
+    String op;
+    String query;
+    List<Object> params = ContainerUtil.newArrayList();
+    boolean cache;
+    int offset = -1;
+    int limit = -1;
+    Prefetch prefetch;
+
+    @NotNull
+    static Operation read(@NotNull JsonReader json) throws IOException {
+      Operation res = new Operation();
+      String prefetch = null;
+      String prefetchBytes = null;
+      json.beginObject();
+      while (json.hasNext()) {
+        String name = json.nextName();
+        if (json.peek() == JsonToken.NULL) json.nextNull();
+        else if ("op".equals(name)) res.op = json.nextString();
+        else if ("operation".equals(name)) res.query = json.nextString();
+        else if ("parameters".equals(name)) res.params = CursorHandler.parseParams(json);
+        else if ("cache".equals(name)) res.cache = json.nextBoolean();
+        else if ("offset".equals(name)) res.offset = json.nextInt();
+        else if ("limit".equals(name)) res.limit = json.nextInt();
+        else if ("prefetch".equals(name)) prefetch = json.nextString();
+        else if ("prefetchBytes".equals(name)) prefetchBytes = json.nextString();
+        else json.skipValue();
+      }
+      json.endObject();
+      if (res.op == null) throw new IllegalArgumentException("Operation without op");
+      res.prefetch = Prefetch.parse(prefetch, prefetchBytes);
+      return res;
+    }
+  }
+}
@@ -22,13 +22,13 @@ import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.containers.JBIterable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.FullHttpRequest;
-import io.netty.handler.codec.http.HttpMethod;
-import io.netty.handler.codec.http.QueryStringDecoder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.github.kassak.intellij.expose.DataGripExposerService.*;
 import static com.github.kassak.intellij.expose.DataSourceHandler.descDataSource;
@@ -39,7 +39,7 @@ public class ProjectHandler implements Disposable {
   }
 
   private final Project myProject;
-  private final Map<String, DataSourceHandler> myDataSources = ContainerUtil.newHashMap();
+  private final Map<String, DataSourceHandler> myDataSources = new ConcurrentHashMap<>();
 
   public ProjectHandler(@NotNull Application application, @Nullable Project project) {
     myProject = project;
@@ -48,10 +48,8 @@ public class ProjectHandler implements Disposable {
     component.getMessageBus().connect(component).subscribe(DataSourceStorage.TOPIC, new DataSourceStorage.Listener() {
       @Override
       public void dataSourceRemoved(@NotNull LocalDataSource dataSource) {
-        synchronized (myDataSources) {
-          DataSourceHandler handler = myDataSources.remove(dataSource.getUniqueId());
-          if (handler != null) Disposer.dispose(handler);
-        }
+        DataSourceHandler handler = myDataSources.remove(dataSource.getUniqueId());
+        if (handler != null) Disposer.dispose(handler);
       }
     });
   }
@@ -67,22 +65,6 @@ public class ProjectHandler implements Disposable {
 
   }
 
-  static String processDataSource(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, int base, @NotNull String uuid) throws IOException {
-    Project project = null;
-    LocalDataSource dataSource = DataSourceStorage.getStorage().getDataSourceById(uuid);
-    if (dataSource == null) {
-      for (Project p: getAllProjects()) {
-        dataSource = DataSourceStorage.getProjectStorage(p).getDataSourceById(uuid);
-        if (dataSource != null) {
-          project = p;
-          break;
-        }
-      }
-    }
-    if (dataSource == null) return notFound(request, context);
-    return getInstance(project).processDataSource(urlDecoder, request, context, base, dataSource);
-  }
-
   static String processDescAllDataSources(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) throws IOException {
     return sendJson(ProjectHandler::descAllDataSources, request, context);
   }
@@ -137,40 +119,29 @@ public class ProjectHandler implements Disposable {
     task.run(new EmptyProgressIndicator());
   }
 
-  private String processDataSource(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, int base, @NotNull LocalDataSource dataSource) throws IOException {
-    if (isEnd(urlDecoder, base)) {
-      if (request.method() == HttpMethod.GET) {
-        return descDataSource(request, context, dataSource);
-      }
-      else if (request.method() == HttpMethod.DELETE) {
-        return deleteDataSource(request, context, dataSource);
-      }
-      else return badRequest(request, context);
-    }
-    int next = proceedIfStartsWith(urlDecoder, base, "connections/");
-    if (next != -1) return getOrCreateDataSourceHandler(dataSource).processConnections(urlDecoder, request, context, next);
-    return badRequest(request, context);
+  String deleteDataSource(@NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context, @NotNull LocalDataSource dataSource) {
+    DataSourceHandler handler = myDataSources.remove(dataSource.getUniqueId());
+    DataSourceStorage.getProjectStorage(myProject).removeDataSource(dataSource);
+    if (handler != null) Disposer.dispose(handler);
+    return reportOk(request, context);
   }
 
-  private String deleteDataSource(FullHttpRequest request, ChannelHandlerContext context, LocalDataSource dataSource) {
-    synchronized (myDataSources) {
-      DataSourceHandler handler = myDataSources.remove(dataSource.getUniqueId());
-      DataSourceStorage.getProjectStorage(myProject).removeDataSource(dataSource);
-      if (handler != null) Disposer.dispose(handler);
-    }
-    return reportOk(request, context);
+  @NotNull
+  List<DataSourceHandler> getDataSourceHandlers() {
+    return ContainerUtil.newArrayList(myDataSources.values());
   }
 
-  private DataSourceHandler getOrCreateDataSourceHandler(@NotNull LocalDataSource dataSource) {
-    String id = dataSource.getUniqueId();
-    synchronized (myDataSources) {
-      DataSourceHandler handler = myDataSources.get(id);
-      if (handler != null) return handler;
-      handler = new DataSourceHandler(myProject, dataSource);
-      myDataSources.put(id, handler);
-      Disposer.register(this, handler);
-      return handler;
-    }
+  @NotNull
+  DataSourceHandler getOrCreateDataSourceHandler(@NotNull LocalDataSource dataSource) {
+    DataSourceHandler handler = myDataSources.get(dataSource.getUniqueId());
+    if (handler != null) return handler;
+    // created outside of the map lock, a handler which lost the race is dropped
+    DataSourceHandler created = new DataSourceHandler(myProject, dataSource);
+    Disposer.register(this, created);
+    handler = myDataSources.putIfAbsent(dataSource.getUniqueId(), created);
+    if (handler == null) return created;
+    Disposer.dispose(created);
+    return handler;
   }
 
 
@@ -0,0 +1,157 @@
+package com.github.kassak.intellij.expose;
+
+import com.google.gson.stream.JsonWriter;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.kassak.intellij.expose.DataGripExposerService.getAllProjects;
+
+/**
+ * Closes cursors and connections abandoned by clients and evicts least recently used cursors when buffered rows take too much memory.
+ */
+public class Reaper implements Disposable {
+  private static final Logger LOG = Logger.getInstance(Reaper.class);
+  private static final String CURSOR_TTL_PROP = "dg.exposer.cursor.ttl.minutes";
+  private static final String CONNECTION_TTL_PROP = "dg.exposer.connection.ttl.minutes";
+  private static final String BUFFERED_PROP = "dg.exposer.buffered.megabytes";
+  private static final long PERIOD_SECONDS = 30;
+
+  private final ScheduledFuture<?> myFuture;
+  private final AtomicLong myCursors = new AtomicLong();
+  private final AtomicLong myConnections = new AtomicLong();
+  private final AtomicLong myPooled = new AtomicLong();
+  private final AtomicLong myEvicted = new AtomicLong();
+  private final AtomicLong myBytes = new AtomicLong();
+  private volatile long myLastRun;
+  private volatile long myBuffered;
+
+  public static Reaper getInstance() {
+    return ServiceManager.getService(Reaper.class);
+  }
+
+  public Reaper() {
+    myFuture = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(this::run, PERIOD_SECONDS, PERIOD_SECONDS, TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void dispose() {
+    myFuture.cancel(false);
+  }
+
+  private void run() {
+    try {
+      reap(System.currentTimeMillis());
+    }
+    catch (Throwable th) {
+      LOG.error(th);
+    }
+  }
+
+  void reap(long now) {
+    long cursorDeadline = deadline(now, CURSOR_TTL_PROP, 30);
+    long connectionDeadline = deadline(now, CONNECTION_TTL_PROP, 120);
+    List<Live> live = ContainerUtil.newArrayList();
+    long buffered = 0;
+    for (DataSourceHandler dataSource : getDataSourceHandlers()) {
+      for (ConnectionHandler connection : dataSource.getConnections()) {
+        if (connection.getLastAccess() < connectionDeadline && !connection.isBusy()) {
+          long bytes = bufferedBytes(connection);
+          if (dataSource.closeConnection(connection)) {
+            LOG.info("Closing idle connection " + connection.getUuid());
+            myConnections.incrementAndGet();
+            myBytes.addAndGet(bytes);
+          }
+          continue;
+        }
+        for (CursorHandler cursor : connection.getCursors()) {
+          long bytes = cursor.getBufferedBytes();
+          if (cursor.getLastAccess() < cursorDeadline && !cursor.isBusy()) {
+            if (connection.closeCursor(cursor)) {
+              LOG.info("Closing idle cursor " + cursor.getUuid());
+              myCursors.incrementAndGet();
+              myBytes.addAndGet(bytes);
+            }
+            continue;
+          }
+          live.add(new Live(connection, cursor, bytes));
+          buffered += bytes;
+        }
+      }
+      myPooled.addAndGet(dataSource.trimPool(connectionDeadline));
+    }
+    myBuffered = buffered;
+    long cap = Registry.intValue(BUFFERED_PROP, 256) * 1024L * 1024L;
+    if (cap > 0 && buffered > cap) {
+      live.sort(Comparator.comparingLong(l -> l.cursor.getLastAccess()));
+      for (Live l : live) {
+        if (buffered <= cap) break;
+        if (l.bytes == 0 || l.cursor.isBusy() || !l.connection.closeCursor(l.cursor)) continue;
+        LOG.info("Evicting cursor " + l.cursor.getUuid() + " buffering " + l.bytes + " bytes");
+        buffered -= l.bytes;
+        myEvicted.incrementAndGet();
+        myBytes.addAndGet(l.bytes);
+      }
+      myBuffered = buffered;
+    }
+    myLastRun = now;
+  }
+
+  private static long deadline(long now, @NotNull String prop, int defaultMinutes) {
+    int minutes = Registry.intValue(prop, defaultMinutes);
+    return minutes <= 0 ? Long.MIN_VALUE : now - TimeUnit.MINUTES.toMillis(minutes);
+  }
+
+  private static long bufferedBytes(@NotNull ConnectionHandler connection) {
+    long res = 0;
+    for (CursorHandler cursor : connection.getCursors()) {
+      res += cursor.getBufferedBytes();
+    }
+    return res;
+  }
+
+  @NotNull
+  static List<DataSourceHandler> getDataSourceHandlers() {
+    List<DataSourceHandler> res = ContainerUtil.newArrayList(ProjectHandler.getInstance(null).getDataSourceHandlers());
+    for (Project project : getAllProjects()) {
+      res.addAll(ProjectHandler.getInstance(project).getDataSourceHandlers());
+    }
+    return res;
+  }
+
+  void describe(@NotNull JsonWriter json) throws IOException {
+    json.beginObject();
+    json.name("lastRun").value(myLastRun);
+    json.name("bufferedBytes").value(myBuffered);
+    json.name("idleCursors").value(myCursors.get());
+    json.name("idleConnections").value(myConnections.get());
+    json.name("idlePooledConnections").value(myPooled.get());
+    json.name("evictedCursors").value(myEvicted.get());
+    json.name("reclaimedBytes").value(myBytes.get());
+    json.endObject();
+  }
+
+  private static class Live {
+    final ConnectionHandler connection;
+    final CursorHandler cursor;
+    final long bytes;
+
+    Live(ConnectionHandler connection, CursorHandler cursor, long bytes) {
+      this.connection = connection;
+      this.cursor = cursor;
+      this.bytes = bytes;
+    }
+  }
+}
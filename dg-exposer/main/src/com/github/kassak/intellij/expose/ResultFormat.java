@@ -0,0 +1,67 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.util.containers.ContainerUtil;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.OutputStream;
+
+enum ResultFormat {
+  JSON("json", "application/json") {
+    @NotNull
+    @Override
+    ResultWriter createWriter(@NotNull OutputStream out) {
+      return new JsonResultWriter(out);
+    }
+  },
+  ARROW("arrow", "application/vnd.apache.arrow.stream") {
+    @NotNull
+    @Override
+    ResultWriter createWriter(@NotNull OutputStream out) {
+      return new ArrowResultWriter(out);
+    }
+  },
+  MSGPACK("msgpack", "application/msgpack") {
+    @NotNull
+    @Override
+    ResultWriter createWriter(@NotNull OutputStream out) {
+      return new MsgPackResultWriter(out);
+    }
+  };
+
+  final String name;
+  final String contentType;
+
+  ResultFormat(String name, String contentType) {
+    this.name = name;
+    this.contentType = contentType;
+  }
+
+  @NotNull
+  abstract ResultWriter createWriter(@NotNull OutputStream out);
+
+  @Nullable
+  static ResultFormat negotiate(@NotNull QueryStringDecoder urlDecoder, @NotNull HttpRequest request) {
+    String name = ContainerUtil.getLastItem(urlDecoder.parameters().get("format"));
+    if (name != null) {
+      for (ResultFormat format : values()) {
+        if (format.name.equals(name)) return format;
+      }
+      return null;
+    }
+    ResultFormat format = byContentType(request.headers().get(HttpHeaderNames.ACCEPT));
+    return format == null ? JSON : format;
+  }
+
+  @Nullable
+  static ResultFormat byContentType(@Nullable String contentType) {
+    if (contentType == null) return null;
+    for (ResultFormat format : values()) {
+      if (contentType.contains(format.contentType)) return format;
+    }
+    return null;
+  }
+}
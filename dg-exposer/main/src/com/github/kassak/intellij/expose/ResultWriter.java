@@ -0,0 +1,18 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.database.datagrid.DataConsumer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.List;
+
+interface ResultWriter {
+  void begin(@Nullable List<DataConsumer.Column> columns) throws IOException;
+
+  void rows(@NotNull List<DataConsumer.Row> rows) throws IOException;
+
+  void end() throws IOException;
+
+  void flush() throws IOException;
+}
@@ -0,0 +1,208 @@
+package com.github.kassak.intellij.expose;
+
+import com.intellij.database.dataSource.LocalDataSource;
+import com.intellij.util.containers.ContainerUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static com.github.kassak.intellij.expose.DataGripExposerService.notFound;
+import static com.github.kassak.intellij.expose.DataGripExposerService.parseId;
+
+/**
+ * Route table of the service: a trie over path segments, every node knows handlers of its HTTP methods.
+ * Segments of a pattern are literals or one of the {@link Param} placeholders, an empty last segment stands for a trailing slash.
+ * Path is walked once collecting ids met on the way, then they are resolved into the objects they denote, so a handler gets them
+ * ready in {@link Match}.
+ * Unknown paths and ids are answered with 404, known paths with an unsupported method with 405.
+ * Every request is timed in {@link Metrics} under its route pattern.
+ */
+class Router {
+  private static final String UNMATCHED = "unmatched";
+
+  private final Node myRoot = new Node();
+
+  interface Handler {
+    String handle(@NotNull Match match, @NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request,
+                  @NotNull ChannelHandlerContext context) throws IOException;
+  }
+
+  enum Param {
+    DATA_SOURCE("{dataSource}"), CONNECTION("{connection}"), CURSOR("{cursor}");
+
+    final String pattern;
+
+    Param(@NotNull String pattern) {
+      this.pattern = pattern;
+    }
+
+    @Nullable
+    static Param of(@NotNull String segment) {
+      for (Param param : values()) {
+        if (param.pattern.equals(segment)) return param;
+      }
+      return null;
+    }
+  }
+
+  Router get(@NotNull String pattern, @NotNull Handler handler) {
+    return route(HttpMethod.GET, pattern, handler);
+  }
+
+  Router post(@NotNull String pattern, @NotNull Handler handler) {
+    return route(HttpMethod.POST, pattern, handler);
+  }
+
+  Router delete(@NotNull String pattern, @NotNull Handler handler) {
+    return route(HttpMethod.DELETE, pattern, handler);
+  }
+
+  Router route(@NotNull HttpMethod method, @NotNull String pattern, @NotNull Handler handler) {
+    Node node = myRoot;
+    for (String segment : pattern.split("/", -1)) {
+      Param param = Param.of(segment);
+      if (param == null) {
+        node = node.myChildren.computeIfAbsent(segment, s -> new Node());
+        continue;
+      }
+      if (node.myParam != null && node.myParam != param) throw new IllegalArgumentException("Conflicting placeholders: " + pattern);
+      node.myParam = param;
+      if (node.myParamChild == null) node.myParamChild = new Node();
+      node = node.myParamChild;
+    }
+    if (node.myHandlers.put(method, new Route(method.name() + " " + pattern, handler)) != null) {
+      throw new IllegalArgumentException("Duplicate route: " + method + " " + pattern);
+    }
+    return this;
+  }
+
+  /**
+   * Dispatches the part of the path starting at {@code base}.
+   */
+  String dispatch(@NotNull QueryStringDecoder urlDecoder, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context,
+                  int base) throws IOException {
+    Match match = new Match();
+    Node node = lookup(urlDecoder.path(), base, match);
+    if (node != null && !match.resolve()) node = null;
+    Route route = node == null ? null : node.myHandlers.get(request.method());
+    Metrics.getInstance().requestStarted(route == null ? request.method().name() + " " + UNMATCHED : route.label, context);
+    if (node == null || node.myHandlers.isEmpty()) return notFound(request, context);
+    if (route == null) return methodNotAllowed(node, request, context);
+    return route.handler.handle(match, urlDecoder, request, context);
+  }
+
+  /**
+   * Walks the part of the path starting at {@code base}, ids of placeholders are stored in {@code match} unresolved.
+   * @return node of the path, {@code null} if there is no such path
+   */
+  @Nullable
+  Node lookup(@NotNull String path, int base, @NotNull Match match) {
+    Node node = myRoot;
+    int start = base;
+    while (node != null) {
+      int end = path.indexOf('/', start);
+      String segment = path.substring(start, end == -1 ? path.length() : end);
+      Node next = node.myChildren.get(segment);
+      if (next == null && node.myParam != null) {
+        match.myIds[node.myParam.ordinal()] = segment;
+        next = node.myParamChild;
+      }
+      node = next;
+      if (end == -1) break;
+      start = end + 1;
+    }
+    return node;
+  }
+
+  private static String methodNotAllowed(@NotNull Node node, @NotNull FullHttpRequest request, @NotNull ChannelHandlerContext context) {
+    FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED, Unpooled.EMPTY_BUFFER);
+    response.headers().set(HttpHeaderNames.ALLOW, node.myHandlers.keySet().stream().map(HttpMethod::name).collect(Collectors.joining(", ")));
+    HttpUtil.setContentLength(response, 0);
+    boolean keepAlive = HttpUtil.isKeepAlive(request);
+    HttpUtil.setKeepAlive(response, keepAlive);
+    ChannelFuture future = context.channel().writeAndFlush(response);
+    if (!keepAlive) future.addListener(ChannelFutureListener.CLOSE);
+    return null;
+  }
+
+  static class Node {
+    final Map<String, Node> myChildren = ContainerUtil.newHashMap();
+    final Map<HttpMethod, Route> myHandlers = new LinkedHashMap<>();
+    Param myParam;
+    Node myParamChild;
+  }
+
+  private static class Route {
+    final String label;
+    final Handler handler;
+
+    Route(@NotNull String label, @NotNull Handler handler) {
+      this.label = label;
+      this.handler = handler;
+    }
+  }
+
+  /**
+   * Objects denoted by the ids of the path, {@code null} unless the route has their placeholders.
+   */
+  static class Match {
+    LocalDataSource dataSource;
+    ProjectHandler project;
+    ConnectionHandler connection;
+    CursorHandler cursor;
+    private final String[] myIds = new String[Param.values().length];
+    private DataSourceHandler myDataSourceHandler;
+
+    @NotNull
+    DataSourceHandler dataSourceHandler() {
+      if (myDataSourceHandler == null) myDataSourceHandler = project.getOrCreateDataSourceHandler(dataSource);
+      return myDataSourceHandler;
+    }
+
+    /**
+     * Resolves collected ids in the order of placeholders, later ones are looked up in the objects of earlier ones.
+     * @return {@code false} if some id denotes nothing
+     */
+    private boolean resolve() {
+      for (Param param : Param.values()) {
+        String id = myIds[param.ordinal()];
+        if (id != null && !bind(param, id)) return false;
+      }
+      return true;
+    }
+
+    private boolean bind(@NotNull Param param, @NotNull String segment) {
+      switch (param) {
+        case DATA_SOURCE:
+          DataSourceIndex.Entry entry = DataSourceIndex.getInstance().find(segment);
+          if (entry == null) return false;
+          dataSource = entry.dataSource;
+          project = ProjectHandler.getInstance(entry.project);
+          return true;
+        case CONNECTION:
+          UUID connectionId = parseId(segment);
+          connection = connectionId == null ? null : dataSourceHandler().findConnection(connectionId);
+          if (connection == null) return false;
+          connection.touch();
+          return true;
+        case CURSOR:
+          UUID cursorId = parseId(segment);
+          cursor = cursorId == null ? null : connection.findCursor(cursorId);
+          if (cursor == null) return false;
+          cursor.touch();
+          return true;
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package com.github.kassak.intellij.expose;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+class Values {
+  private static final Pattern TIME_PATTERN = Pattern.compile("\\d{2}:\\d{2}(:\\d{2}(\\.\\d{1,9})?)?");
+  private static final Pattern DATE_TIME_PATTERN = Pattern.compile("(\\d{4}-\\d{2}-\\d{2})(?:[ T](" + TIME_PATTERN.pattern() + ")\\s*(?<offset>Z|[+-]\\d{2}(?::?\\d{2})?)?)?");
+
+  private Values() {
+  }
+
+  static long toLong(@NotNull Object value) throws IOException {
+    if (value instanceof BigInteger && ((BigInteger)value).bitLength() > 63) throw new IOException("Value does not fit int64: " + value);
+    if (value instanceof Number) return ((Number)value).longValue();
+    if (value instanceof Boolean) return (Boolean)value ? 1 : 0;
+    try {
+      return Long.parseLong(value.toString().trim());
+    }
+    catch (NumberFormatException e) {
+      throw new IOException("Not an integer: " + value, e);
+    }
+  }
+
+  static double toDouble(@NotNull Object value) throws IOException {
+    if (value instanceof Number) return ((Number)value).doubleValue();
+    try {
+      return Double.parseDouble(value.toString().trim());
+    }
+    catch (NumberFormatException e) {
+      throw new IOException("Not a number: " + value, e);
+    }
+  }
+
+  static boolean toBoolean(@NotNull Object value) {
+    if (value instanceof Boolean) return (Boolean)value;
+    if (value instanceof Number) return ((Number)value).intValue() != 0;
+    String s = value.toString().trim();
+    return "1".equals(s) || "true".equalsIgnoreCase(s) || "t".equalsIgnoreCase(s);
+  }
+
+  @NotNull
+  static LocalDate toLocalDate(@NotNull Object value) throws IOException {
+    if (value instanceof java.sql.Date) return ((java.sql.Date)value).toLocalDate();
+    if (value instanceof java.util.Date) return new java.sql.Date(((java.util.Date)value).getTime()).toLocalDate();
+    if (value instanceof LocalDate) return (LocalDate)value;
+    if (value instanceof LocalDateTime) return ((LocalDateTime)value).toLocalDate();
+    try {
+      return LocalDate.parse(value.toString().trim());
+    }
+    catch (DateTimeException e) {
+      throw new IOException("Not a date: " + value, e);
+    }
+  }
+
+  static long toMicrosOfDay(@NotNull Object value) throws IOException {
+    if (value instanceof Time) {
+      Time time = (Time)value;
+      return time.toLocalTime().toSecondOfDay() * 1_000_000L + Math.floorMod(time.getTime(), 1000L) * 1000;
+    }
+    LocalTime time;
+    if (value instanceof LocalTime) time = (LocalTime)value;
+    else if (value instanceof OffsetTime) time = ((OffsetTime)value).toLocalTime();
+    else {
+      Matcher m = TIME_PATTERN.matcher(value.toString().trim());
+      if (!m.lookingAt()) throw new IOException("Not a time: " + value);
+      try {
+        time = LocalTime.parse(m.group());
+      }
+      catch (DateTimeException e) {
+        throw new IOException("Not a time: " + value, e);
+      }
+    }
+    return time.toNanoOfDay() / 1000;
+  }
+
+  /**
+   * Timestamps with an offset or a zone are converted to UTC, ones without are taken as they are.
+   */
+  @NotNull
+  static LocalDateTime toLocalDateTime(@NotNull Object value) throws IOException {
+    if (value instanceof Timestamp) return ((Timestamp)value).toLocalDateTime();
+    if (value instanceof java.util.Date) return new Timestamp(((java.util.Date)value).getTime()).toLocalDateTime();
+    if (value instanceof LocalDateTime) return (LocalDateTime)value;
+    if (value instanceof OffsetDateTime) return ((OffsetDateTime)value).withOffsetSameInstant(ZoneOffset.UTC).toLocalDateTime();
+    if (value instanceof ZonedDateTime) return LocalDateTime.ofInstant(((ZonedDateTime)value).toInstant(), ZoneOffset.UTC);
+    if (value instanceof Instant) return LocalDateTime.ofInstant((Instant)value, ZoneOffset.UTC);
+    if (value instanceof LocalDate) return ((LocalDate)value).atStartOfDay();
+    // vendor specific classes, e.g. timestamps with time zone, are parsed from their string form
+    Matcher m = DATE_TIME_PATTERN.matcher(value.toString().trim());
+    if (!m.lookingAt()) throw new IOException("Not a timestamp: " + value);
+    try {
+      LocalDateTime dt = LocalDateTime.of(LocalDate.parse(m.group(1)), m.group(2) == null ? LocalTime.MIDNIGHT : LocalTime.parse(m.group(2)));
+      String offset = m.group("offset");
+      if (offset == null) return dt;
+      return dt.atOffset(ZoneOffset.of(offset)).withOffsetSameInstant(ZoneOffset.UTC).toLocalDateTime();
+    }
+    catch (DateTimeException e) {
+      throw new IOException("Not a timestamp: " + value, e);
+    }
+  }
+}
@@ -7,10 +7,11 @@ import com.intellij.database.datagrid.DataProducer;
 import com.intellij.database.datagrid.DataRequest;
 import com.intellij.database.datagrid.DataRequest.CallRequest.Statement;
 import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.util.Disposer;
-import com.intellij.util.ArrayUtil;
 import com.intellij.util.containers.ContainerUtil;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntIntHashMap;
 import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
@@ -19,56 +20,160 @@ import org.jetbrains.concurrency.AsyncPromise;
 import org.jetbrains.concurrency.Promise;
 import org.jetbrains.concurrency.Promises;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class DGCursor implements Disposable {
+  private static final Logger LOG = Logger.getInstance(DGCursor.class);
+  private static final long ADAPT_HORIZON_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final String CLOSED = "Cursor is closed";
+  private static final String RESULT_CLOSED = "Result is closed";
+  /**
+   * Microseconds from submitting a query to its first row.
+   */
+  public static final Histogram FIRST_ROW = new Histogram();
+  /**
+   * Microseconds the producer waited for clients to take buffered rows.
+   */
+  public static final Histogram PRODUCER_BLOCKED = new Histogram();
+
   private final DataRequest.OwnerEx myOwner;
   private final JdbcEngine myEngine;
   private final AtomicReference<QueryData> myData = new AtomicReference<>();
   private volatile String prevQuery;
+  private final Prefetch myPrefetch;
+  private volatile boolean myDisposed;
 
-  public DGCursor(@NotNull DataRequest.OwnerEx owner, @NotNull JdbcEngine engine) {
+  public DGCursor(@NotNull DataRequest.OwnerEx owner, @NotNull JdbcEngine engine, @NotNull Prefetch prefetch) {
     myOwner = owner;
     myEngine = engine;
+    myPrefetch = prefetch;
+  }
+
+  /**
+   * @return update counts reported by the statement, empty for queries
+   */
+  public Promise<int[]> execute(@Nullable String query, @NotNull List<Object> params) {
+    return execute(query, params, null, null);
   }
 
-  public Promise<Void> execute(@Nullable String query, @NotNull List<Object> params) {
+  /**
+   * @param cacheScope data source to look up and store results of read-only query in {@link ResultCache}, {@code null} to bypass the cache
+   * @param prefetch window for this query only, {@code null} to use the one the cursor was created with
+   */
+  public Promise<int[]> execute(@Nullable String query, @NotNull List<Object> params, @Nullable String cacheScope,
+                                @Nullable Prefetch prefetch) {
+    Prefetch window = prefetch == null ? myPrefetch : prefetch;
     if (query == null) query = prevQuery;
     else prevQuery = query;
     if (query == null) return Promises.rejectedPromise("Empty query");
+    if (cacheScope == null || !ResultCache.isCacheable(query)) {
+      QueryData data = submit(Collections.singletonList(createStatement(query, params)), window, false, false);
+      return data.query.then(ignore -> data.updateCounts());
+    }
+    ResultCache cache = ResultCache.getInstance();
+    ResultCache.Key key = new ResultCache.Key(cacheScope, query, params);
+    ResultCache.Entry hit = cache.get(key, System.currentTimeMillis());
+    if (hit != null) {
+      resetQueries(new QueryData(hit, window));
+      return Promises.resolvedPromise(new int[0]);
+    }
+    int generation = cache.generation(cacheScope);
+    QueryData data = submit(Collections.singletonList(createStatement(query, params)), window, false, true);
+    return data.query.then(ignore -> {
+      ResultCache.Entry entry = data.recorded(System.currentTimeMillis() + ResultCache.ttlMillis());
+      if (entry != null) cache.put(key, entry, generation);
+      return data.updateCounts();
+    });
+  }
+
+  /**
+   * Runs the query once per parameter set within a single request, rows produced by the statements are dropped.
+   * @return update count of every statement
+   */
+  public Promise<int[]> executeBatch(@Nullable String query, @NotNull List<List<Object>> paramSets) {
+    if (query == null) query = prevQuery;
+    else prevQuery = query;
+    if (query == null) return Promises.rejectedPromise("Empty query");
+    String q = query;
+    QueryData data = submit(ContainerUtil.map(paramSets, params -> createStatement(q, params)), myPrefetch, true, false);
+    return data.query.then(ignore -> data.updateCounts());
+  }
+
+  @NotNull
+  private static Statement createStatement(@NotNull String query, @NotNull List<Object> params) {
     TIntObjectHashMap<Object> p = new TIntObjectHashMap<>();
     for (int i = 0; i < params.size(); i++) {
       p.put(i + 1, params.get(i));
     }
+    return new Statement(query, new TIntIntHashMap(), p);
+  }
 
-    DataRequest request = DataRequest.newCallRequest(myOwner, Collections.singletonList(new Statement(query, new TIntIntHashMap(), p)), null);
-    QueryData data = new QueryData(request);
+  /**
+   * @param record whether to keep result sets for the result cache, starts before the producer may deliver the first one
+   */
+  @NotNull
+  private QueryData submit(@NotNull List<Statement> statements, @NotNull Prefetch prefetch, boolean batch, boolean record) {
+    DataRequest request = DataRequest.newCallRequest(myOwner, statements, null);
+    QueryData data = new QueryData(request, prefetch, batch);
+    if (record) data.record();
     resetQueries(data);
     request.getPromise().processed(data.query);
-    request.getPromise().onError(e -> data.poison());
+    request.getPromise().onProcessed(ignore -> data.finish());
     producer().processRequest(request);
-    return data.query;
+    return data;
   }
 
   private void resetQueries(@Nullable QueryData data) {
     QueryData prev = myData.getAndSet(data);
-    if (data != null) {
+    if (data != null && data.request != null) {
       myOwner.getMessageBus().addConsumer(data);
       myOwner.getMessageBus().addAuditor(data);
     }
     if (prev == null) return;
     Disposer.dispose(prev);
-    myEngine.cancelPendingRequests();
+    // the engine is shared by all cursors of the connection, a finished query has nothing of its own to cancel
+    if (prev.query.getState() == Promise.State.PENDING) myEngine.cancelPendingRequests();
   }
 
   public boolean haveQuery() {
     return myData.get() != null;
   }
 
+  /**
+   * @return whether a client waits for rows or for the next result set
+   */
+  public boolean isBusy() {
+    QueryData data = myData.get();
+    return data != null && data.isBusy();
+  }
+
+  public long getBufferedBytes() {
+    QueryData data = myData.get();
+    return data == null ? 0 : data.bufferedBytes();
+  }
+
+  public int getBufferedRows() {
+    QueryData data = myData.get();
+    return data == null ? 0 : data.bufferedRows();
+  }
+
+  /**
+   * @return how close the buffer is to its prefetch window, by rows or bytes whichever is closer, 1 for a full buffer
+   */
+  public double getBufferFill() {
+    QueryData data = myData.get();
+    return data == null ? 0 : data.bufferFill();
+  }
+
+  /**
+   * @return error of the current query, reported by every later fetch of its result
+   */
   @Nullable
   public Throwable fetchError() {
     QueryData data = myData.get();
@@ -76,17 +181,69 @@ public class DGCursor implements Disposable {
   }
 
   @NotNull
-  public List<DataConsumer.Row> fetch(int limit) throws InterruptedException {
+  public Promise<List<DataConsumer.Row>> fetch(int limit) {
+    return fetch(-1, limit);
+  }
+
+  /**
+   * @param offset position in the current result set to fetch from, -1 to continue after previous fetch.
+   *               Rows before current position are available only for cursors with {@link Prefetch#scroll()}
+   */
+  @NotNull
+  public Promise<List<DataConsumer.Row>> fetch(int offset, int limit) {
+    if (myDisposed) return Promises.rejectedPromise(CLOSED);
+    QueryData data = myData.get();
+    if (data == null) return Promises.resolvedPromise(Collections.emptyList());
+    return data.fetch(offset, limit, false);
+  }
+
+  /**
+   * Continues after previous fetch, but resolves as soon as some rows are available instead of waiting for {@code limit} of them.
+   * Empty list means the current result set is exhausted. Scrollable cursors still wait for the whole window.
+   */
+  @NotNull
+  public Promise<List<DataConsumer.Row>> fetchAvailable(int limit) {
+    if (myDisposed) return Promises.rejectedPromise(CLOSED);
+    QueryData data = myData.get();
+    if (data == null) return Promises.resolvedPromise(Collections.emptyList());
+    return data.fetch(-1, limit, true);
+  }
+
+  /**
+   * @return total number of rows in the current result set, -1 until the last row is received
+   */
+  public long getRowCount() {
     QueryData data = myData.get();
-    if (data == null) return Collections.emptyList();
-    return data.fetch(limit);
+    return data == null ? -1 : data.rowCount();
   }
 
   @Nullable
   public List<DataConsumer.Column> getColumns() {
     QueryData data = myData.get();
     if (data == null) return null;
-    return data.columns;
+    return data.columns();
+  }
+
+  /**
+   * Resolves with columns of the current result set once the query produces it, with {@code null} if there is none.
+   */
+  @NotNull
+  public Promise<List<DataConsumer.Column>> columnsReady() {
+    if (myDisposed) return Promises.rejectedPromise(CLOSED);
+    QueryData data = myData.get();
+    if (data == null) return Promises.resolvedPromise(null);
+    return data.columnsReady();
+  }
+
+  /**
+   * Moves to the next result set of the current query.
+   */
+  @NotNull
+  public Promise<Boolean> nextSet() {
+    if (myDisposed) return Promises.rejectedPromise(CLOSED);
+    QueryData data = myData.get();
+    if (data == null) return Promises.resolvedPromise(false);
+    return data.nextSet();
   }
 
   private DataProducer producer() {
@@ -95,62 +252,405 @@ public class DGCursor implements Disposable {
 
   @Override
   public void dispose() {
+    myDisposed = true;
     resetQueries(null);
   }
 
-  private static class QueryData extends DataAuditor.Adapter implements DataConsumer, Disposable {
+  static long estimateSize(@NotNull DataConsumer.Row row) {
+    long size = 16 + 8L * row.values.length;
+    for (Object value : row.values) {
+      if (value instanceof String) size += 2L * ((String)value).length();
+      else if (value instanceof byte[]) size += ((byte[])value).length;
+      else if (value != null) size += 16;
+    }
+    return size;
+  }
+
+  /**
+   * Rows of a query handed from the producer, which calls {@link #startSet}, {@link #produce} and {@link #endSet}, to fetching clients.
+   */
+  static class QueryData extends DataAuditor.Adapter implements DataConsumer, Disposable {
     final DataRequest request;
     final AsyncPromise<Void> query = new AsyncPromise<>();
     final AtomicReference<Throwable> lastException = new AtomicReference<>();
-    volatile List<DataConsumer.Column> columns;
-
-    final BlockingQueue<DataConsumer.Row> buffer = new ArrayBlockingQueue<>(50);
-    boolean finished;
+    // bytes of rows spilled to disk by all result sets
+    final AtomicLong spilled = new AtomicLong();
+    final Prefetch prefetch;
+    final boolean batch;
+    private final TIntArrayList updateCounts = new TIntArrayList();
+    // result sets received but not yet skipped by the client, the first one is being fetched, the last one may be still produced
+    private final ArrayDeque<ResultSetData> sets = new ArrayDeque<>();
+    private int bufferedRows;
+    private long bufferedBytes;
+    private int window;
+    private boolean stalled;
+    private long lastFetch = System.nanoTime();
+    // when the query was submitted, 0 once its first row is received, accessed by the producer only
+    private long submitted;
+    private PendingFetch pending;
+    private AsyncPromise<Boolean> pendingNextSet;
+    // waiting for columns of the first result set
+    private final List<AsyncPromise<List<DataConsumer.Column>>> pendingColumns = ContainerUtil.newArrayList();
+    private boolean finished;
+    private boolean disposed;
+    // rows served from the result cache are shared, so they are not accounted as buffered
+    private final boolean cached;
+    // result sets kept for the result cache, null if not recording or too large to cache
+    private List<ResultCache.CachedSet> recording;
+    private long recordedBytes;
 
-    private QueryData(DataRequest request) {
+    QueryData(@Nullable DataRequest request, Prefetch prefetch, boolean batch) {
       this.request = request;
+      this.prefetch = prefetch;
+      this.batch = batch;
+      this.window = prefetch.rows;
+      this.cached = false;
+      this.submitted = System.nanoTime();
+    }
+
+    private QueryData(@NotNull ResultCache.Entry entry, Prefetch prefetch) {
+      this.request = null;
+      this.prefetch = prefetch;
+      this.batch = false;
+      this.window = prefetch.rows;
+      this.cached = true;
+      for (ResultCache.CachedSet cachedSet : entry.sets) {
+        ResultSetData set = new ResultSetData(cachedSet.index, cachedSet.columns);
+        if (prefetch.scroll) set.store = new RowStore(cachedSet.rows);
+        else set.buffer.addAll(cachedSet.rows);
+        set.produced = set.rowCount = cachedSet.rows.size();
+        set.finished = true;
+        sets.add(set);
+      }
+      finished = true;
+      query.setResult(null);
+    }
+
+    synchronized void record() {
+      recording = ContainerUtil.newArrayList();
+    }
+
+    /**
+     * @return recorded result sets unless the query failed or was abandoned
+     */
+    @Nullable
+    synchronized ResultCache.Entry recorded(long expires) {
+      if (recording == null || disposed || lastException.get() != null) return null;
+      return new ResultCache.Entry(recording, recordedBytes, expires);
     }
 
     @Override
     public void dispose() {
+      PendingFetch done;
+      AsyncPromise<Boolean> next;
+      synchronized (this) {
+        disposed = true;
+        for (ResultSetData set : sets) {
+          set.closeSpill();
+        }
+        sets.clear();
+        bufferedRows = 0;
+        bufferedBytes = 0;
+        done = pending;
+        pending = null;
+        next = pendingNextSet;
+        pendingNextSet = null;
+        notifyAll();
+      }
+      // rows of a closed result are dropped, so a waiting client must not take what it got as the whole result
+      if (done != null) done.promise.setError(RESULT_CLOSED);
+      if (next != null) next.setError(RESULT_CLOSED);
+      for (AsyncPromise<List<DataConsumer.Column>> waiter : takePendingColumns()) {
+        waiter.setError(RESULT_CLOSED);
+      }
+    }
 
+    synchronized boolean isBusy() {
+      return pending != null || pendingNextSet != null;
     }
 
-    List<DataConsumer.Row> fetch(int limit) throws InterruptedException {
-      List<DataConsumer.Row> res = ContainerUtil.newArrayListWithCapacity(limit == -1 ? 50 : limit);
-      while ((limit == -1 || res.size() < limit) && !finished) {
-        res.add(buffer.take());
-        buffer.drainTo(res, limit - res.size());
-        removePoisoned(res);
+    /**
+     * @return bytes of rows waiting for the client and of rows kept on heap by scrollable result sets
+     */
+    synchronized long bufferedBytes() {
+      long bytes = bufferedBytes;
+      for (ResultSetData set : sets) {
+        if (set.store != null) bytes += set.store.getHeapBytes();
       }
+      return bytes;
+    }
+
+    synchronized int bufferedRows() {
+      return bufferedRows;
+    }
+
+    synchronized double bufferFill() {
+      return Math.max((double)bufferedRows / window, (double)bufferedBytes / prefetch.bytes);
+    }
+
+    @Nullable
+    synchronized List<DataConsumer.Column> columns() {
+      ResultSetData current = sets.peekFirst();
+      return current == null ? null : current.columns;
+    }
+
+    synchronized Promise<List<DataConsumer.Column>> columnsReady() {
+      if (disposed) return Promises.rejectedPromise(RESULT_CLOSED);
+      ResultSetData current = sets.peekFirst();
+      if (current != null || finished) return Promises.resolvedPromise(current == null ? null : current.columns);
+      AsyncPromise<List<DataConsumer.Column>> promise = new AsyncPromise<>();
+      pendingColumns.add(promise);
+      return promise;
+    }
+
+    @NotNull
+    private synchronized List<AsyncPromise<List<DataConsumer.Column>>> takePendingColumns() {
+      List<AsyncPromise<List<DataConsumer.Column>>> res = ContainerUtil.newArrayList(pendingColumns);
+      pendingColumns.clear();
       return res;
     }
 
-    private void removePoisoned(List<DataConsumer.Row> res) {
-      while (true) {
-        int last = res.size() - 1;
-        if (last >= 0 && DataConsumer.Row.toRealIdx(res.get(last)) == Integer.MIN_VALUE) {
-          finished = true;
-          res.remove(last);
+    synchronized long rowCount() {
+      ResultSetData current = sets.peekFirst();
+      return current == null ? -1 : current.rowCount;
+    }
+
+    Promise<List<DataConsumer.Row>> fetch(int offset, int limit, boolean partial) {
+      List<DataConsumer.Row> res = ContainerUtil.newArrayListWithCapacity(limit == -1 ? Prefetch.INITIAL_ROWS : limit);
+      synchronized (this) {
+        if (disposed) return Promises.rejectedPromise(RESULT_CLOSED);
+        // rows of a failed query are incomplete, a short window must not look like the end of the result
+        Throwable error = finished ? lastException.get() : null;
+        if (error != null) return Promises.rejectedPromise(error);
+        if (pending != null) return Promises.rejectedPromise("Fetch is already in progress");
+        if (offset != -1 && !prefetch.scroll) return Promises.rejectedPromise("Cursor is not scrollable");
+        ResultSetData current = sets.peekFirst();
+        if (prefetch.scroll && (current == null ? !finished && !disposed : current.store != null)) {
+          if (current != null && offset != -1) current.position = offset;
+          if (current == null || !isScrollSatisfied(current, limit)) {
+            pending = new PendingFetch(res, limit, false);
+            pending.offset = current == null ? offset : -1;
+            return pending.promise;
+          }
+          try {
+            return Promises.resolvedPromise(takeScroll(current, limit));
+          }
+          catch (IOException e) {
+            return Promises.rejectedPromise(e);
+          }
+        }
+        if (current != null && current.spill != null) {
+          try {
+            while ((limit == -1 || res.size() < limit) && current.spill.hasNext()) {
+              res.add(current.spill.next());
+            }
+          }
+          catch (IOException e) {
+            return Promises.rejectedPromise(e);
+          }
+        }
+        if (current != null) {
+          while ((limit == -1 || res.size() < limit) && !current.buffer.isEmpty()) {
+            DataConsumer.Row row = current.buffer.poll();
+            if (!cached) {
+              bufferedRows--;
+              bufferedBytes -= estimateSize(row);
+            }
+            res.add(row);
+          }
+        }
+        if (prefetch.adaptive) adapt(res.size());
+        notifyAll();
+        boolean exhausted = current == null ? finished : current.finished;
+        if (!exhausted && !disposed && (limit == -1 || res.size() < limit) && !(partial && !res.isEmpty())) {
+          pending = new PendingFetch(res, limit, partial);
+          return pending.promise;
+        }
+      }
+      return Promises.resolvedPromise(res);
+    }
+
+    /**
+     * Skips the rest of the current result set.
+     * @return whether there is one more result set, waits for the producer if it is not known yet
+     */
+    Promise<Boolean> nextSet() {
+      synchronized (this) {
+        if (pending != null || pendingNextSet != null) return Promises.rejectedPromise("Fetch is already in progress");
+        ResultSetData current = sets.pollFirst();
+        if (current != null) {
+          current.skipped = true;
+          current.closeSpill();
+          if (!cached) {
+            bufferedRows -= current.buffer.size();
+            for (DataConsumer.Row row : current.buffer) {
+              bufferedBytes -= estimateSize(row);
+            }
+          }
+          current.buffer.clear();
+          notifyAll();
         }
-        else {
-          break;
+        if (disposed) return Promises.rejectedPromise(RESULT_CLOSED);
+        if (!sets.isEmpty() || finished) return Promises.resolvedPromise(!sets.isEmpty());
+        pendingNextSet = new AsyncPromise<>();
+        return pendingNextSet;
+      }
+    }
+
+    private void offer(@NotNull ResultSetData set, DataConsumer.Row row) throws InterruptedException, IOException {
+      if (set.store != null) {
+        offerScroll(set, row);
+        return;
+      }
+      PendingFetch done;
+      long size = estimateSize(row);
+      synchronized (this) {
+        long blocked = 0;
+        while (!isConsumed(set) && set.spill == null && isFull() && !disposed && !set.skipped) {
+          stalled = true;
+          if (blocked == 0) blocked = System.nanoTime();
+          wait();
         }
+        if (blocked != 0) PRODUCER_BLOCKED.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - blocked));
+        if (disposed || set.skipped) return;
+        if (!isConsumed(set) && set.spill != null) {
+          set.spill.append(row);
+          return;
+        }
+        if (!isConsumed(set)) {
+          set.buffer.add(row);
+          bufferedRows++;
+          bufferedBytes += size;
+          return;
+        }
+        pending.rows.add(row);
+        if (!pending.isSatisfied()) return;
+        done = pending;
+        pending = null;
+      }
+      done.complete();
+    }
+
+    /**
+     * Scrollable result set keeps every row, so the producer never waits for the client.
+     */
+    private void offerScroll(@NotNull ResultSetData set, DataConsumer.Row row) throws IOException {
+      PendingFetch done;
+      synchronized (this) {
+        if (disposed || set.skipped) return;
+        set.store.add(row);
+        if (!isConsumed(set) || !isScrollSatisfied(set, pending.limit)) return;
+        done = pending;
+        pending = null;
+        fillScroll(set, done);
       }
+      done.complete();
     }
 
-    private void poison() {
+    /**
+     * Scrollable result set has enough rows past current position, or all of them.
+     */
+    private boolean isScrollSatisfied(@NotNull ResultSetData set, int limit) {
+      int position = pending != null && pending.offset != -1 ? pending.offset : set.position;
+      return set.finished || disposed || limit != -1 && set.store.size() >= (long)position + limit;
+    }
+
+    @NotNull
+    private List<DataConsumer.Row> takeScroll(@NotNull ResultSetData set, int limit) throws IOException {
+      List<DataConsumer.Row> rows = set.store.get(set.position, limit);
+      set.position += rows.size();
+      return rows;
+    }
+
+    private void fillScroll(@NotNull ResultSetData set, @NotNull PendingFetch done) {
+      if (set.store == null) return;
+      if (done.offset != -1) set.position = done.offset;
       try {
-        buffer.put(DataConsumer.Row.create(Integer.MIN_VALUE, ArrayUtil.EMPTY_OBJECT_ARRAY));
+        done.rows.addAll(takeScroll(set, done.limit));
       }
-      catch (InterruptedException e) {
-        throw new ProcessCanceledException();
+      catch (IOException e) {
+        done.error = e;
       }
     }
 
+    private boolean isConsumed(@NotNull ResultSetData set) {
+      return pending != null && sets.peekFirst() == set;
+    }
+
+    private boolean isFull() {
+      return bufferedRows >= window || bufferedRows > 0 && bufferedBytes >= prefetch.bytes;
+    }
+
+    /**
+     * Producer had to wait for the client, so the window is too small: grow it to hold what client consumes during
+     * {@link #ADAPT_HORIZON_NANOS}, but at least double it. Byte limit keeps wide rows in check.
+     */
+    private void adapt(int taken) {
+      long now = System.nanoTime();
+      if (stalled) {
+        stalled = false;
+        long elapsed = Math.max(now - lastFetch, 1);
+        long rate = taken * ADAPT_HORIZON_NANOS / elapsed;
+        window = (int)Math.min(Prefetch.MAX_ROWS, Math.max(2L * window, rate));
+      }
+      lastFetch = now;
+    }
+
+    @Nullable
+    private synchronized ResultSetData producing() {
+      ResultSetData last = sets.peekLast();
+      return last == null || last.finished ? null : last;
+    }
+
+    private void finishSet(@NotNull ResultSetData set) {
+      PendingFetch done = null;
+      synchronized (this) {
+        set.finished = true;
+        set.rowCount = set.produced;
+        if (sets.peekFirst() == set && pending != null) {
+          done = pending;
+          pending = null;
+          fillScroll(set, done);
+        }
+      }
+      if (done != null) done.complete();
+    }
+
+    private void finish() {
+      PendingFetch done;
+      AsyncPromise<Boolean> next;
+      Throwable error = lastException.get();
+      synchronized (this) {
+        finished = true;
+        for (ResultSetData set : sets) {
+          set.finished = true;
+        }
+        done = pending;
+        pending = null;
+        ResultSetData current = sets.peekFirst();
+        if (done != null && current != null) fillScroll(current, done);
+        if (done != null && error != null) done.error = error;
+        next = pendingNextSet;
+        pendingNextSet = null;
+      }
+      if (done != null) done.complete();
+      if (next != null) {
+        if (error != null) next.setError(error);
+        else next.setResult(false);
+      }
+      List<DataConsumer.Column> current = columns();
+      for (AsyncPromise<List<DataConsumer.Column>> waiter : takePendingColumns()) {
+        waiter.setResult(current);
+      }
+    }
+
+    synchronized int[] updateCounts() {
+      return updateCounts.toNativeArray();
+    }
+
     @Nullable
     Throwable fetchError() {
-      return lastException.getAndSet(null);
+      return lastException.get();
     }
 
     @Override
@@ -160,28 +660,168 @@ public class DGCursor implements Disposable {
     }
 
     @Override
-    public void setColumns(@NotNull DataRequest.Context context, int i, Column[] columns, int i1) {
+    public void updateCountReceived(@NotNull DataRequest.Context context, int count) {
       if (context.request != request) return;
-      this.columns = ContainerUtil.newArrayList(columns);
+      synchronized (this) {
+        updateCounts.add(count);
+      }
+    }
+
+    @Override
+    public void setColumns(@NotNull DataRequest.Context context, int subQueryIndex, Column[] columns, int firstRowNum) {
+      if (context.request != request || batch) return;
+      startSet(subQueryIndex, columns);
+    }
+
+    void startSet(int subQueryIndex, Column[] columns) {
+      ResultSetData producing = producing();
+      if (producing != null && producing.index == subQueryIndex) {
+        producing.columns = ContainerUtil.newArrayList(columns);
+        synchronized (this) {
+          if (recording != null) ContainerUtil.getLastItem(recording).columns = producing.columns;
+        }
+        return;
+      }
+      if (producing != null) finishSet(producing);
+      AsyncPromise<Boolean> next;
+      synchronized (this) {
+        ResultSetData set = new ResultSetData(subQueryIndex, ContainerUtil.newArrayList(columns));
+        if (prefetch.scroll) {
+          set.store = new RowStore(prefetch.bytes, spilled);
+        }
+        else if (prefetch.spill) {
+          try {
+            set.spill = new SpillFile(spilled);
+          }
+          catch (IOException e) {
+            LOG.warn("Cannot create spill file, buffering rows in memory", e);
+          }
+        }
+        sets.add(set);
+        if (recording != null) recording.add(new ResultCache.CachedSet(subQueryIndex, set.columns));
+        next = pendingNextSet;
+        pendingNextSet = null;
+      }
+      if (next != null) next.setResult(true);
+      List<DataConsumer.Column> current = columns();
+      if (current == null) return;
+      for (AsyncPromise<List<DataConsumer.Column>> waiter : takePendingColumns()) {
+        waiter.setResult(current);
+      }
     }
 
     @Override
     public void addRows(@NotNull DataRequest.Context context, List<Row> list) {
-      if (context.request != request) return;
+      if (context.request != request || batch) return;
+      produce(list);
+    }
+
+    void produce(@NotNull List<Row> list) {
+      ResultSetData set = producing();
+      if (set == null) return;
+      if (submitted != 0 && !list.isEmpty()) {
+        FIRST_ROW.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - submitted));
+        submitted = 0;
+      }
+      synchronized (this) {
+        set.produced += list.size();
+        if (recording != null) {
+          ResultCache.CachedSet cachedSet = ContainerUtil.getLastItem(recording);
+          for (DataConsumer.Row row : list) {
+            recordedBytes += estimateSize(row);
+          }
+          if (cachedSet == null || recordedBytes > ResultCache.maxBytes()) recording = null;
+          else cachedSet.rows.addAll(list);
+        }
+      }
       try {
         for (DataConsumer.Row row : list) {
-          buffer.put(row);
+          offer(set, row);
+        }
+        PendingFetch done = null;
+        synchronized (this) {
+          if (pending != null && pending.partial && !pending.rows.isEmpty() && isConsumed(set)) {
+            done = pending;
+            pending = null;
+          }
         }
+        if (done != null) done.complete();
       }
       catch (InterruptedException e) {
         throw new ProcessCanceledException();
       }
+      catch (IOException e) {
+        lastException.set(e);
+        throw new ProcessCanceledException();
+      }
     }
 
     @Override
-    public void afterLastRowAdded(@NotNull DataRequest.Context context, int i) {
+    public void afterLastRowAdded(@NotNull DataRequest.Context context, int total) {
       if (context.request != request) return;
-      poison();
+      endSet();
+    }
+
+    void endSet() {
+      ResultSetData set = producing();
+      if (set != null) finishSet(set);
+    }
+  }
+
+  private static class ResultSetData {
+    final int index;
+    final ArrayDeque<DataConsumer.Row> buffer = new ArrayDeque<>();
+    volatile List<DataConsumer.Column> columns;
+    long produced;
+    volatile long rowCount = -1;
+    boolean finished;
+    boolean skipped;
+    // rows produced while the client is not waiting for them, buffer is not used if set
+    SpillFile spill;
+    // all rows of scrollable result set, buffer is not used if set
+    RowStore store;
+    int position;
+
+    ResultSetData(int index, List<DataConsumer.Column> columns) {
+      this.index = index;
+      this.columns = columns;
+    }
+
+    void closeSpill() {
+      try {
+        if (spill != null) spill.close();
+        if (store != null) store.close();
+      }
+      catch (IOException e) {
+        LOG.warn(e);
+      }
+      spill = null;
+    }
+  }
+
+  private static class PendingFetch {
+    final AsyncPromise<List<DataConsumer.Row>> promise = new AsyncPromise<>();
+    final List<DataConsumer.Row> rows;
+    final int limit;
+    // completes after the batch of rows which made it non-empty
+    final boolean partial;
+    // position to fetch from in a scrollable result set which was not produced yet
+    int offset = -1;
+    Throwable error;
+
+    PendingFetch(List<DataConsumer.Row> rows, int limit, boolean partial) {
+      this.rows = rows;
+      this.limit = limit;
+      this.partial = partial;
+    }
+
+    boolean isSatisfied() {
+      return limit != -1 && rows.size() >= limit;
+    }
+
+    void complete() {
+      if (error != null) promise.setError(error);
+      else promise.setResult(rows);
     }
   }
 }
@@ -0,0 +1,93 @@
+package com.github.kassak.intellij.expose.counterpart;
+
+import com.google.gson.stream.JsonWriter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with log-linear buckets: values below 32 are exact, larger ones fall into
+ * 16 buckets per power of two, so quantiles are within 6.25% of recorded values. Recording is a couple of atomic increments.
+ */
+public class Histogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB = 1 << SUB_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+  private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+  private final AtomicLongArray myBuckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder myCount = new LongAdder();
+  private final LongAdder mySum = new LongAdder();
+  private final LongAccumulator myMax = new LongAccumulator(Math::max, 0);
+
+  public void record(long value) {
+    if (value < 0) value = 0;
+    myBuckets.incrementAndGet(index(Math.min(value, MAX_VALUE)));
+    myCount.increment();
+    mySum.add(value);
+    myMax.accumulate(value);
+  }
+
+  public long count() {
+    return myCount.sum();
+  }
+
+  public long sum() {
+    return mySum.sum();
+  }
+
+  public long max() {
+    return myMax.get();
+  }
+
+  /**
+   * @return upper bound of the bucket holding the value of rank {@code q}, 0 if nothing is recorded
+   */
+  public long quantile(double q) {
+    long total = 0;
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = myBuckets.get(i);
+      total += counts[i];
+    }
+    if (total == 0) return 0;
+    long rank = Math.max(1, (long)Math.ceil(q * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) return Math.min(upperBound(i), max());
+    }
+    return max();
+  }
+
+  public void describe(@NotNull JsonWriter json) throws IOException {
+    json.beginObject();
+    json.name("count").value(count());
+    json.name("sum").value(sum());
+    json.name("max").value(max());
+    json.name("p50").value(quantile(0.5));
+    json.name("p90").value(quantile(0.9));
+    json.name("p99").value(quantile(0.99));
+    json.name("p999").value(quantile(0.999));
+    json.endObject();
+  }
+
+  static int index(long value) {
+    if (value < 2 * SUB) return (int)value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB - 1);
+    return 2 * SUB + (exponent - SUB_BITS - 1) * SUB + sub;
+  }
+
+  static long upperBound(int index) {
+    if (index < 2 * SUB) return index;
+    int exponent = (index - 2 * SUB) / SUB + SUB_BITS + 1;
+    int sub = (index - 2 * SUB) % SUB;
+    long width = 1L << (exponent - SUB_BITS);
+    return (SUB + sub) * width + width - 1;
+  }
+}
@@ -0,0 +1,90 @@
+package com.github.kassak.intellij.expose.counterpart;
+
+import com.intellij.openapi.util.registry.Registry;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * How many rows the cursor reads ahead of the client.
+ * Fixed windows are bounded by row count and/or buffered bytes, adaptive one starts small and grows while the client keeps up.
+ * Spilling cursor reads everything the database sends into a {@link SpillFile}, so the request does not wait for the client,
+ * scrollable one keeps all rows in a {@link RowStore}.
+ */
+public class Prefetch {
+  private static final String ROWS_PROP = "dg.exposer.prefetch.rows";
+  private static final String BYTES_PROP = "dg.exposer.prefetch.bytes";
+  static final int INITIAL_ROWS = 50;
+  static final int MAX_ROWS = 64 * 1024;
+  static final long MAX_BYTES = 32L * 1024 * 1024;
+
+  final int rows;
+  final long bytes;
+  final boolean adaptive;
+  final boolean spill;
+  final boolean scroll;
+
+  private Prefetch(int rows, long bytes, boolean adaptive, boolean spill, boolean scroll) {
+    this.rows = rows;
+    this.bytes = bytes;
+    this.adaptive = adaptive;
+    this.spill = spill;
+    this.scroll = scroll;
+  }
+
+  @NotNull
+  public static Prefetch fixed(int rows, long bytes) {
+    if (rows <= 0 && bytes <= 0) throw new IllegalArgumentException("Prefetch window should be positive");
+    return new Prefetch(rows <= 0 ? Integer.MAX_VALUE : rows, bytes <= 0 ? Long.MAX_VALUE : bytes, false, false, false);
+  }
+
+  @NotNull
+  public static Prefetch adaptive() {
+    return new Prefetch(INITIAL_ROWS, maxBytes(), true, false, false);
+  }
+
+  @NotNull
+  public static Prefetch spill() {
+    return new Prefetch(INITIAL_ROWS, maxBytes(), false, true, false);
+  }
+
+  /**
+   * Keeps all rows, so that any window of the result can be fetched again.
+   * Rows over {@link #maxBytes()} are moved to disk.
+   */
+  @NotNull
+  public static Prefetch scroll() {
+    return new Prefetch(INITIAL_ROWS, maxBytes(), false, false, true);
+  }
+
+  @NotNull
+  public static Prefetch getDefault() {
+    int rows = Registry.intValue(ROWS_PROP, 0);
+    return rows > 0 ? fixed(rows, 0) : adaptive();
+  }
+
+  /**
+   * @param rows row count, {@code auto}, {@code spill} or {@code scroll}
+   * @param bytes buffered bytes limit
+   * @return {@code null} if nothing specified
+   * @throws IllegalArgumentException if a count is not a positive number
+   */
+  @Nullable
+  public static Prefetch parse(@Nullable String rows, @Nullable String bytes) {
+    if (rows == null && bytes == null) return null;
+    long maxBytes = bytes == null ? 0 : positive(bytes, "prefetchBytes");
+    if ("auto".equals(rows)) return bytes == null ? adaptive() : new Prefetch(INITIAL_ROWS, maxBytes, true, false, false);
+    if ("spill".equals(rows)) return spill();
+    if ("scroll".equals(rows)) return bytes == null ? scroll() : new Prefetch(INITIAL_ROWS, maxBytes, false, false, true);
+    return fixed(rows == null ? 0 : (int)Math.min(positive(rows, "prefetch"), Integer.MAX_VALUE), maxBytes);
+  }
+
+  private static long positive(@NotNull String value, @NotNull String name) {
+    long res = Long.parseLong(value);
+    if (res <= 0) throw new IllegalArgumentException(name + " should be positive");
+    return res;
+  }
+
+  static long maxBytes() {
+    return Registry.intValue(BYTES_PROP, (int)MAX_BYTES);
+  }
+}
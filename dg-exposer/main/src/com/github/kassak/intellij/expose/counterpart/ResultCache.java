@@ -0,0 +1,178 @@
+package com.github.kassak.intellij.expose.counterpart;
+
+import com.google.gson.stream.JsonWriter;
+import com.intellij.database.datagrid.DataConsumer;
+import com.intellij.openapi.components.ServiceManager;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Results of read-only queries shared between all cursors, keyed by data source, SQL text and parameters.
+ * Entries expire after {@code dg.exposer.result.cache.ttl.seconds}, least recently used ones are evicted to keep
+ * the cache within {@code dg.exposer.result.cache.megabytes}. Commit or rollback on a data source drops its entries.
+ * Connections with an open transaction bypass the cache, so uncommitted rows are never shared or hidden from their writer.
+ */
+public class ResultCache {
+  private static final String TTL_PROP = "dg.exposer.result.cache.ttl.seconds";
+  private static final String SIZE_PROP = "dg.exposer.result.cache.megabytes";
+  private static final Pattern READ_ONLY = Pattern.compile("(?is)^(\\s|--[^\\n]*\\n|/\\*.*?\\*/)*(select|with)\\b.*");
+  // data changing statements after a CTE, locking reads (for update, for share), select into and sequence functions
+  private static final Pattern WRITES =
+    Pattern.compile("(?i)\\b(insert|update|delete|merge|into|for\\s+(key\\s+)?share|nextval|setval)\\b");
+
+  private final LinkedHashMap<Key, Entry> myEntries = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, Integer> myGenerations = ContainerUtil.newHashMap();
+  private long myBytes;
+  private long myHits;
+  private long myMisses;
+  private long myEvictions;
+  private long myInvalidations;
+
+  public static ResultCache getInstance() {
+    return ServiceManager.getService(ResultCache.class);
+  }
+
+  /**
+   * Caching is requested by a client, this only rules out statements recognizably not read-only.
+   * Mentions of the keywords in literals or comments make a query uncacheable as well.
+   */
+  public static boolean isCacheable(@NotNull String sql) {
+    return READ_ONLY.matcher(sql).matches() && !WRITES.matcher(sql).find();
+  }
+
+  static long ttlMillis() {
+    return TimeUnit.SECONDS.toMillis(Registry.intValue(TTL_PROP, 30));
+  }
+
+  static long maxBytes() {
+    return Registry.intValue(SIZE_PROP, 64) * 1024L * 1024L;
+  }
+
+  @Nullable
+  synchronized Entry get(@NotNull Key key, long now) {
+    Entry entry = myEntries.get(key);
+    if (entry != null && entry.expires <= now) {
+      remove(key);
+      entry = null;
+    }
+    if (entry == null) myMisses++;
+    else myHits++;
+    return entry;
+  }
+
+  synchronized int generation(@NotNull String scope) {
+    Integer generation = myGenerations.get(scope);
+    return generation == null ? 0 : generation;
+  }
+
+  /**
+   * Stores the entry unless the scope was invalidated since {@code generation} was taken.
+   */
+  synchronized void put(@NotNull Key key, @NotNull Entry entry, int generation) {
+    long max = maxBytes();
+    if (entry.bytes > max || generation != generation(key.scope)) return;
+    remove(key);
+    myEntries.put(key, entry);
+    myBytes += entry.bytes;
+    Iterator<Map.Entry<Key, Entry>> it = myEntries.entrySet().iterator();
+    while (myBytes > max && it.hasNext()) {
+      myBytes -= it.next().getValue().bytes;
+      it.remove();
+      myEvictions++;
+    }
+  }
+
+  private void remove(@NotNull Key key) {
+    Entry removed = myEntries.remove(key);
+    if (removed != null) myBytes -= removed.bytes;
+  }
+
+  public synchronized void invalidate(@NotNull String scope) {
+    myGenerations.put(scope, generation(scope) + 1);
+    Iterator<Map.Entry<Key, Entry>> it = myEntries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Key, Entry> e = it.next();
+      if (!e.getKey().scope.equals(scope)) continue;
+      myBytes -= e.getValue().bytes;
+      it.remove();
+      myInvalidations++;
+    }
+  }
+
+  public synchronized void describe(@NotNull JsonWriter json) throws IOException {
+    json.beginObject();
+    json.name("entries").value(myEntries.size());
+    json.name("bytes").value(myBytes);
+    json.name("maxBytes").value(maxBytes());
+    json.name("hits").value(myHits);
+    json.name("misses").value(myMisses);
+    json.name("evictions").value(myEvictions);
+    json.name("invalidations").value(myInvalidations);
+    json.endObject();
+  }
+
+  static class Key {
+    final String scope;
+    final String sql;
+    final List<Object> params;
+
+    Key(@NotNull String scope, @NotNull String sql, @NotNull List<Object> params) {
+      this.scope = scope;
+      this.sql = sql;
+      this.params = ContainerUtil.map(params, Key::normalize);
+    }
+
+    /**
+     * Integral numbers of any width bind the same way, arrays are compared by content.
+     */
+    private static Object normalize(Object value) {
+      if (value instanceof Integer || value instanceof Short || value instanceof Byte) return ((Number)value).longValue();
+      if (value instanceof byte[]) return ByteBuffer.wrap((byte[])value);
+      return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key key = (Key)o;
+      return scope.equals(key.scope) && sql.equals(key.sql) && params.equals(key.params);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(scope, sql, params);
+    }
+  }
+
+  static class Entry {
+    final List<CachedSet> sets;
+    final long bytes;
+    final long expires;
+
+    Entry(@NotNull List<CachedSet> sets, long bytes, long expires) {
+      this.sets = sets;
+      this.bytes = bytes;
+      this.expires = expires;
+    }
+  }
+
+  static class CachedSet {
+    final int index;
+    List<DataConsumer.Column> columns;
+    final List<DataConsumer.Row> rows = ContainerUtil.newArrayList();
+
+    CachedSet(int index, @NotNull List<DataConsumer.Column> columns) {
+      this.index = index;
+      this.columns = columns;
+    }
+  }
+}
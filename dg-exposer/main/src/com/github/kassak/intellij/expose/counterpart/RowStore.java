@@ -0,0 +1,85 @@
+package com.github.kassak.intellij.expose.counterpart;
+
+import com.intellij.database.datagrid.DataConsumer;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * All rows of a result set, addressable by position.
+ * Rows are kept on heap until they take more than the given number of bytes, then moved to an indexed {@link SpillFile}.
+ */
+class RowStore implements Closeable {
+  private final long myHeapLimit;
+  private final AtomicLong mySpilled;
+  private final List<DataConsumer.Row> myRows = ContainerUtil.newArrayList();
+  private long myHeapBytes;
+  private SpillFile mySpill;
+
+  /**
+   * @param spilled bytes spilled to disk by the query, see {@link SpillFile}
+   */
+  RowStore(long heapLimit, @NotNull AtomicLong spilled) {
+    myHeapLimit = heapLimit;
+    mySpilled = spilled;
+  }
+
+  /**
+   * Store over rows which are already on heap anyway.
+   */
+  RowStore(@NotNull List<DataConsumer.Row> rows) {
+    myHeapLimit = Long.MAX_VALUE;
+    mySpilled = new AtomicLong();
+    myRows.addAll(rows);
+  }
+
+  int size() {
+    return mySpill == null ? myRows.size() : mySpill.rowCount();
+  }
+
+  void add(@NotNull DataConsumer.Row row) throws IOException {
+    if (mySpill != null) {
+      mySpill.append(row);
+      return;
+    }
+    myRows.add(row);
+    myHeapBytes += DGCursor.estimateSize(row);
+    if (myHeapBytes <= myHeapLimit) return;
+    mySpill = new SpillFile(true, mySpilled);
+    for (DataConsumer.Row r : myRows) {
+      mySpill.append(r);
+    }
+    myRows.clear();
+    myHeapBytes = 0;
+  }
+
+  /**
+   * @param limit maximum number of rows, -1 for all
+   */
+  @NotNull
+  List<DataConsumer.Row> get(int from, int limit) throws IOException {
+    int to = limit == -1 ? size() : (int)Math.min(size(), (long)from + limit);
+    if (from >= to) return ContainerUtil.newArrayList();
+    if (mySpill == null) return ContainerUtil.newArrayList(myRows.subList(from, to));
+    List<DataConsumer.Row> res = ContainerUtil.newArrayListWithCapacity(to - from);
+    for (int i = from; i < to; i++) {
+      res.add(mySpill.get(i));
+    }
+    return res;
+  }
+
+  long getHeapBytes() {
+    return myHeapBytes;
+  }
+
+  @Override
+  public void close() throws IOException {
+    myRows.clear();
+    myHeapBytes = 0;
+    if (mySpill != null) mySpill.close();
+  }
+}
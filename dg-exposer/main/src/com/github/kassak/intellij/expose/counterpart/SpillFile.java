@@ -0,0 +1,340 @@
+package com.github.kassak.intellij.expose.counterpart;
+
+import com.intellij.database.datagrid.DataConsumer;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.registry.Registry;
+import gnu.trove.TLongArrayList;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only temporary file of rows, written through a small buffer with positional channel writes.
+ * Every row is stored as its length followed by row number, value count and tagged values.
+ * Values of types without their own tag are stored as strings.
+ * Rows are read either sequentially or, if the file is indexed, by position.
+ * Spilled bytes are limited per query by {@code dg.exposer.spill.query.megabytes} and for all queries by
+ * {@code dg.exposer.spill.total.megabytes}, append over a limit fails.
+ */
+class SpillFile implements Closeable {
+  private static final String QUERY_LIMIT_PROP = "dg.exposer.spill.query.megabytes";
+  private static final String TOTAL_LIMIT_PROP = "dg.exposer.spill.total.megabytes";
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+  private static final AtomicLong TOTAL = new AtomicLong();
+
+  private static final byte NULL = 0;
+  private static final byte STRING = 1;
+  private static final byte INT = 2;
+  private static final byte LONG = 3;
+  private static final byte SHORT = 4;
+  private static final byte BYTE = 5;
+  private static final byte DOUBLE = 6;
+  private static final byte FLOAT = 7;
+  private static final byte TRUE = 8;
+  private static final byte FALSE = 9;
+  private static final byte DECIMAL = 10;
+  private static final byte BIG_INTEGER = 11;
+  private static final byte BYTES = 12;
+  private static final byte SQL_DATE = 13;
+  private static final byte SQL_TIME = 14;
+  private static final byte TIMESTAMP = 15;
+  private static final byte DATE = 16;
+  private static final byte LOCAL_DATE = 17;
+  private static final byte LOCAL_TIME = 18;
+  private static final byte LOCAL_DATE_TIME = 19;
+  private static final byte OFFSET_TIME = 20;
+  private static final byte OFFSET_DATE_TIME = 21;
+
+  private final Path myPath;
+  private final FileChannel myChannel;
+  // record being encoded, starts with its length
+  private final BufferExposingByteArrayOutputStream myScratch = new BufferExposingByteArrayOutputStream();
+  private final DataOutputStream myOut = new DataOutputStream(myScratch);
+  // appended records not yet written to the file
+  private final BufferExposingByteArrayOutputStream myBuffer = new BufferExposingByteArrayOutputStream(WRITE_BUFFER_SIZE);
+  private final byte[] myLength = new byte[4];
+  // start of every row, null if the file is read only sequentially
+  private final TLongArrayList myIndex;
+  // bytes spilled by all files of the query
+  private final AtomicLong myQueryBytes;
+  private final long myQueryLimit;
+  private final long myTotalLimit;
+  private long myWritten;
+  private long myFlushed;
+  private long myRead;
+  private boolean myClosed;
+
+  SpillFile(@NotNull AtomicLong queryBytes) throws IOException {
+    this(false, queryBytes);
+  }
+
+  SpillFile(boolean indexed, @NotNull AtomicLong queryBytes) throws IOException {
+    myIndex = indexed ? new TLongArrayList() : null;
+    myQueryBytes = queryBytes;
+    myQueryLimit = Registry.intValue(QUERY_LIMIT_PROP, 1024) * 1024L * 1024L;
+    myTotalLimit = Registry.intValue(TOTAL_LIMIT_PROP, 8 * 1024) * 1024L * 1024L;
+    myPath = Files.createTempFile("dg-exposer", ".spill");
+    myChannel = FileChannel.open(myPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+  }
+
+  long size() {
+    return myWritten;
+  }
+
+  boolean hasNext() {
+    return myRead < myWritten;
+  }
+
+  void append(@NotNull DataConsumer.Row row) throws IOException {
+    myScratch.reset();
+    myOut.writeInt(0);
+    myOut.writeInt(row.rowNum);
+    myOut.writeInt(row.values.length);
+    for (Object value : row.values) {
+      writeValue(myOut, value);
+    }
+    int size = myScratch.size();
+    ByteBuffer.wrap(myScratch.getInternalBuffer(), 0, 4).putInt(size - 4);
+    reserve(size);
+    if (myIndex != null) myIndex.add(myWritten);
+    myBuffer.write(myScratch.getInternalBuffer(), 0, size);
+    myWritten += size;
+    if (myBuffer.size() >= WRITE_BUFFER_SIZE) flush();
+  }
+
+  private void reserve(int size) throws IOException {
+    long query = myQueryBytes.addAndGet(size);
+    long total = TOTAL.addAndGet(size);
+    if (query > myQueryLimit || total > myTotalLimit) {
+      myQueryBytes.addAndGet(-size);
+      TOTAL.addAndGet(-size);
+      String limit = query > myQueryLimit ? QUERY_LIMIT_PROP : TOTAL_LIMIT_PROP;
+      throw new IOException("Rows spilled to disk exceed " + limit);
+    }
+  }
+
+  @NotNull
+  DataConsumer.Row next() throws IOException {
+    if (!hasNext()) throw new EOFException();
+    byte[] bytes = readRecord(myRead);
+    myRead += 4 + bytes.length;
+    return decode(bytes);
+  }
+
+  int rowCount() {
+    return myIndex == null ? -1 : myIndex.size();
+  }
+
+  @NotNull
+  DataConsumer.Row get(int index) throws IOException {
+    if (myIndex == null) throw new IllegalStateException("Spill file is not indexed");
+    return decode(readRecord(myIndex.get(index)));
+  }
+
+  @NotNull
+  private byte[] readRecord(long position) throws IOException {
+    read(position, myLength, 0, 4);
+    byte[] bytes = new byte[ByteBuffer.wrap(myLength).getInt()];
+    read(position + 4, bytes, 0, bytes.length);
+    return bytes;
+  }
+
+  @NotNull
+  private static DataConsumer.Row decode(@NotNull byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    int rowNum = in.readInt();
+    Object[] values = new Object[in.readInt()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = readValue(in);
+    }
+    return DataConsumer.Row.create(rowNum, values);
+  }
+
+  private void flush() throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(myBuffer.getInternalBuffer(), 0, myBuffer.size());
+    while (buffer.hasRemaining()) {
+      myFlushed += myChannel.write(buffer, myFlushed);
+    }
+    myBuffer.reset();
+  }
+
+  private void read(long position, byte[] bytes, int offset, int length) throws IOException {
+    if (position + length > myFlushed) flush();
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+    while (buffer.hasRemaining()) {
+      if (myChannel.read(buffer, position + buffer.position() - offset) < 0) throw new EOFException();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (myClosed) return;
+    myClosed = true;
+    myQueryBytes.addAndGet(-myWritten);
+    TOTAL.addAndGet(-myWritten);
+    myBuffer.reset();
+    myChannel.close();
+  }
+
+  private static void writeValue(@NotNull DataOutputStream out, @Nullable Object value) throws IOException {
+    if (value == null) out.writeByte(NULL);
+    else if (value instanceof String) {
+      out.writeByte(STRING);
+      writeBytes(out, ((String)value).getBytes(StandardCharsets.UTF_8));
+    }
+    else if (value instanceof Integer) {
+      out.writeByte(INT);
+      out.writeInt((Integer)value);
+    }
+    else if (value instanceof Long) {
+      out.writeByte(LONG);
+      out.writeLong((Long)value);
+    }
+    else if (value instanceof Short) {
+      out.writeByte(SHORT);
+      out.writeShort((Short)value);
+    }
+    else if (value instanceof Byte) {
+      out.writeByte(BYTE);
+      out.writeByte((Byte)value);
+    }
+    else if (value instanceof Double) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double)value);
+    }
+    else if (value instanceof Float) {
+      out.writeByte(FLOAT);
+      out.writeFloat((Float)value);
+    }
+    else if (value instanceof Boolean) out.writeByte((Boolean)value ? TRUE : FALSE);
+    else if (value instanceof BigDecimal) {
+      out.writeByte(DECIMAL);
+      out.writeInt(((BigDecimal)value).scale());
+      writeBytes(out, ((BigDecimal)value).unscaledValue().toByteArray());
+    }
+    else if (value instanceof BigInteger) {
+      out.writeByte(BIG_INTEGER);
+      writeBytes(out, ((BigInteger)value).toByteArray());
+    }
+    else if (value instanceof byte[]) {
+      out.writeByte(BYTES);
+      writeBytes(out, (byte[])value);
+    }
+    else if (value instanceof java.sql.Date) {
+      out.writeByte(SQL_DATE);
+      out.writeLong(((java.sql.Date)value).getTime());
+    }
+    else if (value instanceof Time) {
+      out.writeByte(SQL_TIME);
+      out.writeLong(((Time)value).getTime());
+    }
+    else if (value instanceof Timestamp) {
+      out.writeByte(TIMESTAMP);
+      out.writeLong(((Timestamp)value).getTime());
+      out.writeInt(((Timestamp)value).getNanos());
+    }
+    else if (value instanceof java.util.Date) {
+      out.writeByte(DATE);
+      out.writeLong(((java.util.Date)value).getTime());
+    }
+    else if (value instanceof LocalDate) {
+      out.writeByte(LOCAL_DATE);
+      out.writeLong(((LocalDate)value).toEpochDay());
+    }
+    else if (value instanceof LocalTime) {
+      out.writeByte(LOCAL_TIME);
+      out.writeLong(((LocalTime)value).toNanoOfDay());
+    }
+    else if (value instanceof LocalDateTime) {
+      out.writeByte(LOCAL_DATE_TIME);
+      writeDateTime(out, (LocalDateTime)value);
+    }
+    else if (value instanceof OffsetTime) {
+      out.writeByte(OFFSET_TIME);
+      out.writeLong(((OffsetTime)value).toLocalTime().toNanoOfDay());
+      out.writeInt(((OffsetTime)value).getOffset().getTotalSeconds());
+    }
+    else if (value instanceof OffsetDateTime) {
+      out.writeByte(OFFSET_DATE_TIME);
+      writeDateTime(out, ((OffsetDateTime)value).toLocalDateTime());
+      out.writeInt(((OffsetDateTime)value).getOffset().getTotalSeconds());
+    }
+    else {
+      out.writeByte(STRING);
+      writeBytes(out, value.toString().getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  @Nullable
+  private static Object readValue(@NotNull DataInputStream in) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case NULL: return null;
+      case STRING: return new String(readBytes(in), StandardCharsets.UTF_8);
+      case INT: return in.readInt();
+      case LONG: return in.readLong();
+      case SHORT: return in.readShort();
+      case BYTE: return in.readByte();
+      case DOUBLE: return in.readDouble();
+      case FLOAT: return in.readFloat();
+      case TRUE: return true;
+      case FALSE: return false;
+      case DECIMAL: {
+        int scale = in.readInt();
+        return new BigDecimal(new BigInteger(readBytes(in)), scale);
+      }
+      case BIG_INTEGER: return new BigInteger(readBytes(in));
+      case BYTES: return readBytes(in);
+      case SQL_DATE: return new java.sql.Date(in.readLong());
+      case SQL_TIME: return new Time(in.readLong());
+      case TIMESTAMP: {
+        Timestamp timestamp = new Timestamp(in.readLong());
+        timestamp.setNanos(in.readInt());
+        return timestamp;
+      }
+      case DATE: return new java.util.Date(in.readLong());
+      case LOCAL_DATE: return LocalDate.ofEpochDay(in.readLong());
+      case LOCAL_TIME: return LocalTime.ofNanoOfDay(in.readLong());
+      case LOCAL_DATE_TIME: return readDateTime(in);
+      case OFFSET_TIME: return OffsetTime.of(LocalTime.ofNanoOfDay(in.readLong()), ZoneOffset.ofTotalSeconds(in.readInt()));
+      case OFFSET_DATE_TIME: return OffsetDateTime.of(readDateTime(in), ZoneOffset.ofTotalSeconds(in.readInt()));
+      default: throw new IOException("Corrupted spill file: unknown tag " + tag);
+    }
+  }
+
+  private static void writeDateTime(@NotNull DataOutputStream out, @NotNull LocalDateTime value) throws IOException {
+    out.writeLong(value.toLocalDate().toEpochDay());
+    out.writeLong(value.toLocalTime().toNanoOfDay());
+  }
+
+  @NotNull
+  private static LocalDateTime readDateTime(@NotNull DataInputStream in) throws IOException {
+    LocalDate date = LocalDate.ofEpochDay(in.readLong());
+    return LocalDateTime.of(date, LocalTime.ofNanoOfDay(in.readLong()));
+  }
+
+  private static void writeBytes(@NotNull DataOutputStream out, @NotNull byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  @NotNull
+  private static byte[] readBytes(@NotNull DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
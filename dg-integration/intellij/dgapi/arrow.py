@@ -0,0 +1,8 @@
+def read_table(data):
+    import pyarrow
+    return pyarrow.ipc.open_stream(pyarrow.py_buffer(data)).read_all()
+
+
+def table_to_rows(table):
+    columns = [c.to_pylist() for c in table.columns]
+    return [list(r) for r in zip(*columns)]
@@ -0,0 +1,111 @@
+import json
+import os
+import socket
+import struct
+from base64 import b64encode
+from urllib.parse import urlsplit
+
+_OP_TEXT = 0x1
+_OP_CLOSE = 0x8
+_OP_PING = 0x9
+_OP_PONG = 0xA
+
+
+class Channel(object):
+    """Minimal WebSocket client for cursor channels: json text messages, no extensions"""
+
+    def __init__(self, url, timeout=None):
+        parts = urlsplit(url)
+        self._sock = socket.create_connection((parts.hostname, parts.port or 80), timeout)
+        self._buf = b''
+        key = b64encode(os.urandom(16)).decode('ascii')
+        path = parts.path + ('?' + parts.query if parts.query else '')
+        self._sock.sendall((
+            'GET {0} HTTP/1.1\r\n'
+            'Host: {1}\r\n'
+            'Upgrade: websocket\r\n'
+            'Connection: Upgrade\r\n'
+            'Sec-WebSocket-Key: {2}\r\n'
+            'Sec-WebSocket-Version: 13\r\n\r\n'
+        ).format(path, parts.netloc, key).encode('ascii'))
+        head = self._read_until(b'\r\n\r\n')
+        status = head.split(b'\r\n', 1)[0]
+        if b' 101 ' not in status:
+            self._sock.close()
+            from .exceptions import OperationalError
+            raise OperationalError('WebSocket handshake failed: ' + head.decode('latin-1'))
+
+    def __enter__(self):
+        return self
+
+    def __exit__(self, exc_type, exc_val, exc_tb):
+        self.close()
+
+    def send(self, **kwargs):
+        self._send_frame(_OP_TEXT, json.dumps(kwargs).encode('utf8'))
+
+    def receive(self):
+        data = b''
+        while True:
+            fin, op, payload = self._read_frame()
+            if op == _OP_PING:
+                self._send_frame(_OP_PONG, payload)
+                continue
+            if op == _OP_PONG:
+                continue
+            if op == _OP_CLOSE:
+                from .exceptions import OperationalError
+                raise OperationalError('Channel is closed')
+            data += payload
+            if fin:
+                return json.loads(data.decode('utf8'))
+
+    def close(self):
+        if self._sock is None:
+            return
+        try:
+            self._send_frame(_OP_CLOSE, struct.pack('!H', 1000))
+        except OSError:
+            pass
+        self._sock.close()
+        self._sock = None
+
+    def _send_frame(self, op, payload):
+        n = len(payload)
+        if n < 126:
+            header = struct.pack('!BB', 0x80 | op, 0x80 | n)
+        elif n < 1 << 16:
+            header = struct.pack('!BBH', 0x80 | op, 0x80 | 126, n)
+        else:
+            header = struct.pack('!BBQ', 0x80 | op, 0x80 | 127, n)
+        mask = os.urandom(4)
+        masked = bytes(b ^ mask[i % 4] for i, b in enumerate(payload))
+        self._sock.sendall(header + mask + masked)
+
+    def _read_frame(self):
+        b0, b1 = struct.unpack('!BB', self._read(2))
+        n = b1 & 0x7F
+        if n == 126:
+            n = struct.unpack('!H', self._read(2))[0]
+        elif n == 127:
+            n = struct.unpack('!Q', self._read(8))[0]
+        return b0 & 0x80 != 0, b0 & 0x0F, self._read(n)
+
+    def _read(self, n):
+        while len(self._buf) < n:
+            self._fill()
+        res, self._buf = self._buf[:n], self._buf[n:]
+        return res
+
+    def _read_until(self, sep):
+        while sep not in self._buf:
+            self._fill()
+        res, self._buf = self._buf.split(sep, 1)
+        return res
+
+    def _fill(self):
+        chunk = self._sock.recv(64 * 1024)
+        if not chunk:
+            from .exceptions import OperationalError
+            raise OperationalError('Channel is closed')
+        self._buf += chunk
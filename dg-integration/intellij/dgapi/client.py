@@ -1,9 +1,11 @@
 import json
+from urllib.parse import quote
 
 
 class DGClient(object):
-    def __init__(self, client):
+    def __init__(self, client, compress=True):
         self._c = client
+        self._compress = compress
 
     def data_sources(self):
         return self._perform("database/dataSources/")
@@ -23,6 +25,19 @@ class DGClient(object):
         r.data = bytes(json.dumps(kwargs), 'utf8')
         return self._perform(r)
 
+    def configure_pool(self, ds, min_size, max_size):
+        r = self._mk_request("database/dataSources/{0}/pool", ds, min=min_size, max=max_size)
+        r.method = "POST"
+        return self._perform(r)
+
+    def pool(self, ds):
+        return self._perform(self._mk_request("database/dataSources/{0}/pool", ds))
+
+    def drop_pool(self, ds):
+        r = self._mk_request("database/dataSources/{0}/pool", ds)
+        r.method = "DELETE"
+        return self._perform(r)
+
     def connections(self, ds):
         return self._perform(self._mk_request("database/dataSources/{0}/connections/", ds))
 
@@ -33,6 +48,9 @@ class DGClient(object):
             pass  # todo: autocommit
         return self._perform(r)
 
+    def connection(self, ds, con):
+        return self._perform(self._mk_request("database/dataSources/{0}/connections/{1}/", ds, con))
+
     def close_connection(self, ds, con):
         r = self._mk_request("database/dataSources/{0}/connections/{1}/", ds, con)
         r.method = "DELETE"
@@ -48,55 +66,138 @@ class DGClient(object):
         r.method = "POST"
         return self._perform(r)
 
-    def create_cursor(self, ds, con):
-        r = self._mk_request("database/dataSources/{0}/connections/{1}/cursors/", ds, con)
+    def load(self, ds, con, table, data, fmt='csv', columns=None, types=None, header=None, batch=None):
+        r = self._mk_request("database/dataSources/{0}/connections/{1}/load", ds, con,
+                             table=table, format=fmt, header=header, batch=batch,
+                             columns=None if columns is None else ','.join(columns),
+                             types=None if types is None else ','.join(t or '' for t in types))
         r.method = "POST"
+        r.add_header('Content-Type', 'application/x-ndjson' if fmt == 'ndjson' else 'text/csv')
+        r.data = data
         return self._perform(r)
 
+    def create_cursor(self, ds, con, prefetch=None, prefetch_bytes=None):
+        r = self._mk_request("database/dataSources/{0}/connections/{1}/cursors/", ds, con,
+                             prefetch=prefetch, prefetchBytes=prefetch_bytes)
+        r.method = "POST"
+        return self._perform(r)
+
+    def cursors(self, ds, con):
+        return self._perform(self._mk_request("database/dataSources/{0}/connections/{1}/cursors/", ds, con))
+
+    def cursor(self, ds, con, cur):
+        return self._perform(self._mk_request("database/dataSources/{0}/connections/{1}/cursors/{2}/", ds, con, cur))
+
     def close_cursor(self, ds, con, cur):
         r = self._mk_request("database/dataSources/{0}/connections/{1}/cursors/{2}/", ds, con, cur)
         r.method = "DELETE"
         return self._perform(r)
 
-    def execute(self, ds, con, cur, operation, parameters):
-        r = self._mk_request("database/dataSources/{0}/connections/{1}/cursors/{2}/execute", ds, con, cur)
+    def execute(self, ds, con, cur, operation, parameters, fmt=None, prefetch=None, prefetch_bytes=None, cache=False):
+        r = self._mk_request("database/dataSources/{0}/connections/{1}/cursors/{2}/execute", ds, con, cur,
+                             prefetch=prefetch, prefetchBytes=prefetch_bytes, cache='true' if cache else None)
         r.method = "POST"
         if self._c.noisy:
             print(operation)
         body = {'parameters': parameters}
         if operation is not None:
             body['operation'] = operation
+        if fmt == 'msgpack':
+            from .msgpack import pack, CONTENT_TYPE
+            r.data = pack(body)
+            r.add_header('Content-Type', CONTENT_TYPE)
+            r.add_header('Accept', CONTENT_TYPE)
+            return self._perform_raw(r)
         r.data = bytes(json.dumps(body), 'utf8')
         return self._perform(r)
 
-    def fetch(self, ds, con, cur, limit):
-        r = self._mk_request("database/dataSources/{0}/connections/{1}/cursors/{2}/fetch", ds, con, cur,
-                             limit=limit)
+    def execute_batch(self, ds, con, cur, operation, parameter_sets, fmt=None):
+        r = self._mk_request("database/dataSources/{0}/connections/{1}/cursors/{2}/executeBatch", ds, con, cur)
+        r.method = "POST"
+        if self._c.noisy:
+            print(operation)
+        body = {'parameters': parameter_sets}
+        if operation is not None:
+            body['operation'] = operation
+        if fmt == 'msgpack':
+            from .msgpack import pack, CONTENT_TYPE
+            r.data = pack(body)
+            r.add_header('Content-Type', CONTENT_TYPE)
+            r.add_header('Accept', CONTENT_TYPE)
+            return self._perform_raw(r)
+        r.data = bytes(json.dumps(body), 'utf8')
+        return self._perform(r)
+
+    def pipeline(self, ds, con, operations, cur=None):
+        r = self._mk_request("database/dataSources/{0}/connections/{1}/pipeline", ds, con)
+        r.method = "POST"
+        body = {'operations': operations}
+        if cur is not None:
+            body['cursor'] = cur['uuid']
+        r.data = bytes(json.dumps(body), 'utf8')
         return self._perform(r)
 
+    def result_cache(self):
+        return self._perform(self._mk_request("database/resultCache"))
+
+    def metrics(self, fmt=None):
+        return self._perform_raw(self._mk_request("database/metrics", format=fmt))
+
+    def fetch(self, ds, con, cur, limit, fmt=None, offset=None, columns=None, every=None, sample=None):
+        r = self._mk_request("database/dataSources/{0}/connections/{1}/cursors/{2}/fetch", ds, con, cur,
+                             limit=limit, format=fmt, offset=offset, every=every, sample=sample,
+                             columns=None if columns is None else ','.join(str(c) for c in columns))
+        return self._perform_raw(r)
+
     def nextset(self, ds, con, cur):
         r = self._mk_request("database/dataSources/{0}/connections/{1}/cursors/{2}/nextSet", ds, con, cur)
         r.method = "POST"
         return self._perform(r)
 
-    def describe(self, ds, con, cur):
-        r = self._mk_request("database/dataSources/{0}/connections/{1}/cursors/{2}/describe", ds, con, cur)
-        return self._perform(r)
+    def describe(self, ds, con, cur, fmt=None):
+        r = self._mk_request("database/dataSources/{0}/connections/{1}/cursors/{2}/describe", ds, con, cur,
+                             format=fmt)
+        return self._perform_raw(r)
+
+    def channel(self, ds, con, cur):
+        from .channel import Channel
+        return Channel(self._mk_request("database/dataSources/{0}/connections/{1}/cursors/{2}/channel", ds, con, cur).full_url)
 
     def _perform(self, r):
         from urllib.error import HTTPError
-        from .exceptions import OperationalError
         try:
             res = self._c.perform_json(r)
         except HTTPError as e:
-            raise OperationalError(e)
+            raise _http_error(e)
         if self._c.noisy:
             print(res)
         return res
 
+    def _perform_raw(self, r):
+        from urllib.error import HTTPError
+        from urllib.request import urlopen
+        if self._compress:
+            r.add_header('Accept-Encoding', 'gzip, deflate')
+        try:
+            with urlopen(r) as resp:
+                content_type = resp.headers.get('Content-Type', '')
+                encoding = resp.headers.get('Content-Encoding')
+                data = resp.read()
+        except HTTPError as e:
+            raise _http_error(e)
+        if encoding == 'gzip':
+            import gzip
+            data = gzip.decompress(data)
+        elif encoding == 'deflate':
+            import zlib
+            data = zlib.decompress(data)
+        if content_type.startswith('application/json'):
+            return json.loads(data.decode('utf8'))
+        return data
+
     def _mk_request(self, s, *objs, **kwargs):
         url = s.format(*[o['uuid'] for o in objs])
-        params = "&".join("{0}={1}".format(k, v) for k, v in kwargs.items() if v is not None)
+        params = "&".join("{0}={1}".format(k, quote(str(v), safe='')) for k, v in kwargs.items() if v is not None)
         if len(params) != 0:
             url += "?" + params
         return self._c.request(url)
@@ -105,6 +206,14 @@ class DGClient(object):
         return "<DB:{0}>".format(repr(self._c))
 
 
+def _http_error(e):
+    """Bad requests carry the reason as {"error": ...}"""
+    from .exceptions import OperationalError, ProgrammingError
+    if e.code == 400 and e.headers.get('Content-Type', '').startswith('application/json'):
+        return ProgrammingError(json.loads(e.read().decode('utf8')).get('error'))
+    return OperationalError(e)
+
+
 if __name__ == '__main__':
     from intellij.discover import any_instance, discover_running_instances
 
@@ -125,3 +234,4 @@ if __name__ == '__main__':
     print(c.rollback(_ds, _con))
     print(c.commit(_ds, _con))
     print(c.close_connection(_ds, _con))
+
@@ -18,6 +18,7 @@ class Connection(object):
         self._dg = None
         self._ds = None
         self._con = None
+        self._format = None
         self._setup(kwargs)
 
     def __enter__(self):
@@ -55,6 +56,12 @@ class Connection(object):
             raise InterfaceError("No data source coordinates provided")
         if self._ds is None:
             raise InterfaceError("No data source found")
+        self._format = kwargs.get('format')
+        if self._format not in (None, 'json', 'arrow', 'msgpack'):
+            raise InterfaceError("Unsupported format: {0}".format(self._format))
+        if 'pool' in kwargs:
+            min_size, max_size = kwargs['pool']
+            self._handle_error(self._dg.configure_pool(self._ds, min_size, max_size))
         self._con = self._handle_error(self._dg.connect(self._ds, autocommit=False))
 
     def close(self):
@@ -71,9 +78,15 @@ class Connection(object):
     def rollback(self):
         self._handle_error(self._dg.rollback(self._ds, self._con))
 
-    def cursor(self):
-        cur = self._handle_error(self._dg.create_cursor(self._ds, self._con))
-        return Cursor(self, cur)
+    def cursor(self, prefetch=None, prefetch_bytes=None):
+        return Cursor(self, None, prefetch, prefetch_bytes)
+
+    def load(self, table, data, fmt='csv', columns=None, types=None, header=None, batch=None):
+        if fmt not in ('csv', 'ndjson'):
+            raise InterfaceError("Unsupported format: {0}".format(fmt))
+        if header is not None:
+            header = 'true' if header else 'false'
+        return self._handle_error(self._dg.load(self._ds, self._con, table, data, fmt, columns, types, header, batch))
 
     def __del__(self):
         self._close()
@@ -1,18 +1,30 @@
 import dateutil.parser
 
-from intellij.dgapi.exceptions import Error, DatabaseError, OperationalError
+from intellij.dgapi.exceptions import Error, DatabaseError, OperationalError, ProgrammingError
 from intellij.dgapi.types import *
 
 
 # noinspection PyProtectedMember
 class Cursor(object):
-    def __init__(self, con, cur):
+    # rows fetched together with execute, 0 to fetch only on demand
+    pipeline_rows = 100
+
+    def __init__(self, con, cur=None, prefetch=None, prefetch_bytes=None):
         self._dg = con._dg
         self._con = con
         self._cursor = cur
+        self._prefetch = prefetch
+        self._prefetch_bytes = prefetch_bytes
+        # rows received ahead of fetch calls, None if not pipelined
+        self._rows = None
+        self._rows_done = False
         self._last_rc = -1
         self._desc = None
+        self._rownumber = None
+        self._offset = None
+        self._format = con._format
         self.arraysize = 1
+        self.batchsize = 10000
 
     def __enter__(self):
         return self
@@ -34,7 +46,11 @@ class Cursor(object):
 
     def _ensure_desc(self):
         if self._desc is None:
-            self._desc = _parse_desc(self._handle_error(self._dg.describe(self._con._ds, self._con._con, self._cursor)))
+            if self._format == 'msgpack':
+                desc = self._handle_msgpack(self._dg.describe(self._con._ds, self._con._con, self._cur(), 'msgpack'))
+            else:
+                desc = self._handle_error(self._dg.describe(self._con._ds, self._con._con, self._cur()))
+            self._desc = _parse_desc(desc)
 
     @property
     def rowcount(self):
@@ -44,6 +60,23 @@ class Cursor(object):
     def lastrowid(self):
         return None
 
+    @property
+    def rownumber(self):
+        return self._rownumber
+
+    def scroll(self, value, mode='relative'):
+        """Moves to another row of the current result set, the cursor should be created with prefetch='scroll'"""
+        if mode == 'relative':
+            if self._rownumber is None:
+                raise Error('Current row is unknown')
+            value += self._rownumber
+        elif mode != 'absolute':
+            raise ValueError('Unknown scroll mode: {0}'.format(mode))
+        if value < 0:
+            raise IndexError('Row {0} is out of range'.format(value))
+        self._offset = self._rownumber = value
+        self._rows = None
+
     # def callproc(self):
     #     pass
 
@@ -56,12 +89,21 @@ class Cursor(object):
         self._close()
 
     def _close(self):
-        if self._cursor is None:
+        if self._con is None:
             return
-        self._dg.close_cursor(self._con._ds, self._con._con, self._cursor)
+        if self._cursor is not None:
+            self._dg.close_cursor(self._con._ds, self._con._con, self._cursor)
         self._cursor = None
         self._con = None
 
+    def _cur(self):
+        if self._con is None:
+            raise Error("Cursor closed")
+        if self._cursor is None:
+            self._cursor = self._handle_error(self._dg.create_cursor(self._con._ds, self._con._con,
+                                                                     self._prefetch, self._prefetch_bytes))
+        return self._cursor
+
     def execute(self, operation, parameters=(), **kwargs):
         if operation is None:
             raise Error('Operation should not be None')
@@ -69,38 +111,180 @@ class Cursor(object):
             self._con.commit()
             self._last_rc = -1
             return
-        res = self._execute(operation, parameters)
+        res = self._execute(operation, parameters, kwargs.get('prefetch'), kwargs.get('prefetch_bytes'), kwargs.get('cache', False))
         self._last_rc = res['rowcount']
 
     def executemany(self, operation, seq_of_parameters, **kwargs):
         if operation is None:
             raise Error('Operation should not be None')
-        for i, parameters in enumerate(seq_of_parameters):
-            self._execute(operation if i == 0 else None, parameters)
-
-    def _execute(self, operation, parameters):
         self._desc = None
-        return self._handle_error(self._dg.execute(self._con._ds, self._con._con, self._cursor, operation,
-                                                   _format_parameters(parameters)))
+        self._rows = None
+        self._last_rc = 0
+        batch = []
+        for parameters in seq_of_parameters:
+            batch.append(parameters)
+            if len(batch) >= self.batchsize:
+                self._execute_batch(operation, batch)
+                operation, batch = None, []
+        if batch:
+            self._execute_batch(operation, batch)
+
+    def _execute_batch(self, operation, batch):
+        if self._format == 'msgpack':
+            res = self._handle_msgpack(self._dg.execute_batch(self._con._ds, self._con._con, self._cur(), operation,
+                                                              [_pack_parameters(p) for p in batch], 'msgpack'))
+        else:
+            res = self._handle_error(self._dg.execute_batch(self._con._ds, self._con._con, self._cur(), operation,
+                                                            [_format_parameters(p) for p in batch]))
+        counts = res['rowcounts']
+        if self._last_rc == -1 or any(c < 0 for c in counts):
+            self._last_rc = -1
+        else:
+            self._last_rc += sum(counts)
 
-    def _fetch(self, limit):
+    def _execute(self, operation, parameters, prefetch=None, prefetch_bytes=None, cache=False):
+        self._desc = None
+        self._rownumber = 0
+        self._offset = None
+        self._rows = None
+        if self._format in (None, 'json') and prefetch is None and prefetch_bytes is None:
+            return self._execute_pipelined(operation, parameters, cache)
+        if self._format == 'msgpack':
+            return self._handle_msgpack(self._dg.execute(self._con._ds, self._con._con, self._cur(), operation,
+                                                         _pack_parameters(parameters), 'msgpack',
+                                                         prefetch, prefetch_bytes, cache))
+        return self._handle_error(self._dg.execute(self._con._ds, self._con._con, self._cur(), operation,
+                                                   _format_parameters(parameters), None, prefetch, prefetch_bytes, cache))
+
+    def _execute_pipelined(self, operation, parameters, cache):
+        """Creates the cursor if needed, executes, describes and fetches first rows in one request"""
+        if self._con is None:
+            raise Error("Cursor closed")
+        ops = []
+        if self._cursor is None:
+            ops.append({'op': 'cursor', 'prefetch': self._prefetch, 'prefetchBytes': self._prefetch_bytes})
+        ops.append({'op': 'execute', 'operation': operation, 'parameters': _format_parameters(parameters),
+                    'cache': cache})
+        ops.append({'op': 'describe'})
+        limit = 0 if self._prefetch == 'scroll' else self.pipeline_rows
+        if limit > 0:
+            ops.append({'op': 'fetch', 'limit': limit})
+        results = self._handle_error(self._dg.pipeline(self._con._ds, self._con._con, ops, self._cursor))['results']
+        if self._cursor is None and results and 'uuid' in results[0]:
+            self._cursor = results.pop(0)
+        res = self._handle_error(results[0])
+        self._desc = _parse_desc(self._handle_error(results[1]) if len(results) > 1 else None)
+        if limit > 0:
+            rows = results[2]
+            if isinstance(rows, dict):
+                self._handle_error(rows)
+            self._rows = _deserialize_rows(rows, self._desc)
+            self._rows_done = len(rows) < limit
+            if self._rows_done and res['rowcount'] == -1:
+                res['rowcount'] = len(rows)
+        return res
+
+    def _fetch(self, limit, **kwargs):
+        scrolled = self._offset is not None
+        rows = self._fetch_rows(limit, **kwargs)
+        if self._last_rc == -1 and self._rownumber is not None and (limit is None or len(rows) < limit) and \
+                (rows or not scrolled):
+            # a short window ends the result, so the position after it is the row count;
+            # unknown once rows were sampled or if the cursor was scrolled past the end
+            self._last_rc = self._rownumber
+        return rows
+
+    def _fetch_rows(self, limit, columns=None, every=None, sample=None):
+        if self._rows is not None and not self._rows and not self._rows_done:
+            self._rows = None
+        if self._rows is not None and self._offset is None:
+            rows = self._take_rows(limit, columns, every, sample)
+        else:
+            rows = self._fetch_rows_at(limit, self._offset, columns, every, sample)
+        self._offset = None
+        if every is not None or sample is not None:
+            self._rownumber = None
+        elif self._rownumber is not None:
+            self._rownumber += len(rows)
+        return rows
+
+    def _take_rows(self, limit, columns, every, sample):
+        """Takes pipelined rows first, the rest of the window is fetched unfiltered if rows are sampled"""
+        n = len(self._rows) if limit is None else min(limit, len(self._rows))
+        rows, self._rows = self._rows[:n], self._rows[n:]
+        rest = None if limit is None else limit - n
+        if self._rows_done or rest == 0:
+            return _filter_rows(rows, self._desc, columns, every, sample)
+        if every is None and sample is None:
+            return _filter_rows(rows, self._desc, columns, None, None) + self._fetch_rows_at(rest, None, columns, None, None)
+        return _filter_rows(rows + self._fetch_rows_at(rest, None, None, None, None), self._desc, columns, every, sample)
+
+    def _fetch_rows_at(self, limit, offset, columns, every, sample):
+        if self._format == 'arrow':
+            from intellij.dgapi.arrow import table_to_rows
+            return table_to_rows(self._fetch_arrow_table(limit, offset, columns, every, sample))
         self._ensure_desc()
-        return _deserialize_rows(self._handle_error(self._dg.fetch(self._con._ds, self._con._con, self._cursor, limit)),
-                                 self._desc)
+        desc = self._desc if columns is None else _project_desc(self._desc, columns)
+        if self._format == 'msgpack':
+            from intellij.dgapi.msgpack import unpack_all
+            data = self._handle_msgpack(self._dg.fetch(self._con._ds, self._con._con, self._cur(), limit, 'msgpack',
+                                                       offset, columns, every, sample), unpack_all)
+            return _unpack_rows(data, desc)
+        return _deserialize_rows(self._handle_error(self._dg.fetch(self._con._ds, self._con._con, self._cur(), limit,
+                                                                   None, offset, columns, every, sample)), desc)
+
+    def fetch_arrow_table(self, size=None, columns=None, every=None, sample=None):
+        return self._fetch_arrow_table(size, None, columns, every, sample)
+
+    def _fetch_arrow_table(self, size, offset, columns=None, every=None, sample=None):
+        from intellij.dgapi.arrow import read_table
+        data = self._dg.fetch(self._con._ds, self._con._con, self._cur(), size, 'arrow', offset, columns, every, sample)
+        if isinstance(data, dict):
+            self._handle_error(data)
+        return read_table(data)
 
     def fetchone(self):
         res = self._fetch(1)
         return res[0] if res else None
 
-    def fetchmany(self, size=None):
-        return self._fetch(size if size is not None else self.arraysize)
-
-    def fetchall(self):
-        return self._fetch(None)
+    def fetchmany(self, size=None, **kwargs):
+        """Accepts columns (names or indices) to fetch, every to keep every Nth row and sample to keep K random rows"""
+        return self._fetch(size if size is not None else self.arraysize, **kwargs)
+
+    def fetchall(self, **kwargs):
+        return self._fetch(None, **kwargs)
+
+    def stream(self, operation, parameters=(), credit=500, cache=False):
+        """Executes operation and yields rows pushed by the server over a WebSocket, at most credit rows in flight"""
+        self._rownumber = None
+        self._offset = None
+        self._rows = None
+        with self._dg.channel(self._con._ds, self._con._con, self._cur()) as ch:
+            ch.send(op='execute', operation=operation, parameters=_format_parameters(parameters), cache=cache)
+            res = self._handle_error(ch.receive())
+            self._last_rc = res['rowcount']
+            self._desc = _parse_desc(res['columns'])
+            ch.send(op='credit', rows=credit)
+            outstanding = credit
+            while True:
+                msg = self._handle_error(ch.receive())
+                if msg['type'] == 'end':
+                    return
+                rows = msg['rows']
+                outstanding -= len(rows)
+                if outstanding <= credit // 2:
+                    ch.send(op='credit', rows=credit - outstanding)
+                    outstanding = credit
+                for row in _deserialize_rows(rows, self._desc):
+                    yield row
 
     def nextset(self):
         self._desc = None
-        res = self._handle_error(self._dg.nextset(self._con._ds, self._con._con, self._cursor))
+        self._rows = None
+        self._last_rc = -1
+        self._rownumber = 0
+        self._offset = None
+        res = self._handle_error(self._dg.nextset(self._con._ds, self._con._con, self._cur()))
         more = res['more'] if 'more' in res else False
         return True if more else None
 
@@ -122,6 +306,13 @@ class Cursor(object):
     def _handle_error(self, data):
         return _handle_error(data, self._dg._c.noisy)
 
+    def _handle_msgpack(self, data, unpack=None):
+        if isinstance(data, dict):
+            return self._handle_error(data)
+        if unpack is None:
+            from intellij.dgapi.msgpack import unpack
+        return unpack(data)
+
 
 def _handle_error(data, noisy):
     if 'error' in data:
@@ -167,6 +358,52 @@ def _deserialize_val(val, d):
         return val
 
 
+def _unpack_rows(rows, desc):
+    return [[_unpack_val(v, d) for v, d in zip(r, desc)] for r in rows]
+
+
+def _unpack_val(val, d):
+    t = d[1]
+    if val is None:
+        return val
+    if t == _DATE:
+        return val.date()
+    if t == _TIME:
+        return val.time()
+    return val
+
+
+def _filter_rows(rows, desc, columns, every, sample):
+    if every is not None:
+        rows = rows[::every]
+    if sample is not None:
+        import random
+        rows = [rows[i] for i in sorted(random.sample(range(len(rows)), min(sample, len(rows))))]
+    if columns is not None:
+        indices = _project_indices(desc, columns)
+        rows = [[row[i] for i in indices] for row in rows]
+    return rows
+
+
+def _project_indices(desc, columns):
+    res = []
+    for c in columns:
+        name = str(c)
+        i = next((i for i, d in enumerate(desc) if d[0] == name), None)
+        if i is None:
+            i = next((i for i, d in enumerate(desc) if d[0] is not None and d[0].lower() == name.lower()), None)
+        if i is None and name.isdigit() and int(name) < len(desc):
+            i = int(name)
+        if i is None:
+            raise ProgrammingError('No such column: {0}'.format(name))
+        res.append(i)
+    return res
+
+
+def _project_desc(desc, columns):
+    return [desc[i] for i in _project_indices(desc, columns)]
+
+
 def _parse_desc(desc):
     return [(
         d.get('name'),
@@ -188,6 +425,22 @@ def _format_parameter(p):
     return {'value': _format_val(p), 'type': tp[0]}
 
 
+def _pack_parameters(params):
+    return [_pack_parameter(p) for p in params]
+
+
+def _pack_parameter(p):
+    import datetime as dt
+    from decimal import Decimal
+
+    if p is None or isinstance(p, (bool, int, float, str, bytes, dt.datetime)):
+        return p
+    tp = _guess_type(p)
+    if isinstance(p, Decimal):
+        tp = _NUM
+    return {'value': p.isoformat() if tp in (_DATE, _TIME) else str(p), 'type': tp[0]}
+
+
 def _format_val(p):
     if p is None:
         return None
@@ -0,0 +1,204 @@
+import datetime as dt
+import struct
+
+CONTENT_TYPE = 'application/msgpack'
+
+_TIMESTAMP_EXT = -1
+_EPOCH = dt.datetime(1970, 1, 1)
+
+
+def pack(obj):
+    out = bytearray()
+    _pack(obj, out)
+    return bytes(out)
+
+
+def unpack_all(data):
+    res = []
+    pos = 0
+    while pos < len(data):
+        obj, pos = _unpack(data, pos)
+        res.append(obj)
+    return res
+
+
+def unpack(data):
+    obj, _ = _unpack(data, 0)
+    return obj
+
+
+def _pack(obj, out):
+    if obj is None:
+        out.append(0xc0)
+    elif isinstance(obj, bool):
+        out.append(0xc3 if obj else 0xc2)
+    elif isinstance(obj, int):
+        _pack_int(obj, out)
+    elif isinstance(obj, float):
+        out.append(0xcb)
+        out += struct.pack('>d', obj)
+    elif isinstance(obj, str):
+        b = obj.encode('utf8')
+        _pack_header(len(b), out, 0xa0, 32, (0xd9, 0xda, 0xdb))
+        out += b
+    elif isinstance(obj, (bytes, bytearray)):
+        _pack_header(len(obj), out, None, 0, (0xc4, 0xc5, 0xc6))
+        out += obj
+    elif isinstance(obj, dt.datetime):
+        _pack_timestamp(obj, out)
+    elif isinstance(obj, (list, tuple)):
+        _pack_header(len(obj), out, 0x90, 16, (None, 0xdc, 0xdd))
+        for o in obj:
+            _pack(o, out)
+    elif isinstance(obj, dict):
+        _pack_header(len(obj), out, 0x80, 16, (None, 0xde, 0xdf))
+        for k, v in obj.items():
+            _pack(k, out)
+            _pack(v, out)
+    else:
+        raise TypeError("Can't pack {0}".format(type(obj)))
+
+
+def _pack_header(n, out, fix, fix_limit, tags):
+    if n < fix_limit:
+        out.append(fix | n)
+    elif tags[0] is not None and n < 1 << 8:
+        out.append(tags[0])
+        out += struct.pack('>B', n)
+    elif n < 1 << 16:
+        out.append(tags[1])
+        out += struct.pack('>H', n)
+    else:
+        out.append(tags[2])
+        out += struct.pack('>I', n)
+
+
+def _pack_int(v, out):
+    if 0 <= v < 128 or -32 <= v < 0:
+        out += struct.pack('>b' if v < 0 else '>B', v)
+    elif 0 <= v < 1 << 64:
+        for tag, fmt, limit in ((0xcc, '>B', 1 << 8), (0xcd, '>H', 1 << 16), (0xce, '>I', 1 << 32), (0xcf, '>Q', 1 << 64)):
+            if v < limit:
+                out.append(tag)
+                out += struct.pack(fmt, v)
+                return
+    elif -(1 << 63) <= v < 0:
+        for tag, fmt, limit in ((0xd0, '>b', 1 << 7), (0xd1, '>h', 1 << 15), (0xd2, '>i', 1 << 31), (0xd3, '>q', 1 << 63)):
+            if v >= -limit:
+                out.append(tag)
+                out += struct.pack(fmt, v)
+                return
+    else:
+        raise OverflowError("Integer is too big for msgpack: {0}".format(v))
+
+
+def _pack_timestamp(v, out):
+    # naive values are sent as is, i.e. as if they were UTC
+    if v.tzinfo is not None:
+        v = v.astimezone(dt.timezone.utc).replace(tzinfo=None)
+    delta = v - _EPOCH
+    seconds = delta.days * 86400 + delta.seconds
+    nanos = delta.microseconds * 1000
+    if seconds >> 34 == 0:
+        data = (nanos << 34) | seconds
+        if data >> 32 == 0:
+            out += struct.pack('>Bb', 0xd6, _TIMESTAMP_EXT)
+            out += struct.pack('>I', data)
+        else:
+            out += struct.pack('>Bb', 0xd7, _TIMESTAMP_EXT)
+            out += struct.pack('>Q', data)
+    else:
+        out += struct.pack('>BBb', 0xc7, 12, _TIMESTAMP_EXT)
+        out += struct.pack('>Iq', nanos, seconds)
+
+
+def _unpack(data, pos):
+    b = data[pos]
+    pos += 1
+    if b <= 0x7f:
+        return b, pos
+    if b >= 0xe0:
+        return b - 0x100, pos
+    if 0x80 <= b <= 0x8f:
+        return _unpack_map(data, pos, b & 0x0f)
+    if 0x90 <= b <= 0x9f:
+        return _unpack_array(data, pos, b & 0x0f)
+    if 0xa0 <= b <= 0xbf:
+        return _unpack_str(data, pos, b & 0x1f)
+    if b == 0xc0:
+        return None, pos
+    if b == 0xc2:
+        return False, pos
+    if b == 0xc3:
+        return True, pos
+    if b in _FIXED:
+        fmt, size = _FIXED[b]
+        return struct.unpack_from(fmt, data, pos)[0], pos + size
+    if b in _SIZED:
+        kind, fmt, size = _SIZED[b]
+        n = struct.unpack_from(fmt, data, pos)[0]
+        pos += size
+        if kind == 'str':
+            return _unpack_str(data, pos, n)
+        if kind == 'bin':
+            return bytes(data[pos:pos + n]), pos + n
+        if kind == 'array':
+            return _unpack_array(data, pos, n)
+        if kind == 'map':
+            return _unpack_map(data, pos, n)
+        return _unpack_ext(data, pos + 1, n, struct.unpack_from('>b', data, pos)[0])
+    if b in _FIXEXT:
+        return _unpack_ext(data, pos + 1, _FIXEXT[b], struct.unpack_from('>b', data, pos)[0])
+    raise ValueError("Unexpected msgpack tag: 0x{0:02x}".format(b))
+
+
+def _unpack_str(data, pos, n):
+    return bytes(data[pos:pos + n]).decode('utf8'), pos + n
+
+
+def _unpack_array(data, pos, n):
+    res = []
+    for _ in range(n):
+        v, pos = _unpack(data, pos)
+        res.append(v)
+    return res, pos
+
+
+def _unpack_map(data, pos, n):
+    res = {}
+    for _ in range(n):
+        k, pos = _unpack(data, pos)
+        v, pos = _unpack(data, pos)
+        res[k] = v
+    return res, pos
+
+
+def _unpack_ext(data, pos, n, ext):
+    payload = bytes(data[pos:pos + n])
+    if ext != _TIMESTAMP_EXT:
+        return payload, pos + n
+    if n == 4:
+        seconds, nanos = struct.unpack('>I', payload)[0], 0
+    elif n == 8:
+        v = struct.unpack('>Q', payload)[0]
+        seconds, nanos = v & ((1 << 34) - 1), v >> 34
+    else:
+        nanos, seconds = struct.unpack('>Iq', payload)
+    return _EPOCH + dt.timedelta(seconds=seconds, microseconds=nanos // 1000), pos + n
+
+
+_FIXED = {
+    0xca: ('>f', 4), 0xcb: ('>d', 8),
+    0xcc: ('>B', 1), 0xcd: ('>H', 2), 0xce: ('>I', 4), 0xcf: ('>Q', 8),
+    0xd0: ('>b', 1), 0xd1: ('>h', 2), 0xd2: ('>i', 4), 0xd3: ('>q', 8),
+}
+
+_SIZED = {
+    0xd9: ('str', '>B', 1), 0xda: ('str', '>H', 2), 0xdb: ('str', '>I', 4),
+    0xc4: ('bin', '>B', 1), 0xc5: ('bin', '>H', 2), 0xc6: ('bin', '>I', 4),
+    0xdc: ('array', '>H', 2), 0xdd: ('array', '>I', 4),
+    0xde: ('map', '>H', 2), 0xdf: ('map', '>I', 4),
+    0xc7: ('ext', '>B', 1), 0xc8: ('ext', '>H', 2), 0xc9: ('ext', '>I', 4),
+}
+
+_FIXEXT = {0xd4: 1, 0xd5: 2, 0xd6: 4, 0xd7: 8, 0xd8: 16}
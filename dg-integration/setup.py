@@ -10,5 +10,8 @@ setup(
     install_requires=[
        'ij-discoverer', 'sqlalchemy', 'python-dateutil'
     ],
+    extras_require={
+        'arrow': ['pyarrow'],
+    },
     keywords='IntelliJ IDEA DataGrip PhpStorm PyCharm GoLand'
 )
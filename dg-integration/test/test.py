@@ -32,6 +32,14 @@ def run_test_app():
             return create_instance('127.0.0.1', port)
 
 
+PIPELINE_ROUTE = 'dataSources/{dataSource}/connections/{connection}/pipeline'
+
+
+def _has_module(name):
+    import importlib.util
+    return importlib.util.find_spec(name) is not None
+
+
 def create_or_replace_ds(inst, **kwargs):
     client = DGClient(inst)
     name = kwargs['name']
@@ -51,8 +59,8 @@ class TestDBAPI(unittest.TestCase):
                                user='guest', password='guest')
 
     @staticmethod
-    def connect(ds):
-        return connect(dsn=ds['name'], inst=TestDBAPI._test_instance)
+    def connect(ds, **kwargs):
+        return connect(dsn=ds['name'], inst=TestDBAPI._test_instance, **kwargs)
 
     def test_simple(self):
         with self.connect(self._sqlite) as c:
@@ -91,12 +99,256 @@ class TestDBAPI(unittest.TestCase):
                 self.assertEqual([['mama'], ['papa']], cur.fetchall())
                 self.assertEqual([], cur.fetchall())
 
+    def test_prefetch(self):
+        q = 'with recursive r(i) as (select 1 union all select i + 1 from r where i < 1000) select i from r'
+        with self.connect(self._sqlite) as c:
+            with c.cursor(prefetch=10) as cur:
+                cur.execute(q)
+                self.assertEqual(1000, len(cur.fetchall()))
+                cur.execute(q, prefetch='auto', prefetch_bytes=4096)
+                self.assertEqual([[1], [2]], cur.fetchmany(2))
+                self.assertEqual(998, len(cur.fetchall()))
+                cur.execute(q)
+                self.assertEqual(1000, len(cur.fetchall()))
+                self.assertRaises(ProgrammingError, cur.execute, q, prefetch='auto', prefetch_bytes=0)
+                self.assertRaises(ProgrammingError, cur.execute, q, prefetch=-1)
+
+    def test_spill(self):
+        q = "with recursive r(i) as (select 1 union all select i + 1 from r where i < 20000) select i, 'row ' || i, i * 0.5 from r"
+        with self.connect(self._sqlite) as c:
+            with c.cursor(prefetch='spill') as cur:
+                cur.execute(q)
+                self.assertEqual([[1, 'row 1', 0.5]], cur.fetchmany(1))
+                rows = cur.fetchall()
+                self.assertEqual(19999, len(rows))
+                self.assertEqual([20000, 'row 20000', 10000.0], rows[-1])
+
+    def test_compression(self):
+        q = "with recursive r(i) as (select 1 union all select i + 1 from r where i < 3000) select i, 'row ' || i from r"
+        with self.connect(self._sqlite) as c:
+            results = []
+            for compress in (True, False):
+                dg = DGClient(self._test_instance, compress=compress)
+                with c.cursor() as cur:
+                    cur.pipeline_rows = 0
+                    cur.execute(q)
+                    results.append(dg.fetch(c._ds, c._con, cur._cursor, 100) + dg.fetch(c._ds, c._con, cur._cursor, -1))
+            self.assertEqual(3000, len(results[0]))
+            self.assertEqual(results[1], results[0])
+
+    def test_pipeline(self):
+        dg = DGClient(self._test_instance)
+        with self.connect(self._sqlite) as c:
+            res = dg.pipeline(c._ds, c._con, [
+                {'op': 'cursor'},
+                {'op': 'execute', 'operation': 'select ? as a', 'parameters': [{'value': '1', 'type': 'I'}]},
+                {'op': 'describe'},
+                {'op': 'fetch', 'limit': 10},
+                {'op': 'close'},
+            ])['results']
+            self.assertEqual(5, len(res))
+            self.assertEqual(['a'], [d['name'] for d in res[2]])
+            self.assertEqual(1, len(res[3]))
+            self.assertEqual([], dg.cursors(c._ds, c._con))
+            res = dg.pipeline(c._ds, c._con, [{'op': 'cursor'}, {'op': 'execute', 'operation': 'select * from missing'},
+                                              {'op': 'fetch'}, {'op': 'close'}])['results']
+            self.assertEqual(2, len(res))
+            self.assertIn('error', res[1])
+            self.assertEqual([], dg.cursors(c._ds, c._con))
+            with c.cursor() as cur:
+                cur.pipeline_rows = 2
+                cur.execute('select ? union select ? union select ?', (1, 2, 3))
+                self.assertEqual([[1], [2], [3]], cur.fetchall())
+                self.assertRaises(DatabaseError, cur.execute, 'select * from missing')
+
+    def test_stream(self):
+        q = 'with recursive r(i) as (select 1 union all select i + 1 from r where i < ?) select i from r'
+        with self.connect(self._sqlite) as c:
+            with c.cursor() as cur:
+                self.assertEqual(list(range(1, 2001)), [r[0] for r in cur.stream(q, (2000,), credit=64)])
+                self.assertEqual(['i'], [d[0] for d in cur.description])
+                self.assertEqual([[1], [2]], list(cur.stream(q, (2,))))
+
+    def test_scroll(self):
+        q = 'with recursive r(i) as (select 1 union all select i + 1 from r where i < 1000) select i from r'
+        with self.connect(self._sqlite) as c:
+            with c.cursor(prefetch='scroll') as cur:
+                cur.execute(q)
+                self.assertEqual([[1], [2]], cur.fetchmany(2))
+                cur.scroll(500, mode='absolute')
+                self.assertEqual([[501], [502]], cur.fetchmany(2))
+                cur.scroll(-4)
+                self.assertEqual([[499]], cur.fetchmany(1))
+                self.assertEqual(499, cur.rownumber)
+                cur.scroll(0, mode='absolute')
+                self.assertEqual(1000, len(cur.fetchall()))
+                cur.scroll(998, mode='absolute')
+                self.assertEqual([[999], [1000]], cur.fetchall())
+            with c.cursor() as cur:
+                cur.execute(q)
+                cur.scroll(10, mode='absolute')
+                self.assertRaises(DatabaseError, cur.fetchone)
+                cur.scroll(10, mode='absolute')
+                self.assertRaises(DatabaseError, cur.fetchall)
+
+    def test_projection(self):
+        q = "with recursive r(i) as (select 1 union all select i + 1 from r where i < 100) select i, 'x' || i as s, i * 2 as d from r"
+        with self.connect(self._sqlite) as c:
+            with c.cursor() as cur:
+                cur.execute(q)
+                self.assertEqual([['x1', 2], ['x2', 4]], cur.fetchmany(2, columns=['s', 2]))
+                self.assertEqual([[3], [6], [9]], cur.fetchmany(9, columns=['i'], every=3))
+                cur.execute(q)
+                sample = cur.fetchall(columns=['i'], sample=10)
+                self.assertEqual(10, len(sample))
+                self.assertEqual(sorted(sample), sample)
+                self.assertTrue(all(1 <= r[0] <= 100 for r in sample))
+                cur.execute(q)
+                self.assertRaises(ProgrammingError, cur.fetchall, columns=['missing'])
+
+    def test_executemany(self):
+        with self.connect(self._sqlite) as c:
+            with c.cursor() as cur:
+                cur.execute('create temp table many(i int, s varchar)')
+                cur.batchsize = 3
+                cur.executemany('insert into many values(?, ?)', [(i, str(i)) for i in range(10)])
+                self.assertEqual(10, cur.rowcount)
+                cur.execute('select count(*), sum(i) from many')
+                self.assertEqual([10, 45], cur.fetchone())
+
+    def test_load(self):
+        with self.connect(self._sqlite) as c:
+            with c.cursor() as cur:
+                cur.execute('create temp table loaded(i int, s varchar)')
+                res = c.load('loaded', iter([b'n,name\n1,a\n', b'2,"b,c"\n3,\n']), header=True,
+                             columns=['i:n', 's:name'], types=['I', 'S'], batch=2)
+                self.assertEqual(3, res['rows'])
+                res = c.load('loaded', b'{"i": 4, "s": "d"}\n{"i": 5}\n', fmt='ndjson', columns=['i', 's'])
+                self.assertEqual(2, res['rows'])
+                cur.execute('select i, s from loaded order by i')
+                self.assertEqual([[1, 'a'], [2, 'b,c'], [3, None], [4, 'd'], [5, None]], cur.fetchall())
+                self.assertRaises(ProgrammingError, c.load, 'loaded', b'6\n', columns=['i'], types=['?'])
+                self.assertRaises(ProgrammingError, c.load, '', b'6\n', columns=['i'])
+
+    def test_load_identifiers(self):
+        with self.connect(self._sqlite) as c:
+            with c.cursor() as cur:
+                cur.execute('create temp table "Odd Name"("Select" int)')
+                res = c.load('Odd Name', b'7\n', columns=['Select'])
+                self.assertEqual(1, res['rows'])
+                with self.assertRaises(Exception):
+                    c.load('"Odd Name" select 1; --', b'8\n', columns=['Select'])
+                cur.execute('select "Select" from "Odd Name"')
+                self.assertEqual([[7]], cur.fetchall())
+
+    def test_rowcount(self):
+        with self.connect(self._sqlite) as c:
+            with c.cursor() as cur:
+                cur.execute('create temp table counted(i int)')
+                cur.execute('insert into counted values (1), (2), (3)')
+                self.assertEqual(3, cur.rowcount)
+                cur.execute('update counted set i = i + 1 where i > 1')
+                self.assertEqual(2, cur.rowcount)
+                cur.execute('select i from counted')
+                self.assertEqual(3, len(cur.fetchall()))
+                self.assertEqual(3, cur.rowcount)
+                cur.execute('select i from counted', prefetch=2)
+                self.assertEqual(2, len(cur.fetchmany(2)))
+                self.assertEqual(1, len(cur.fetchmany(2)))
+                self.assertEqual(3, cur.rowcount)
+
     def test_nextset(self):
         with self.connect(self._sqlite) as c:
             with c.cursor() as cur:
                 cur.execute('select ?, ?', ('mama', 'papa'))
                 self.assertIsNone(cur.nextset())
 
+    def test_nextset_multiple(self):
+        with self.connect(self._pg) as c:
+            with c.cursor() as cur:
+                cur.execute('select 1 as a; select 2 as b, 3 as c')
+                self.assertEqual([[1]], cur.fetchall())
+                self.assertTrue(cur.nextset())
+                self.assertEqual(['b', 'c'], [d[0] for d in cur.description])
+                self.assertEqual([[2, 3]], cur.fetchall())
+                self.assertIsNone(cur.nextset())
+
+    def test_pool(self):
+        dg = DGClient(self._test_instance)
+        try:
+            with self.connect(self._sqlite, pool=(1, 2)) as c:
+                with c.cursor() as cur:
+                    cur.execute('select 1')
+            with self.connect(self._sqlite, pool=(1, 2)) as c:
+                with c.cursor() as cur:
+                    cur.execute('select 2')
+                    self.assertEqual([2], cur.fetchone())
+            self.assertGreaterEqual(dg.pool(self._sqlite)['reused'], 1)
+        finally:
+            dg.drop_pool(self._sqlite)
+
+    def test_routes(self):
+        from urllib.error import HTTPError
+        from urllib.request import urlopen
+        inst = self._test_instance
+        ds = 'database/dataSources/{0}/'.format(self._sqlite['uuid'])
+        for path in (ds + 'unknown', ds + 'connections/00000000-0000-0000-0000-000000000000/', ds + 'connections/bad/'):
+            with self.assertRaises(HTTPError) as e:
+                urlopen(inst.request(path))
+            self.assertEqual(404, e.exception.code)
+        r = inst.request('database/reaper')
+        r.method = 'DELETE'
+        with self.assertRaises(HTTPError) as e:
+            urlopen(r)
+        self.assertEqual(405, e.exception.code)
+        self.assertEqual('GET', e.exception.headers['Allow'])
+
+    def test_describe_connection(self):
+        with self.connect(self._sqlite) as c:
+            with c.cursor() as cur:
+                cur.execute('select 1')
+                self.assertEqual([1], cur.fetchone())
+            self.assertIn('uuid', DGClient(self._test_instance).connection(c._ds, c._con))
+
+    def test_result_cache(self):
+        dg = DGClient(self._test_instance)
+        with self.connect(self._sqlite) as c:
+            with c.cursor() as cur:
+                cur.execute('create table if not exists cached(x int)')
+                cur.execute('delete from cached')
+                cur.execute('insert into cached values (1)')
+                c.commit()
+                before = dg.result_cache()
+                cur.execute('select x from cached', cache=True)
+                self.assertEqual([[1]], cur.fetchall())
+                cur.execute('select x from cached', cache=True)
+                self.assertEqual([[1]], cur.fetchall())
+                self.assertEqual(before['hits'] + 1, dg.result_cache()['hits'])
+                # uncommitted changes are seen by their connection and never cached
+                cur.execute('insert into cached values (2)')
+                cur.execute('select x from cached', cache=True)
+                self.assertEqual([[1], [2]], cur.fetchall())
+                self.assertEqual(before['hits'] + 1, dg.result_cache()['hits'])
+                c.commit()
+                cur.execute('select x from cached', cache=True)
+                self.assertEqual([[1], [2]], cur.fetchall())
+                cur.execute('drop table cached')
+                c.commit()
+
+    def test_metrics(self):
+        dg = DGClient(self._test_instance)
+        with self.connect(self._sqlite) as c:
+            with c.cursor() as cur:
+                cur.execute('select 1')
+                self.assertEqual([[1]], cur.fetchall())
+                metrics = dg.metrics()
+                ds = next(d for d in metrics['dataSources'] if d['uuid'] == self._sqlite['uuid'])
+                self.assertGreaterEqual(ds['cursors'], 1)
+        self.assertGreaterEqual(metrics['fetch']['firstRowMicros']['count'], 1)
+        self.assertTrue(any(r['route'] == PIPELINE_ROUTE and r['status'] == 200 for r in metrics['requests']))
+        text = dg.metrics('prometheus').decode('utf8')
+        self.assertIn('dg_exposer_request_seconds_count{method="POST",route="' + PIPELINE_ROUTE + '",status="200"}', text)
+
     def test_describe(self):
         with self.connect(self._sqlite) as c:
             with c.cursor() as cur:
@@ -134,6 +386,25 @@ class TestDBAPI(unittest.TestCase):
                 self.assertIsInstance(n, datetime.time)
                 self.assertEqual(bd, n)
 
+    @unittest.skipUnless(_has_module('pyarrow'), 'pyarrow is not installed')
+    def test_arrow(self):
+        with self.connect(self._h2, format='arrow') as c:
+            with c.cursor() as cur:
+                cur.execute('select 1 as i, \'mama\' as s, now() as d')
+                n = cur.fetchone()
+                self.assertEqual([1, 'mama'], n[:2])
+                self.assertIsInstance(n[2], datetime.datetime)
+                self.assertIsNone(cur.fetchone())
+
+
+    def test_msgpack(self):
+        with self.connect(self._pg, format='msgpack') as c:
+            with c.cursor() as cur:
+                bd = datetime.datetime(1991, 4, 7, 0, 40)
+                cur.execute('select ?::timestamp as d, ?::time as t, ? as i, \'mama\' as s', (bd, bd.time(), 42))
+                self.assertEqual(['d', 't', 'i', 's'], [d[0] for d in cur.description])
+                self.assertEqual([bd, bd.time(), 42, 'mama'], cur.fetchone())
+                self.assertIsNone(cur.fetchone())
 
 if __name__ == '__main__':
     unittest.main()